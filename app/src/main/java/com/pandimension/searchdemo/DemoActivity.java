@@ -42,7 +42,12 @@ import android.widget.Toast;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.pandimension.predictivesearch.AsyncSession;
+import com.pandimension.predictivesearch.DataItem;
+import com.pandimension.predictivesearch.DataSource;
+import com.pandimension.predictivesearch.DualPredictor;
 import com.pandimension.predictivesearch.Prediction;
+import com.pandimension.predictivesearch.PredictionListener;
 import com.pandimension.predictivesearch.Predictor;
 
 import java.util.ArrayList;
@@ -59,14 +64,32 @@ public class DemoActivity extends AppCompatActivity {
     private PredictionAdapter mAdapter;
     private RecyclerView.LayoutManager mLayoutManager;
 
-    private Predictor mPredictor;
+    private DualPredictor mPredictor;
+    private AsyncSession mSession;
     private Predictor.InputType mInputType;
 
+    private final PredictionListener mResultListener = new PredictionListener() {
+        @Override
+        public void onPredictions(String query, final Collection<Prediction> predictions) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if(predictions != null) {
+                        mAdapter.updateDataset(predictions);
+                    }else{
+                        // Clear the Adapter
+                        mAdapter.updateDataset(new ArrayList<Prediction>());
+                    }
+                }
+            });
+        }
+    };
+
     private ProgressDialog mProgress;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        initializePredictor(Predictor.InputType.NUMBER_KEYPAD);
+        initializePredictor();
 
         setContentView(R.layout.activity_demo);
         Toolbar appToolbar = (Toolbar) findViewById(R.id.app_toolbar);
@@ -111,29 +134,9 @@ public class DemoActivity extends AppCompatActivity {
 
             @Override
             public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
-                Collection<Prediction> predictions = mPredictor.predict(charSequence.toString());
-                if(predictions != null) {
-                    mAdapter.updateDataset(predictions);
-                }else{
-                    // Clear the Adapter
-                    mAdapter.updateDataset(new ArrayList<Prediction>());
-                }
-                    /* Use this function if the direct call slows down the UI */
-                    /* predict(charSequence.toString()).addOnCompleteListener(DemoActivity.this,
-                            new OnCompleteListener<Collection<Prediction>>() {
-                        @Override
-                        public void onComplete(@NonNull Task<Collection<Prediction>> task) {
-                            if(task.isSuccessful()){
-                                Collection<Prediction> predictions = task.getResult();
-                                if(predictions != null) {
-                                    mAdapter.updateDataset(predictions);
-                                }else{
-                                    //Clear the Adapter
-                                    mAdapter.updateDataset(new ArrayList<Prediction>());
-                                }
-                            }
-                        }
-                    }); */
+                // Runs in the background, a query still running for the previous keystroke is
+                // cancelled and only the latest result gets delivered
+                mSession.predict(charSequence.toString(), 0, mResultListener);
             }
 
             @Override
@@ -218,17 +221,17 @@ public class DemoActivity extends AppCompatActivity {
     }
 
     /**
-     * Initialize the Predictor
-     * @param inputType Type of input to use
+     * Initialize the Predictor. It serves both input types, starting with NUMPAD
      */
-    void initializePredictor(Predictor.InputType inputType){
-        mPredictor = new Predictor(inputType);
+    void initializePredictor(){
+        mPredictor = new DualPredictor();
         mPredictor.setLabels(SimpleDataItem.getLabels());
-        mInputType = inputType;
+        mInputType = Predictor.InputType.NUMBER_KEYPAD;
+        mSession = mPredictor.newAsyncSession(mInputType);
     }
 
     /**
-     * Switch input types between NUMPAD and QWERTY
+     * Switch input types between NUMPAD and QWERTY. The data of both is already loaded
      * @param newInputType The input type to change to
      * @return True if input type wa changed. False otherwise
      */
@@ -236,15 +239,24 @@ public class DemoActivity extends AppCompatActivity {
         if(mInputType != newInputType){
             // Clear Adapter
             mAdapter.updateDataset(new ArrayList<Prediction>());
-            // Initialize predictor with new input type
-            initializePredictor(newInputType);
-            // Load the data showing loading indicator
-            loadDataUi();
+            mSession.cancel();
+            mSession = mPredictor.newAsyncSession(newInputType);
+            mInputType = newInputType;
+            updateSearchBox();
             return true;
         }
         return false;
     }
 
+    /**
+     * Clear the search box and set its input method type according to the input type
+     */
+    void updateSearchBox(){
+        mSearchBox.setText("");
+        mSearchBox.setInputType(mInputType == Predictor.InputType.NUMBER_KEYPAD ?
+                InputType.TYPE_CLASS_PHONE: InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+    }
+
     /**
      * Load data with Loading ProgressBar and post processing
      */
@@ -257,11 +269,7 @@ public class DemoActivity extends AppCompatActivity {
             if(task.isComplete()){
                 mProgress.dismiss();
             }
-            // Clear
-            mSearchBox.setText("");
-            // Set the search box input method type according to Predictor input type
-            mSearchBox.setInputType(mInputType == Predictor.InputType.NUMBER_KEYPAD ?
-                    InputType.TYPE_CLASS_PHONE: InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+            updateSearchBox();
             }
         });
     }
@@ -277,47 +285,53 @@ public class DemoActivity extends AppCompatActivity {
             @Override
             public void run() {
 
-                Cursor cursor = getContentResolver().query(ContactsContract.Contacts.CONTENT_URI,
+                final Cursor cursor = getContentResolver().query(ContactsContract.Contacts.CONTENT_URI,
                         null, null, null, null);
 
                 if(cursor != null) {
-                    int indexId = cursor.getColumnIndex(ContactsContract.Contacts._ID);
-                    int indexName = cursor.getColumnIndex(
+                    final int indexId = cursor.getColumnIndex(ContactsContract.Contacts._ID);
+                    final int indexName = cursor.getColumnIndex(
                                     ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME);
+                    final int indexHasPhone = cursor.getColumnIndex(
+                                    ContactsContract.Contacts.HAS_PHONE_NUMBER);
 
                     // This is quite a slow operation hence it's recommended that you cache the
                     // Contact data in an internal db and load from there. The internal db
-                    // can be synced based upon any changes to the Contacts
-                    while(cursor.moveToNext()){
-                        String id = cursor.getString(indexId);
-                        String name = cursor.getString(indexName);
-
-
-                        // Query all the numbers and add it in one call. We're ignoring phone type
-                        // but you can create that as a field in the implementation of DataItem
-                        if (Integer.parseInt(cursor.getString(cursor.getColumnIndex(
-                                ContactsContract.Contacts.HAS_PHONE_NUMBER))) > 0) {
+                    // can be synced based upon any changes to the Contacts.
+                    // The contacts are streamed into the Predictor, which encodes them in the
+                    // background while the next ones are read
+                    mPredictor.addItems(new DataSource() {
+                        @Override
+                        public DataItem next() {
+                            while(cursor.moveToNext()){
+                                // Skip the contacts without numbers
+                                if(Integer.parseInt(cursor.getString(indexHasPhone)) == 0)
+                                    continue;
+                                String id = cursor.getString(indexId);
+                                String name = cursor.getString(indexName);
 
-                            Cursor cursor2 = getContentResolver().
-                                    query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
-                                          ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                                          new String[]{id}, null);
+                                // Query all the numbers and add it in one call. We're ignoring phone type
+                                // but you can create that as a field in the implementation of DataItem
+                                Cursor cursor2 = getContentResolver().
+                                        query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
+                                              ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
+                                              new String[]{id}, null);
 
-                            int indexPhone = cursor2.getColumnIndex(
-                                    ContactsContract.CommonDataKinds.Phone.NUMBER);
+                                int indexPhone = cursor2.getColumnIndex(
+                                        ContactsContract.CommonDataKinds.Phone.NUMBER);
 
-                            LinkedList<String> numbers = new LinkedList<String>();
+                                LinkedList<String> numbers = new LinkedList<String>();
 
-                            while (cursor2.moveToNext()) {
-                                numbers.add(cursor2.getString(indexPhone));
+                                while (cursor2.moveToNext()) {
+                                    numbers.add(cursor2.getString(indexPhone));
 
+                                }
+                                cursor2.close();
+                                return new SimpleDataItem(name, numbers, id);
                             }
-                            cursor2.close();
-                            mPredictor.addItem(new SimpleDataItem(name, numbers, id));
+                            return null;
                         }
-
-
-                    }
+                    });
                     cursor.close();
 
                 }
@@ -328,23 +342,4 @@ public class DemoActivity extends AppCompatActivity {
 
         return source.getTask();
     }
-
-    /**
-     * Run prediction on a separate task. Again using GMS tasks API
-     * @param query The query to run prediction on
-     * @return
-     */
-    Task<Collection<Prediction>> predict(final String query){
-        final TaskCompletionSource<Collection<Prediction>> source = new TaskCompletionSource<>();
-
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Collection<Prediction> predictions = mPredictor.predict(query);
-                source.setResult(predictions);
-            }
-        }).start();
-
-        return source.getTask();
-    }
 }
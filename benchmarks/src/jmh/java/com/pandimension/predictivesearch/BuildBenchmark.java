@@ -0,0 +1,92 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build a Predictor from scratch, as on application startup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BuildBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"NUMBER_KEYPAD", "QWERTY_KEYPAD"})
+    public Predictor.InputType inputType;
+
+    /* typical or deep, i.e. every 16th name has six to eight words */
+    @Param({"typical", "deep"})
+    public String names;
+
+    @Param({"COLUMNS", "TRIE"})
+    public String engine;
+
+    private List<Contacts.Contact> mContacts;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        mContacts = "deep".equals(names) ?
+                Contacts.generateDeep(size, 42, PredictBenchmark.DEEP_EVERY) : Contacts.generate(size, 42);
+    }
+
+    @Benchmark
+    public Predictor addItems(){
+        Predictor predictor = Contacts.newPredictor(inputType, engine);
+        predictor.addItems(mContacts);
+        return predictor;
+    }
+
+    @Benchmark
+    public Predictor addItemsFromSource(){
+        Predictor predictor = Contacts.newPredictor(inputType, engine);
+        final Iterator<Contacts.Contact> contacts = mContacts.iterator();
+        predictor.addItems(new DataSource() {
+            @Override
+            public DataItem next() {
+                return contacts.hasNext() ? contacts.next() : null;
+            }
+        });
+        return predictor;
+    }
+
+    @Benchmark
+    public Predictor addItemOneByOne(){
+        Predictor predictor = Contacts.newPredictor(inputType, engine);
+        for(Contacts.Contact contact: mContacts)
+            predictor.addItem(contact);
+        return predictor;
+    }
+}
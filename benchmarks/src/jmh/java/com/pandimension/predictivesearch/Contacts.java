@@ -0,0 +1,204 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic contacts for the benchmarks. Names have one to four words drawn from several
+ * languages, including accented ones, and every contact has one or two international numbers.
+ * The same seed always produces the same contacts.
+ */
+final class Contacts {
+    final static String LABEL_NAME = "name";
+    final static String LABEL_NUMBER = "number";
+
+    private final static String[] FIRST_NAMES = {
+            "John", "Jane", "Mohandas", "Priya", "Raúl", "José", "Zoë", "François", "Ángel",
+            "Björn", "Chloé", "Mei", "Kollol", "Aarav", "Siobhán", "Dmitri", "Fatima", "Łukasz",
+            "Noémie", "Kwame", "Ana", "Søren", "Hiroshi", "Inés", "Olusegun", "Mário", "Yusuf"
+    };
+    private final static String[] LAST_NAMES = {
+            "Doe", "Gandhi", "Das", "García", "Müller", "Nguyen", "O'Brien", "Smith", "Kowalski",
+            "Fernández", "Tanaka", "Ivanov", "Okafor", "Dubois", "Håkansson", "Rossi", "Silva",
+            "Chatterjee", "Lefèvre", "Núñez", "Papadopoulos", "Schröder", "Kim", "Haddad"
+    };
+    private final static String[] COUNTRY_CODES = {"+1 ", "+44 ", "+91 ", "+49 ", "+33 ", "+81 ", ""};
+
+    private Contacts(){}
+
+    static LinkedHashMap<String, DataItem.FieldType> labels(){
+        LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<String, DataItem.FieldType>();
+        labels.put(LABEL_NAME, DataItem.FieldType.TEXT_SEPARATED);
+        labels.put(LABEL_NUMBER, DataItem.FieldType.NUMBER);
+        return labels;
+    }
+
+    static Predictor newPredictor(Predictor.InputType inputType){
+        return newPredictor(inputType, "COLUMNS");
+    }
+
+    /**
+     * Create a Predictor
+     * @param inputType The input type
+     * @param engine COLUMNS or TRIE
+     * @return The predictor with the labels of the contacts
+     */
+    static Predictor newPredictor(Predictor.InputType inputType, String engine){
+        Predictor predictor = new Predictor(inputType,
+                "TRIE".equals(engine) ? IndexEngine.TRIE : IndexEngine.COLUMNS);
+        predictor.setLabels(labels());
+        return predictor;
+    }
+
+    /**
+     * Generate typical contacts
+     * @param count Number of contacts
+     * @param seed Random seed
+     * @return The contacts with ids "0" to "count - 1"
+     */
+    static List<Contact> generate(int count, long seed){
+        return generate(count, seed, 0);
+    }
+
+    /**
+     * Generate contacts some of which have six to eight words in their names. TEXT_SEPARATED
+     * fields get a variant per combination of initials, hence these are the worst case for
+     * encoding and memory
+     * @param count Number of contacts
+     * @param seed Random seed
+     * @param every Every n-th contact gets a long name, 1 for all of them
+     * @return The contacts with ids "0" to "count - 1"
+     */
+    static List<Contact> generateDeep(int count, long seed, int every){
+        return generate(count, seed, every);
+    }
+
+    private static List<Contact> generate(int count, long seed, int every){
+        Random random = new Random(seed);
+        List<Contact> contacts = new ArrayList<Contact>(count);
+        for(int i = 0; i < count; i++){
+            boolean deep = every > 0 && i % every == 0;
+            contacts.add(newContact(random, "" + i, deep ? 6 : 1, deep ? 8 : 4));
+        }
+        return contacts;
+    }
+
+    static Contact newContact(Random random, String id){
+        return newContact(random, id, 1, 4);
+    }
+
+    private static Contact newContact(Random random, String id, int minWords, int maxWords){
+        int words = minWords + random.nextInt(maxWords - minWords + 1);
+        StringBuilder name = new StringBuilder(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+        for(int w = 1; w < words; w++){
+            String[] source = w == words - 1 ? LAST_NAMES : FIRST_NAMES;
+            name.append(' ').append(source[random.nextInt(source.length)]);
+        }
+
+        List<String> numbers = new ArrayList<String>(2);
+        int count = 1 + random.nextInt(2);
+        for(int n = 0; n < count; n++)
+            numbers.add(COUNTRY_CODES[random.nextInt(COUNTRY_CODES.length)] + (6 + random.nextInt(4)) +
+                    String.format(Locale.ROOT, "%04d %05d", random.nextInt(10000), random.nextInt(100000)));
+        return new Contact(id, name.toString(), numbers);
+    }
+
+    /**
+     * Queries as typed for some of the contacts: prefixes of the names and initials, encoded for
+     * the input type
+     * @param contacts The contacts
+     * @param inputType The input type
+     * @param count Number of queries
+     * @param seed Random seed
+     * @return The queries
+     */
+    static String[] queries(List<Contact> contacts, Predictor.InputType inputType, int count, long seed){
+        Random random = new Random(seed);
+        String[] queries = new String[count];
+        for(int i = 0; i < count; i++){
+            Contact contact = contacts.get(random.nextInt(contacts.size()));
+            String[] words = contact.mName.get(0).split(" ");
+            String query;
+            switch(random.nextInt(3)){
+                case 0:
+                    // Prefix of the first name
+                    query = words[0].substring(0, Math.min(words[0].length(), 2 + random.nextInt(3)));
+                    break;
+                case 1:
+                    // Prefix of a later word
+                    String word = words[random.nextInt(words.length)];
+                    query = word.substring(0, Math.min(word.length(), 3));
+                    break;
+                default:
+                    // Initial followed by the last name
+                    query = words[0].charAt(0) + words[words.length - 1];
+            }
+            queries[i] = inputType == Predictor.InputType.NUMBER_KEYPAD ?
+                    Utils.mapToKeypad(query, false, null) : Utils.mapToAlphaNum(query, false, null);
+        }
+        return queries;
+    }
+
+    static final class Contact implements DataItem {
+        final String mId;
+        final List<String> mName;
+        final List<String> mNumbers;
+
+        Contact(String id, String name, List<String> numbers){
+            mId = id;
+            mName = Collections.singletonList(name);
+            mNumbers = numbers;
+        }
+
+        @Override
+        public String getId() {
+            return mId;
+        }
+
+        @Override
+        public List<String> getField(String label) {
+            return LABEL_NAME.equals(label) ? mName : mNumbers;
+        }
+
+        @Override
+        public int compareTo(DataItem other) {
+            int d = mName.get(0).compareTo(((Contact) other).mName.get(0));
+            return d != 0 ? d : mId.compareTo(other.getId());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Contact && mId.equals(((Contact) other).mId);
+        }
+
+        @Override
+        public int hashCode() {
+            return mId.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mName + "," + mNumbers;
+        }
+    }
+}
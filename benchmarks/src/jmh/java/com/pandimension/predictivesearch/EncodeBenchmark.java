@@ -0,0 +1,102 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encoders and variant generators on their own. The Utils encoders build Strings and
+ * boxed positions, {@link KeyEncoder} writes into buffers
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodeBenchmark {
+    private final static int SAMPLES = 1024;
+
+    private String[] mNames;
+    private String[] mDeepNames;
+    private String[] mNumbers;
+    private char[] mEncoding = new char[Predictor.DEFAULT_MAX_FIELD_LENGTH];
+    private short[] mPositions = new short[Predictor.DEFAULT_MAX_FIELD_LENGTH];
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        List<Contacts.Contact> contacts = Contacts.generate(SAMPLES, 42);
+        List<Contacts.Contact> deep = Contacts.generateDeep(SAMPLES, 42, 1);
+        mNames = new String[SAMPLES];
+        mDeepNames = new String[SAMPLES];
+        mNumbers = new String[SAMPLES];
+        for(int i = 0; i < SAMPLES; i++){
+            mNames[i] = contacts.get(i).getField(Contacts.LABEL_NAME).get(0);
+            mDeepNames[i] = deep.get(i).getField(Contacts.LABEL_NAME).get(0);
+            mNumbers[i] = contacts.get(i).getField(Contacts.LABEL_NUMBER).get(0);
+        }
+    }
+
+    @Benchmark
+    public String mapToKeypad(){
+        return Utils.mapToKeypad(next(mNames), false, new ArrayList<Integer>());
+    }
+
+    @Benchmark
+    public String mapToAlphaNum(){
+        return Utils.mapToAlphaNum(next(mNames), true, new ArrayList<Integer>());
+    }
+
+    @Benchmark
+    public int encodeKeypad(){
+        return KeyEncoder.of(Predictor.InputType.NUMBER_KEYPAD).encode(next(mNames), false, mEncoding, mPositions);
+    }
+
+    @Benchmark
+    public int encodeAlphaNum(){
+        return KeyEncoder.of(Predictor.InputType.QWERTY_KEYPAD).encode(next(mNames), true, mEncoding, mPositions);
+    }
+
+    @Benchmark
+    public List<String> variantsOfText(){
+        return Utils.variantsOfText(next(mNames), false);
+    }
+
+    @Benchmark
+    public List<String> variantsOfDeepText(){
+        return Utils.variantsOfText(next(mDeepNames), false);
+    }
+
+    @Benchmark
+    public List<String> variantsOfNumber(){
+        return Utils.variantsOfNumber(next(mNumbers));
+    }
+
+    private String next(String[] samples){
+        mNext = (mNext + 1) & (SAMPLES - 1);
+        return samples[mNext];
+    }
+}
@@ -0,0 +1,128 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prediction throughput and latency. Every benchmark cycles through a fixed set of queries typed
+ * for random contacts, the single key queries match a large share of the data and are the worst
+ * case for collecting and sorting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PredictBenchmark {
+    private final static int QUERIES = 1024;
+    final static int DEEP_EVERY = 16;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"NUMBER_KEYPAD", "QWERTY_KEYPAD"})
+    public Predictor.InputType inputType;
+
+    /* typical or deep, i.e. every 16th name has six to eight words */
+    @Param({"typical", "deep"})
+    public String names;
+
+    @Param({"COLUMNS", "TRIE"})
+    public String engine;
+
+    /* Cached queries, e.g. -p cacheSize=256 to see the single key queries hit the result cache */
+    @Param({"0"})
+    public int cacheSize;
+
+    private Predictor mPredictor;
+    private String[] mQueries;
+    private String[] mSingleKeys;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        List<Contacts.Contact> contacts = "deep".equals(names) ?
+                Contacts.generateDeep(size, 42, DEEP_EVERY) : Contacts.generate(size, 42);
+        mPredictor = Contacts.newPredictor(inputType, engine);
+        mPredictor.addItems(contacts);
+        mPredictor.setResultCache(cacheSize, cacheSize * 10);
+        mQueries = Contacts.queries(contacts, inputType, QUERIES, 7);
+        mSingleKeys = new String[QUERIES];
+        for(int i = 0; i < QUERIES; i++)
+            mSingleKeys[i] = mQueries[i].substring(0, 1);
+    }
+
+    @Benchmark
+    public Collection<Prediction> predict(){
+        return mPredictor.predict(nextQuery(mQueries));
+    }
+
+    @Benchmark
+    public Collection<Prediction> predictSingleKey(){
+        return mPredictor.predict(nextQuery(mSingleKeys));
+    }
+
+    @Benchmark
+    public Collection<Prediction> predictTopTen(){
+        return mPredictor.predict(nextQuery(mQueries), 10);
+    }
+
+    @Benchmark
+    public Collection<Prediction> predictSingleKeyTopTen(){
+        return mPredictor.predict(nextQuery(mSingleKeys), 10);
+    }
+
+    @Benchmark
+    public void predictConsumer(final Blackhole blackhole){
+        mPredictor.predict(nextQuery(mQueries), new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                blackhole.consume(prediction);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Types a query key by key in a session as a search box would, one operation is the whole
+     * query
+     */
+    @Benchmark
+    public void predictTyping(Blackhole blackhole){
+        String query = nextQuery(mQueries);
+        QuerySession session = mPredictor.newSession();
+        for(int i = 1; i <= query.length(); i++)
+            blackhole.consume(session.predict(query.substring(0, i), 10));
+    }
+
+    private String nextQuery(String[] queries){
+        mNext = (mNext + 1) & (QUERIES - 1);
+        return queries[mNext];
+    }
+}
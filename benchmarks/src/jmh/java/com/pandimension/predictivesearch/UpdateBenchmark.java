@@ -0,0 +1,101 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of single updates on a populated Predictor. Additions keep growing the index over the
+ * iterations, removals put the item back so that the size stays the same. A sync replaces a
+ * batch of items in one {@link ChangeSet}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateBenchmark {
+    private final static int SYNC_SIZE = 5000;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"NUMBER_KEYPAD", "QWERTY_KEYPAD"})
+    public Predictor.InputType inputType;
+
+    private Predictor mPredictor;
+    private List<Contacts.Contact> mContacts;
+    private Contacts.Contact[] mReplacements;
+    private Random mRandom;
+    private int mNextId;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+        mContacts = Contacts.generate(size, 42);
+        mPredictor = Contacts.newPredictor(inputType);
+        mPredictor.addItems(mContacts);
+
+        // Same ids, different names and numbers
+        mReplacements = Contacts.generate(size, 43).toArray(new Contacts.Contact[size]);
+        mRandom = new Random(7);
+        mNextId = size;
+    }
+
+    @Benchmark
+    public void addItem(){
+        mPredictor.addItem(Contacts.newContact(mRandom, "" + mNextId++));
+    }
+
+    @Benchmark
+    public void removeAndAddItem(){
+        Contacts.Contact contact = mContacts.get(mRandom.nextInt(size));
+        mPredictor.removeItem(contact.getId());
+        mPredictor.addItem(contact);
+    }
+
+    @Benchmark
+    public void replaceItem(){
+        int i = mRandom.nextInt(size);
+        Contacts.Contact replacement = mReplacements[i];
+        mReplacements[i] = mContacts.get(i);
+        mContacts.set(i, replacement);
+        mPredictor.replaceItem(replacement.getId(), replacement);
+    }
+
+    @Benchmark
+    public void applyChanges(){
+        ChangeSet changes = new ChangeSet();
+        for(int n = 0; n < Math.min(size, SYNC_SIZE); n++){
+            int i = mRandom.nextInt(size);
+            Contacts.Contact replacement = mReplacements[i];
+            mReplacements[i] = mContacts.get(i);
+            mContacts.set(i, replacement);
+            changes.replace(replacement.getId(), replacement);
+        }
+        mPredictor.applyChanges(changes);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+/**
+ * An asynchronous prediction session obtained from {@link Predictor#newAsyncSession()}. Meant for
+ * a search box where every keystroke supersedes the previous query. Queries are run one at a time
+ * on an executor: the ones submitted while a query is running are coalesced into the latest, and
+ * the running query checks between keys and while collecting the matches whether it has been
+ * superseded and if so stops. Only the result of the latest query is delivered to its listener.
+ *
+ * The queries run on a {@link QuerySession} hence typing one more key costs a single
+ * intersection. A session is thread-safe.
+ */
+public class AsyncSession {
+    private final QuerySession mSession;
+    private final Executor mExecutor;
+    /* Incremented by every query and cancellation, a query runs while it is the latest */
+    private volatile int mSequence;
+    private String mQuery;
+    private int mLimit;
+    private PredictionListener mListener;
+    private boolean mPending;
+    private boolean mScheduled;
+
+    AsyncSession(Predictor predictor, Executor executor){
+        mSession = predictor.newSession();
+        mExecutor = executor;
+    }
+
+    /**
+     * Make a prediction on a query in the background. Supersedes any query still running or
+     * waiting to run. Pass the entire query every time
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @param listener Receives the result unless it is superseded
+     */
+    public void predict(String query, int limit, PredictionListener listener){
+        if(limit < 0)
+            throw new IllegalArgumentException("Limit cannot be negative");
+        synchronized (this) {
+            mSequence++;
+            mQuery = query;
+            mLimit = limit;
+            mListener = listener;
+            mPending = true;
+            if(mScheduled)
+                return;
+            mScheduled = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Cancel the running and waiting queries, nothing is delivered until the next query
+     */
+    public void cancel(){
+        synchronized (this) {
+            mSequence++;
+            mPending = false;
+            mListener = null;
+        }
+    }
+
+    /* Private Methods */
+
+    /*
+     * Runs the latest query until none is waiting. Only one drain runs at a time
+     */
+    private void drain(){
+        while(true){
+            final int sequence;
+            String query;
+            int limit;
+            PredictionListener listener;
+            synchronized (this) {
+                if(!mPending){
+                    mScheduled = false;
+                    return;
+                }
+                mPending = false;
+                sequence = mSequence;
+                query = mQuery;
+                limit = mLimit;
+                listener = mListener;
+            }
+
+            Collection<Prediction> predictions;
+            try {
+                predictions = mSession.predict(query, limit, new Predictor.Cancellation() {
+                    @Override
+                    public boolean isCancelled() {
+                        return mSequence != sequence;
+                    }
+                });
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mScheduled = false;
+                }
+                throw e;
+            }
+
+            // Checked again while delivering so that a superseded result never gets through
+            synchronized (this) {
+                if(mSequence == sequence)
+                    listener.onPredictions(query, predictions);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of additions, removals and replacements of items, applied at once with
+ * {@link Predictor#applyChanges(ChangeSet)}. The changes are applied in the order they were
+ * recorded, e.g. an item that is added and then removed in the same batch is never indexed.
+ *
+ * Not thread-safe, record the changes on one thread and don't modify the set while it is applied.
+ */
+public final class ChangeSet {
+    final List<Change> mChanges = new ArrayList<Change>();
+    int mAdditions;
+
+    /**
+     * Record an addition. If an item with the same id already exists it won't be added
+     * @param item A {@link DataItem} object
+     * @return This set
+     */
+    public ChangeSet add(DataItem item){
+        return record(null, item);
+    }
+
+    /**
+     * Record a removal
+     * @param id Id of the data item to remove
+     * @return This set
+     */
+    public ChangeSet remove(String id){
+        return record(id, null);
+    }
+
+    /**
+     * Record a replacement, see {@link Predictor#replaceItem(String, DataItem)}
+     * @param oldId Id of the existing dataitem
+     * @param newItem The new item
+     * @return This set
+     */
+    public ChangeSet replace(String oldId, DataItem newItem){
+        return record(oldId, newItem);
+    }
+
+    /**
+     * Get the number of changes recorded
+     * @return The count
+     */
+    public int size(){
+        return mChanges.size();
+    }
+
+    public boolean isEmpty(){
+        return mChanges.isEmpty();
+    }
+
+    /**
+     * Forget all the changes, e.g. to reuse the set for the next batch
+     */
+    public void clear(){
+        mChanges.clear();
+        mAdditions = 0;
+    }
+
+    private ChangeSet record(String removedId, DataItem item){
+        mChanges.add(new Change(removedId, item));
+        if(item != null)
+            mAdditions++;
+        return this;
+    }
+
+    /**
+     * A single change: a removal, an addition or both for a replacement
+     */
+    static final class Change {
+        final String mRemovedId;
+        final DataItem mItem;
+
+        Change(String removedId, DataItem item){
+            mRemovedId = removedId;
+            mItem = item;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+
+/**
+ * Index with a posting list per key and position. The predictions matching a query are the
+ * intersection of the lists of its keys at their positions. Whole queries are planned: the lists
+ * are intersected smallest first, which also makes skewed intersections gallop through the larger
+ * list, and once few candidates are left the remaining keys are checked on their key sequences.
+ */
+final class ColumnEngine extends IndexEngine {
+
+    @Override
+    Index newIndex(int keys){
+        return new ColumnIndex(keys, new PostingList[0][]);
+    }
+
+    /**
+     * Create an index over the cells of an index file
+     * @param file The file
+     * @return The index
+     */
+    static ColumnIndex map(IndexFile file){
+        return new ColumnIndex(file.getKeys(), file.mapColumns());
+    }
+
+    static final class ColumnIndex extends Index {
+        private final int mKeys;
+        private final PostingList[][] mColumns;
+
+        private ColumnIndex(int keys, PostingList[][] columns){
+            mKeys = keys;
+            mColumns = columns;
+        }
+
+        int getKeys(){
+            return mKeys;
+        }
+
+        @Override
+        int getDepth(){
+            return mColumns.length;
+        }
+
+        /**
+         * Get the posting list of a key at a position
+         * @param pos Position in the encoding
+         * @param key Mapped key
+         * @return The posting list or null if nothing was indexed there
+         */
+        PostingList getCell(int pos, int key){
+            return mColumns[pos][key];
+        }
+
+        @Override
+        PostingList match(int[] keys, int from, int to, PostingList partition){
+            for(int pos = from; pos < to; pos++){
+                PostingList cell = mColumns[pos][keys[pos]];
+                if(cell == null)
+                    return EMPTY;
+
+                // The cells are never modified here, intersections always create a new list
+                if(partition == null)
+                    partition = cell;
+                else if(!partition.isEmpty())
+                    partition = partition.and(cell);
+            }
+            return partition;
+        }
+
+        @Override
+        PostingList match(int[] keys, int length, Keys source, PredictorMetrics metrics, int from, int to){
+            if(length == 0)
+                return null;
+            PostingList[] cells = new PostingList[length];
+            int[] order = new int[length];
+            int[] sizes = new int[length];
+            for(int pos = 0; pos < length; pos++){
+                PostingList cell = mColumns[pos][keys[pos]];
+                if(cell == null)
+                    return EMPTY;
+                cells[pos] = cell.slice(from, to);
+                sizes[pos] = cells[pos].cardinality();
+                // Insertion sort by size, queries are short
+                int i = pos;
+                while(i > 0 && sizes[order[i - 1]] > sizes[pos]){
+                    order[i] = order[i - 1];
+                    i--;
+                }
+                order[i] = pos;
+            }
+
+            PostingList partition = cells[order[0]];
+            if(metrics != null)
+                metrics.onCandidates(1, partition.cardinality());
+            for(int i = 1; i < length && !partition.isEmpty(); i++){
+                if(partition.cardinality() <= VERIFY_MAX){
+                    partition = verify(partition, keys, order, i, length, source);
+                    if(metrics != null)
+                        metrics.onCandidates(length, partition.cardinality());
+                    return partition;
+                }
+                partition = partition.and(cells[order[i]]);
+                if(metrics != null)
+                    metrics.onCandidates(i + 1, partition.cardinality());
+            }
+            return partition;
+        }
+
+        /*
+         * Check the keys of the positions left on the key sequences of the candidates
+         */
+        private static PostingList verify(PostingList candidates, int[] keys, int[] order, int from,
+                                          int length, Keys source){
+            int[] matches = new int[candidates.cardinality()];
+            int count = 0;
+            int[] buffer = new int[16];
+            for(int index = candidates.next(0); index >= 0; index = candidates.next(index + 1)){
+                if(buffer.length < source.length(index))
+                    buffer = new int[Math.max(source.length(index), buffer.length * 2)];
+                if(source.get(index, buffer) < length)
+                    continue;
+                int i = from;
+                while(i < length && buffer[order[i]] == keys[order[i]]) i++;
+                if(i == length)
+                    matches[count++] = index;
+            }
+            return new PostingList().withAll(matches, count);
+        }
+
+        /*
+         * Pigeonhole: a match with at most maxEdits edits keeps one of maxEdits + 1 chunks of the
+         * query intact, shifted by at most maxEdits positions. The matches of every chunk at
+         * every shift are united
+         */
+        @Override
+        PostingList matchFuzzy(int[] keys, int length, int maxEdits){
+            PostingList candidates = null;
+            int[] shifted = new int[length + maxEdits];
+            for(int chunk = 0; chunk <= maxEdits; chunk++){
+                int from = chunk * length / (maxEdits + 1);
+                int to = (chunk + 1) * length / (maxEdits + 1);
+                for(int start = Math.max(0, from - maxEdits); start <= from + maxEdits; start++){
+                    if(start + to - from > mColumns.length)
+                        break;
+                    System.arraycopy(keys, from, shifted, start, to - from);
+                    PostingList partition = match(shifted, start, start + to - from, null);
+                    if(!partition.isEmpty())
+                        candidates = candidates == null ? partition : candidates.or(partition);
+                }
+            }
+            return candidates;
+        }
+
+        @Override
+        boolean isIncremental(){
+            return true;
+        }
+
+        @Override
+        long[] estimateBytes(){
+            long[] bytes = new long[mColumns.length];
+            for(int pos = 0; pos < mColumns.length; pos++)
+                for(PostingList cell: mColumns[pos])
+                    if(cell != null)
+                        bytes[pos] += cell.sizeInBytes();
+            return bytes;
+        }
+
+        /*
+         * The posting lists are walked in step without creating any intermediate lists, the
+         * smallest one leads
+         */
+        @Override
+        void stream(int[] keys, int length, Generation generation, PredictionConsumer consumer){
+            int depth = Math.min(length, mColumns.length);
+            if(depth == 0)
+                return;
+            PostingList[] cells = new PostingList[depth];
+            int[] sizes = new int[depth];
+            for(int pos = 0; pos < depth; pos++){
+                PostingList cell = mColumns[pos][keys[pos]];
+                if(cell == null)
+                    return;
+                int size = cell.cardinality();
+                int i = pos;
+                while(i > 0 && sizes[i - 1] > size){
+                    cells[i] = cells[i - 1];
+                    sizes[i] = sizes[i - 1];
+                    i--;
+                }
+                cells[i] = cell;
+                sizes[i] = size;
+            }
+
+            int candidate = 0;
+            while(true){
+                // Move the candidate forward until every cell of the query agrees on it
+                boolean agreed = true;
+                for(PostingList cell: cells){
+                    int next = cell.next(candidate);
+                    if(next < 0 || next >= generation.mCount)
+                        return;
+                    if(next != candidate){
+                        candidate = next;
+                        agreed = false;
+                        break;
+                    }
+                }
+
+                if(agreed){
+                    if(!consumer.onPrediction(generation.getPrediction(candidate), depth, candidate))
+                        return;
+                    candidate++;
+                }
+            }
+        }
+
+        @Override
+        Editor edit(Keys source){
+            return new ColumnEditor(this, source);
+        }
+    }
+
+    /**
+     * Copies only the columns and cells it touches
+     */
+    private static final class ColumnEditor extends Editor {
+        private final ColumnIndex mBase;
+        private final Keys mSource;
+        private PostingList[][] mColumns;
+        private boolean[] mOwned;
+        private int[] mBuffer = new int[16];
+
+        ColumnEditor(ColumnIndex base, Keys source){
+            mBase = base;
+            mSource = source;
+            mColumns = base.mColumns;
+        }
+
+        @Override
+        void add(int index){
+            // Single indices are appended into the spare capacity of the cells instead of copying them
+            int length = keysOf(index);
+            for(int pos = 0; pos < length; pos++){
+                PostingList[] col = ownColumn(pos);
+                int key = mBuffer[pos];
+                col[key] = col[key] == null ? new PostingList().with(index) : col[key].with(index);
+            }
+        }
+
+        /*
+         * Every cell is extended once with an exactly sized batch of indices
+         */
+        @Override
+        void addAll(int first, int end){
+            int[][][] cells = cellsOf(null, first, end);
+            for(int pos = 0; pos < cells.length; pos++){
+                PostingList[] col = ownColumn(pos);
+                for(int key = 0; key < cells[pos].length; key++){
+                    int[] indices = cells[pos][key];
+                    if(indices != null)
+                        col[key] = col[key] == null ? new PostingList().withAll(indices, indices.length) :
+                                col[key].withAll(indices, indices.length);
+                }
+            }
+        }
+
+        /*
+         * Every cell loses its batch of indices at once
+         */
+        @Override
+        void removeAll(int[] indices, int count){
+            int[][][] cells = cellsOf(indices, 0, count);
+            for(int pos = 0; pos < cells.length; pos++){
+                PostingList[] col = ownColumn(pos);
+                for(int key = 0; key < cells[pos].length; key++){
+                    int[] removed = cells[pos][key];
+                    if(removed != null && col[key] != null)
+                        col[key] = col[key].withoutAll(removed, removed.length);
+                }
+            }
+        }
+
+        @Override
+        void remove(int index){
+            int length = keysOf(index);
+            for(int pos = 0; pos < length; pos++){
+                PostingList[] col = ownColumn(pos);
+                int key = mBuffer[pos];
+                if(col[key] != null)
+                    col[key] = col[key].without(index);
+            }
+        }
+
+        @Override
+        Index publish(){
+            return mOwned == null ? mBase : new ColumnIndex(mBase.mKeys, mColumns);
+        }
+
+        /*
+         * Group predictions by the cells they are in, in ascending order. The indices are taken
+         * from the array or, when it is null, are the range itself
+         */
+        private int[][][] cellsOf(int[] indices, int from, int to){
+            int keys = mBase.mKeys;
+            int[][] counts = new int[0][];
+            for(int i = from; i < to; i++){
+                int length = keysOf(indices == null ? i : indices[i]);
+                if(length > counts.length)
+                    counts = Arrays.copyOf(counts, length);
+                for(int pos = 0; pos < length; pos++){
+                    if(counts[pos] == null)
+                        counts[pos] = new int[keys];
+                    counts[pos][mBuffer[pos]]++;
+                }
+            }
+
+            int[][][] cells = new int[counts.length][keys][];
+            for(int pos = 0; pos < counts.length; pos++)
+                for(int key = 0; key < keys; key++)
+                    if(counts[pos][key] > 0)
+                        cells[pos][key] = new int[counts[pos][key]];
+
+            int[][] fill = new int[counts.length][keys];
+            for(int i = from; i < to; i++){
+                int index = indices == null ? i : indices[i];
+                int length = keysOf(index);
+                for(int pos = 0; pos < length; pos++){
+                    int key = mBuffer[pos];
+                    cells[pos][key][fill[pos][key]++] = index;
+                }
+            }
+            return cells;
+        }
+
+        private int keysOf(int index){
+            int length = mSource.length(index);
+            if(length > mBuffer.length)
+                mBuffer = new int[length];
+            return mSource.get(index, mBuffer);
+        }
+
+        private PostingList[] ownColumn(int pos){
+            if(mOwned == null){
+                mColumns = Arrays.copyOf(mColumns, Math.max(mColumns.length, pos + 1));
+                mOwned = new boolean[mColumns.length];
+            }else if(pos >= mColumns.length){
+                mColumns = Arrays.copyOf(mColumns, pos + 1);
+                mOwned = Arrays.copyOf(mOwned, pos + 1);
+            }
+
+            if(!mOwned[pos]){
+                mColumns[pos] = mColumns[pos] == null ? new PostingList[mBase.mKeys] : mColumns[pos].clone();
+                mOwned[pos] = true;
+            }
+            return mColumns[pos];
+        }
+    }
+}
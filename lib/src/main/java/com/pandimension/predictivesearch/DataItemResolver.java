@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Looks up data items by id when a Predictor is loaded from an index file with
+ * {@link Predictor#openIndex(java.io.File, DataItemResolver)}. The file stores only the ids of
+ * the items, they are resolved the first time one of their predictions is used.
+ */
+public interface DataItemResolver {
+    /**
+     * Called at most once per item. May be called from any thread that makes predictions
+     * @param id Id of the item as returned by {@link DataItem#getId()} when the index was written
+     * @return The item, never null
+     */
+    DataItem resolve(String id);
+}
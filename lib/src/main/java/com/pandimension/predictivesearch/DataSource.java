@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pandimension.predictivesearch;
+
+/**
+ * A cursor over the items to load with {@link Predictor#addItems(DataSource)}, e.g. over the
+ * rows of a database, so that the dataset never has to be held in memory as a whole. The
+ * Predictor pulls the items in chunks and stops pulling while the encoding falls behind.
+ */
+public interface DataSource {
+    /**
+     * Get the next item. Called from the loading thread only. The fields of the item are read
+     * later on a worker thread, hence they can be fetched lazily in {@link DataItem#getField(String)}
+     * @return The item or null if there are no more
+     */
+    DataItem next();
+}
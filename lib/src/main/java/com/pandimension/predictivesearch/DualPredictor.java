@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.pandimension.predictivesearch;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * A Predictor that answers both number keypad and QWERTY queries, e.g. for a search box whose
+ * keyboard can be toggled. It keeps a {@link Predictor} per input type over the same items and
+ * every update is applied to both, hence switching the keyboard costs nothing: pick the input
+ * type per query or per session. The Predictors are not exposed so that they never disagree.
+ *
+ * The keypad and QWERTY encodings differ in more than the keys, e.g. numbers split QWERTY words
+ * and the symbols of the keypads differ, so each input type has a store and an index of its own.
+ * It takes about twice the memory and update time of a single Predictor, only the items and the
+ * reading of a {@link DataSource} are shared.
+ */
+public class DualPredictor {
+    private final Predictor mKeypad;
+    private final Predictor mQwerty;
+
+    /**
+     * Constructor for the class, with the default index
+     */
+    public DualPredictor(){
+        this(IndexEngine.COLUMNS);
+    }
+
+    /**
+     * Constructor for the class with a choice of index
+     * @param engine The index of both input types, see {@link IndexEngine}
+     */
+    public DualPredictor(IndexEngine engine){
+        mKeypad = new Predictor(Predictor.InputType.NUMBER_KEYPAD, engine);
+        mQwerty = new Predictor(Predictor.InputType.QWERTY_KEYPAD, engine);
+    }
+
+    /**
+     * Set the labels for the data items that identify the fields, see
+     * {@link Predictor#setLabels(LinkedHashMap)}
+     * @param labels A LinkedHashMap containing the label and type of the Field
+     */
+    public void setLabels(LinkedHashMap<String, DataItem.FieldType> labels){
+        mKeypad.setLabels(labels);
+        mQwerty.setLabels(labels);
+    }
+
+    /**
+     * Set the compaction ratio of both input types, see {@link Predictor#setCompactionRatio(float)}
+     * @param ratio Fraction of tombstones or unranked predictions
+     */
+    public void setCompactionRatio(float ratio){
+        mKeypad.setCompactionRatio(ratio);
+        mQwerty.setCompactionRatio(ratio);
+    }
+
+    /**
+     * Set a listener for both input types, see {@link Predictor#setMetrics(PredictorMetrics)}.
+     * Updates are reported once per input type
+     * @param metrics The listener, null to stop measuring
+     */
+    public void setMetrics(PredictorMetrics metrics){
+        mKeypad.setMetrics(metrics);
+        mQwerty.setMetrics(metrics);
+    }
+
+    /**
+     * Cache the results of both input types, see {@link Predictor#setResultCache(int, int)}. Each
+     * input type has a cache of that size
+     * @param maxQueries Maximum number of cached queries per input type, 0 to turn the caches off
+     * @param maxPredictions Maximum number of predictions of all the cached queries of an input type
+     */
+    public void setResultCache(int maxQueries, int maxPredictions){
+        mKeypad.setResultCache(maxQueries, maxPredictions);
+        mQwerty.setResultCache(maxQueries, maxPredictions);
+    }
+
+    /**
+     * Add a single item (Thread-safe), see {@link Predictor#addItem(DataItem)}
+     * @param item A {@link DataItem} object
+     */
+    public synchronized void addItem(DataItem item){
+        mKeypad.addItem(item);
+        mQwerty.addItem(item);
+    }
+
+    /**
+     * Add a batch of items (Thread-safe), see {@link Predictor#addItems(Collection)}
+     * @param items A Collection of {@link DataItem} objects
+     */
+    public synchronized void addItems(Collection<? extends DataItem> items){
+        mKeypad.addItems(items);
+        mQwerty.addItems(items);
+    }
+
+    /**
+     * Add the items of a source (Thread-safe), see {@link Predictor#addItems(DataSource)}. The
+     * source is read once with the same bounded read-ahead, every chunk is encoded for both input
+     * types in parallel and then indexed by the keypad and QWERTY in turn
+     * @param source The items
+     * @return The number of items pulled from the source and indexed by both input types
+     */
+    public synchronized int addItems(DataSource source){
+        return Predictor.streamItems(source, mKeypad, mQwerty);
+    }
+
+    /**
+     * Remove a single item (Thread-safe)
+     * @param id Id of the data item to remove
+     */
+    public synchronized void removeItem(String id){
+        mKeypad.removeItem(id);
+        mQwerty.removeItem(id);
+    }
+
+    /**
+     * Replace an existing item with a new item (Thread-safe), see
+     * {@link Predictor#replaceItem(String, DataItem)}
+     * @param oldId Id of the existing dataitem
+     * @param newItem The new item
+     */
+    public synchronized void replaceItem(String oldId, DataItem newItem){
+        mKeypad.replaceItem(oldId, newItem);
+        mQwerty.replaceItem(oldId, newItem);
+    }
+
+    /**
+     * Apply a batch of changes (Thread-safe), see {@link Predictor#applyChanges(ChangeSet)}. The
+     * keypad predictions may see the changes slightly before the QWERTY ones
+     * @param changes The changes, applied in order
+     */
+    public synchronized void applyChanges(ChangeSet changes){
+        mKeypad.applyChanges(changes);
+        mQwerty.applyChanges(changes);
+    }
+
+    /**
+     * Compact both input types right away, see {@link Predictor#compact()}
+     */
+    public void compact(){
+        mKeypad.compact();
+        mQwerty.compact();
+    }
+
+    /**
+     * Make a prediction on a query (Thread-safe), see {@link Predictor#predict(String)}
+     * @param query A string query
+     * @param inputType The keyboard the query was typed on
+     * @return A Collection of Prediction objects as returned by the Predictor of the input type
+     */
+    public Collection<Prediction> predict(String query, Predictor.InputType inputType){
+        return getPredictor(inputType).predict(query);
+    }
+
+    /**
+     * Make a prediction on a query returning the best predictions only (Thread-safe), see
+     * {@link Predictor#predict(String, int)}
+     * @param query A string query
+     * @param limit Maximum number of predictions
+     * @param inputType The keyboard the query was typed on
+     * @return A Collection of Prediction objects as returned by the Predictor of the input type
+     */
+    public Collection<Prediction> predict(String query, int limit, Predictor.InputType inputType){
+        return getPredictor(inputType).predict(query, limit);
+    }
+
+    /**
+     * Make a prediction that tolerates typos (Thread-safe), see
+     * {@link Predictor#predictFuzzy(String, int, int)}
+     * @param query A string query
+     * @param maxEdits Maximum number of mistyped, extra or missing keys
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @param inputType The keyboard the query was typed on
+     * @return The exact predictions followed by the inexact ones
+     */
+    public Collection<Prediction> predictFuzzy(String query, int maxEdits, int limit, Predictor.InputType inputType){
+        return getPredictor(inputType).predictFuzzy(query, maxEdits, limit);
+    }
+
+    /**
+     * Make a prediction that tolerates typos with a time budget (Thread-safe), see
+     * {@link Predictor#predictFuzzy(String, int, int, long)}
+     * @param query A string query
+     * @param maxEdits Maximum number of mistyped, extra or missing keys
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @param budgetMicros Time after which no more candidates are verified
+     * @param inputType The keyboard the query was typed on
+     * @return The exact predictions followed by the inexact ones
+     */
+    public Collection<Prediction> predictFuzzy(String query, int maxEdits, int limit, long budgetMicros,
+                                               Predictor.InputType inputType){
+        return getPredictor(inputType).predictFuzzy(query, maxEdits, limit, budgetMicros);
+    }
+
+    /**
+     * Make a prediction on a query and stream the matches to a consumer (Thread-safe), see
+     * {@link Predictor#predict(String, PredictionConsumer)}
+     * @param query A string query
+     * @param consumer Receives the matches
+     * @param inputType The keyboard the query was typed on
+     */
+    public void predict(String query, PredictionConsumer consumer, Predictor.InputType inputType){
+        getPredictor(inputType).predict(query, consumer);
+    }
+
+    /**
+     * Get the gauges of an input type (Thread-safe), see {@link Predictor#getStats()}
+     * @param inputType The input type
+     * @return The {@link PredictorStats}
+     */
+    public PredictorStats getStats(Predictor.InputType inputType){
+        return getPredictor(inputType).getStats();
+    }
+
+    /**
+     * Create a session for an input type, see {@link Predictor#newSession()}. Create a new one
+     * when the keyboard is toggled
+     * @param inputType The keyboard the queries are typed on
+     * @return A new {@link QuerySession}
+     */
+    public QuerySession newSession(Predictor.InputType inputType){
+        return getPredictor(inputType).newSession();
+    }
+
+    /**
+     * Create a background session for an input type, see {@link Predictor#newAsyncSession()}
+     * @param inputType The keyboard the queries are typed on
+     * @return A new {@link AsyncSession}
+     */
+    public AsyncSession newAsyncSession(Predictor.InputType inputType){
+        return getPredictor(inputType).newAsyncSession();
+    }
+
+    /**
+     * Create a session for an input type that runs on the given executor, see
+     * {@link Predictor#newAsyncSession(Executor)}
+     * @param inputType The keyboard the queries are typed on
+     * @param executor Runs the queries
+     * @return A new {@link AsyncSession}
+     */
+    public AsyncSession newAsyncSession(Predictor.InputType inputType, Executor executor){
+        return getPredictor(inputType).newAsyncSession(executor);
+    }
+
+    /* Private Methods */
+
+    private Predictor getPredictor(Predictor.InputType inputType){
+        return inputType == Predictor.InputType.NUMBER_KEYPAD ? mKeypad : mQwerty;
+    }
+}
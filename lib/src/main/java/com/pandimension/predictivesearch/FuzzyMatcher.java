@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Verifies the candidates of a fuzzy query. A prediction matches if the query can be turned into
+ * a prefix of its keys, or of its keys from the start of a word, with at most a number of
+ * substitutions, insertions and deletions of keys. The distances are computed one key of the
+ * prediction at a time, hence the verification stops as soon as no prefix of the query is within
+ * the bound. Not thread-safe, use one per query.
+ */
+final class FuzzyMatcher {
+    private final Predictor.InputType mInputType;
+    private final int mMaxEdits;
+    private int[] mRow = new int[16];
+    private int[] mNext = new int[16];
+    private int mStart;
+    private int mExtent;
+
+    FuzzyMatcher(Predictor.InputType inputType, int maxEdits){
+        mInputType = inputType;
+        mMaxEdits = maxEdits;
+    }
+
+    /**
+     * Match a candidate
+     * @param store Store of the candidate
+     * @param index Index of the candidate
+     * @param keys Keys of the query
+     * @param length Number of keys
+     * @return The least number of edits or -1 if there are more than allowed
+     */
+    int match(PredictionStore store, int index, int[] keys, int length){
+        return match(store, index, 0, keys, length);
+    }
+
+    /**
+     * Match a candidate from one of its keys on, e.g. the start of a word
+     * @param store Store of the candidate
+     * @param index Index of the candidate
+     * @param from Number of leading keys of the candidate to skip
+     * @param keys Keys of the query
+     * @param length Number of keys
+     * @return The least number of edits or -1 if there are more than allowed
+     */
+    int match(PredictionStore store, int index, int from, int[] keys, int length){
+        int encodingLength = store.getLength(index);
+        int start = 0;
+        for(int skipped = 0; skipped < from && start < encodingLength; start++)
+            if(Utils.mapInput(mInputType, store.getChar(index, start)) != -1)
+                skipped++;
+        mStart = start;
+
+        if(mRow.length <= length){
+            mRow = new int[length + 1];
+            mNext = new int[length + 1];
+        }
+        int[] row = mRow, next = mNext;
+        for(int i = 0; i <= length; i++)
+            row[i] = i;
+
+        int best = Integer.MAX_VALUE;
+        int extent = 0;
+        for(int c = start, pos = 0; c < encodingLength; c++){
+            int key = Utils.mapInput(mInputType, store.getChar(index, c));
+            if(key == -1)
+                continue;
+            int min = step(row, next, keys, length, key);
+            int[] swap = row;
+            row = next;
+            next = swap;
+            pos++;
+            // Ties go to the prefix closest to the length of the query
+            if(row[length] < best || (row[length] == best && pos <= length)){
+                best = row[length];
+                extent = pos;
+            }
+            if(min > mMaxEdits)
+                break;
+        }
+        mExtent = extent;
+        return best <= mMaxEdits ? best : -1;
+    }
+
+    /**
+     * Get the number of keys of the prediction that the last match covered
+     * @return The extent
+     */
+    int getExtent(){
+        return mExtent;
+    }
+
+    /**
+     * Get the positions of the keys that the last match covered
+     * @param store Store of the candidate
+     * @param index Index of the candidate
+     * @return The positions, as many as the extent
+     */
+    short[] getAlignment(PredictionStore store, int index){
+        short[] alignment = new short[mExtent];
+        for(int c = mStart, pos = 0; pos < mExtent; c++)
+            if(Utils.mapInput(mInputType, store.getChar(index, c)) != -1)
+                alignment[pos++] = (short) store.getPosition(index, c);
+        return alignment;
+    }
+
+    /**
+     * Extend the distances between the prefixes of the query and the keys seen so far by one key
+     * @param row Distances so far, row[i] is the one of the first i keys of the query
+     * @param next Receives the new distances
+     * @return The smallest of the new distances
+     */
+    static int step(int[] row, int[] next, int[] keys, int length, int key){
+        next[0] = row[0] + 1;
+        int min = next[0];
+        for(int i = 1; i <= length; i++){
+            int d = Math.min(row[i], next[i - 1]) + 1;
+            next[i] = Math.min(d, row[i - 1] + (keys[i - 1] == key ? 0 : 1));
+            min = Math.min(min, next[i]);
+        }
+        return min;
+    }
+}
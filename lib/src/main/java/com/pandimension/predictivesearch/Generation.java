@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Internal immutable generation of the index. The Predictor publishes a new generation after
+ * every update and readers query whichever generation was current when they started, without
+ * taking any locks. Writers derive the next generation with an {@link Editor} which copies only
+ * what it touches. Looking up the predictions of a query is left to the {@link IndexEngine},
+ * apart from the word matches of separated fields which are kept in a {@link WordIndex} and the
+ * substring matches which are kept in a {@link GramIndex}.
+ */
+final class Generation {
+    final int mNumber;
+    /* Number of updates that led to this generation, compaction keeps it since it doesn't
+       change the results of any query */
+    final int mVersion;
+    final PredictionStore mStore;
+    final int mCount;
+    /* The predictions before this index are in rank order: by item as per
+       Prediction#compareItems, the predictions of an item together and best level first */
+    final int mRanked;
+    final PostingList mRemoved;
+    final IndexEngine.Index mIndex;
+    /* Matches of separated fields that don't start at the beginning */
+    final WordIndex mWords;
+    /* Matches anywhere in the fields matched as substrings */
+    final GramIndex mGrams;
+
+    /**
+     * Create an empty generation
+     * @param capacity Expected number of predictions
+     * @param index Empty index
+     * @param keys Number of distinct keys
+     */
+    Generation(int capacity, IndexEngine.Index index, int keys){
+        this(0, 0, new PredictionStore(capacity), 0, new PostingList(), index, new WordIndex(keys),
+                new GramIndex(keys));
+    }
+
+    /**
+     * Create a generation backed by an index file. The cells and the predictions are read from
+     * the file in place
+     * @param file The index file
+     */
+    Generation(IndexFile file){
+        this(0, 0, new PredictionStore(file), file.getCount(), new PostingList(), ColumnEngine.map(file),
+                file.mapWords(), file.mapGrams());
+    }
+
+    private Generation(int number, int version, PredictionStore store, int ranked, PostingList removed,
+                       IndexEngine.Index index, WordIndex words, GramIndex grams){
+        mNumber = number;
+        mVersion = version;
+        mStore = store;
+        mCount = store.size();
+        mRanked = ranked;
+        mRemoved = removed;
+        mIndex = index;
+        mWords = words;
+        mGrams = grams;
+    }
+
+    /**
+     * Get the number of removed predictions that still occupy a slot. Readers of older
+     * generations may see a few more than were removed at this generation
+     * @return The number of tombstones
+     */
+    int getTombstones(){
+        return mRemoved.cardinality();
+    }
+
+    /**
+     * Get the length of the longest encoding
+     * @return The depth
+     */
+    int getDepth(){
+        return mIndex.getDepth();
+    }
+
+    /**
+     * Get the key sequences of the predictions, e.g. to verify the candidates of a query
+     * @param inputType Input type of the encodings
+     * @return The key sequences, empty for the indices that don't belong to this generation
+     */
+    IndexEngine.Keys getKeys(final Predictor.InputType inputType){
+        return new IndexEngine.Keys() {
+            @Override
+            public int length(int index) {
+                return index < mCount ? mStore.getLength(index) : 0;
+            }
+
+            @Override
+            public int get(int index, int[] buffer) {
+                return index < mCount ? keysOf(mStore, inputType, index, buffer) : 0;
+            }
+        };
+    }
+
+    /*
+     * Map the encoding of a prediction to its keys
+     */
+    private static int keysOf(PredictionStore store, Predictor.InputType inputType, int index, int[] buffer){
+        int count = store.getLength(index);
+        int length = 0;
+        for(int c = 0; c < count; c++){
+            int key = Utils.mapInput(inputType, store.getChar(index, c));
+            if(key != -1)
+                buffer[length++] = key;
+        }
+        return length;
+    }
+
+    /**
+     * Create a view of a prediction. Only indices less than {@link #mCount} belong to this
+     * generation
+     * @param index The index
+     * @return The prediction
+     */
+    Prediction getPrediction(int index){
+        return mStore.get(index);
+    }
+
+    /**
+     * Prepares the next generation. Must be used by one writer at a time and always on the
+     * latest generation since it appends into arrays that are shared with older generations.
+     * It provides the key sequences of its predictions to the index editor.
+     */
+    static final class Editor implements IndexEngine.Keys {
+        private final Generation mBase;
+        private final Predictor.InputType mInputType;
+        private final IndexEngine.Editor mIndex;
+        private final WordIndex.Editor mWords;
+        private final GramIndex.Editor mGrams;
+        private final PredictionStore.Writer mStore;
+        private PostingList mRemoved;
+        private int mRanked;
+
+        Editor(Generation base, Predictor.InputType inputType){
+            mBase = base;
+            mInputType = inputType;
+            mStore = new PredictionStore.Writer(base.mStore);
+            mRemoved = base.mRemoved;
+            mRanked = base.mRanked;
+            mIndex = base.mIndex.edit(this);
+            mWords = base.mWords.edit(this);
+            mGrams = base.mGrams.edit(this);
+        }
+
+        /**
+         * Append a prediction without indexing it. Older generations never read past their
+         * count so it is written in place
+         * @param source Store holding the prediction, e.g. the encodings of an item
+         * @param index Index of the prediction in the store
+         * @return The index of the prediction
+         */
+        int add(PredictionStore source, int index){
+            return mStore.add(source, index);
+        }
+
+        /**
+         * Index an appended prediction
+         * @param index Index of the prediction
+         */
+        void index(int index){
+            mIndex.add(index);
+            mWords.add(index);
+            mGrams.add(index);
+        }
+
+        /**
+         * Index all predictions appended from the given index onwards in one go
+         * @param first Index of the first prediction
+         */
+        void indexFrom(int first){
+            int count = mStore.size();
+            if(first < count){
+                mIndex.addAll(first, count);
+                mWords.addAll(first, count);
+                mGrams.addAll(first, count);
+            }
+        }
+
+        /**
+         * Unindex a prediction and mark it as removed. It stays in the array for the readers of
+         * older generations
+         * @param index Index of the prediction
+         */
+        void remove(int index){
+            mIndex.remove(index);
+            mWords.remove(index);
+            mGrams.remove(index);
+            mRemoved = mRemoved.with(index);
+        }
+
+        /**
+         * Unindex a batch of predictions and mark them as removed. Every list is changed once
+         * @param indices Indices of the predictions in ascending order
+         * @param count Number of indices to take from the array
+         */
+        void removeAll(int[] indices, int count){
+            if(count == 0)
+                return;
+            mIndex.removeAll(indices, count);
+            mWords.removeAll(indices, count);
+            mGrams.removeAll(indices, count);
+            mRemoved = mRemoved.or(new PostingList().withAll(indices, count));
+        }
+
+        /**
+         * Mark all the predictions appended so far as being in rank order
+         */
+        void markRanked(){
+            mRanked = mStore.size();
+        }
+
+        /**
+         * Get the store including the predictions appended by this editor
+         * @return The store
+         */
+        PredictionStore getStore(){
+            return mStore;
+        }
+
+        /**
+         * Get the number of predictions including the ones appended by this editor
+         * @return The count
+         */
+        int size(){
+            return mStore.size();
+        }
+
+        @Override
+        public int length(int index){
+            return mStore.getLength(index);
+        }
+
+        @Override
+        public int get(int index, int[] buffer){
+            return keysOf(mStore, mInputType, index, buffer);
+        }
+
+        /**
+         * Create the new generation. The editor must not be used afterwards
+         * @return The generation
+         */
+        Generation publish(){
+            return new Generation(mBase.mNumber + 1, mBase.mVersion + 1, mStore.publish(), mRanked, mRemoved,
+                    mIndex.publish(), mWords.publish(), mGrams.publish());
+        }
+
+        /**
+         * Create the new generation as the successor of another one. Used when the editor was
+         * started on a detached generation, e.g. for compaction. The predictions must be the
+         * same as the ones of the other generation, hence the version is kept
+         * @param previous The generation that will be replaced
+         * @return The generation
+         */
+        Generation publishAfter(Generation previous){
+            return new Generation(previous.mNumber + 1, previous.mVersion, mStore.publish(), mRanked, mRemoved,
+                    mIndex.publish(), mWords.publish(), mGrams.publish());
+        }
+    }
+}
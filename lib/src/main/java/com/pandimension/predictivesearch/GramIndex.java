@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+
+/**
+ * Internal index of the fields matched anywhere, see {@link Predictor.Builder#substringMatch}.
+ * Every run of {@link #getGramLength() n} consecutive keys of a field is encoded as a number
+ * and there is a posting list per such gram, holding the fields that contain it. The grams of a
+ * query that don't overlap, along with its last one, are intersected and the few candidates left
+ * are verified by a {@link Matcher}. Trigrams are used when the keys are few, like on a number
+ * keypad, and bigrams otherwise so that there are a couple of thousand lists either way. Queries
+ * shorter than a gram only match from the start of the fields. Snapshots are immutable like the
+ * ones of the {@link IndexEngine}.
+ */
+final class GramIndex {
+    private final static int MAX_GRAMS = 4096;
+
+    final PostingList[] mGrams;
+    private final int mKeyCount;
+    private final int mLength;
+    private final boolean mEmpty;
+
+    /**
+     * Create an empty index
+     * @param keys Number of distinct keys
+     */
+    GramIndex(int keys){
+        this(keys, new PostingList[gramCount(keys)]);
+    }
+
+    GramIndex(int keys, PostingList[] grams){
+        mKeyCount = keys;
+        mLength = gramLength(keys);
+        mGrams = grams;
+        boolean empty = true;
+        for(PostingList list: grams)
+            if(list != null && !list.isEmpty())
+                empty = false;
+        mEmpty = empty;
+    }
+
+    /**
+     * Get the number of keys of a gram
+     * @param keys Number of distinct keys
+     * @return 3 or 2
+     */
+    static int gramLength(int keys){
+        return keys * keys * keys <= MAX_GRAMS ? 3 : 2;
+    }
+
+    /**
+     * Get the number of posting lists
+     * @param keys Number of distinct keys
+     * @return The number of distinct grams
+     */
+    static int gramCount(int keys){
+        return gramLength(keys) == 3 ? keys * keys * keys : keys * keys;
+    }
+
+    int getGramLength(){
+        return mLength;
+    }
+
+    /**
+     * Check if no field is indexed
+     * @return True if empty
+     */
+    boolean isEmpty(){
+        return mEmpty;
+    }
+
+    /**
+     * Find the fields that may contain a query
+     * @param keys The keys of the query
+     * @param length Number of keys
+     * @param from First index of the window, see {@link PostingList#slice(int, int)}
+     * @param to End of the window
+     * @return The candidates within the window or null if there are none or the query is shorter
+     * than a gram
+     */
+    PostingList match(int[] keys, int length, int from, int to){
+        if(mEmpty || length < mLength)
+            return null;
+        // The candidates are verified anyway, a few of them aren't worth another intersection
+        PostingList partition = null;
+        for(int pos = 0; pos <= length - mLength; pos += mLength){
+            partition = narrow(partition, keys, pos, from, to);
+            if(partition == null)
+                return null;
+            if(partition.cardinality() <= IndexEngine.VERIFY_MAX)
+                return partition;
+        }
+        if(length % mLength != 0)
+            partition = narrow(partition, keys, length - mLength, from, to);
+        return partition;
+    }
+
+    Editor edit(Generation.Editor source){
+        return new Editor(this, source);
+    }
+
+    /* Private Methods */
+
+    /*
+     * Intersect the partition with the list of a gram, the first list is cut down to the window
+     */
+    private PostingList narrow(PostingList partition, int[] keys, int pos, int from, int to){
+        PostingList cell = mGrams[gramOf(keys, pos, mKeyCount, mLength)];
+        if(cell == null)
+            return null;
+        partition = partition == null ? cell.slice(from, to) : partition.and(cell);
+        return partition.isEmpty() ? null : partition;
+    }
+
+    private static int gramOf(int[] keys, int pos, int keyCount, int length){
+        int gram = 0;
+        for(int i = 0; i < length; i++)
+            gram = gram * keyCount + keys[pos + i];
+        return gram;
+    }
+
+    /**
+     * Prepares the next snapshot, copying the array of lists on the first change
+     */
+    static final class Editor {
+        private final Generation.Editor mSource;
+        private final int mKeyCount;
+        private final int mLength;
+        private PostingList[] mGrams;
+        /* The stamp of the last call that touched each list to touch it once, and the lists
+           touched by the prediction being edited. The same prediction can be added and removed
+           by one editor, hence every call gets a new stamp */
+        private final int[] mStamps;
+        private int mStamp;
+        private int[] mTouched = new int[16];
+        private int mTouchedCount;
+        private boolean mOwned;
+        private int[] mBuffer = new int[16];
+
+        private Editor(GramIndex base, Generation.Editor source){
+            mSource = source;
+            mKeyCount = base.mKeyCount;
+            mLength = base.mLength;
+            mGrams = base.mGrams;
+            mStamps = new int[mGrams.length];
+        }
+
+        void add(int index){
+            if(!gramsOf(index))
+                return;
+            own();
+            for(int i = 0; i < mTouchedCount; i++){
+                int list = mTouched[i];
+                mGrams[list] = mGrams[list] == null ? new PostingList().with(index) : mGrams[list].with(index);
+            }
+        }
+
+        void addAll(int first, int end){
+            update(null, first, end, false);
+        }
+
+        void removeAll(int[] indices, int count){
+            update(indices, 0, count, true);
+        }
+
+        void remove(int index){
+            if(!gramsOf(index))
+                return;
+            own();
+            for(int i = 0; i < mTouchedCount; i++){
+                int list = mTouched[i];
+                if(mGrams[list] != null)
+                    mGrams[list] = mGrams[list].without(index);
+            }
+        }
+
+        GramIndex publish(){
+            return new GramIndex(mKeyCount, mGrams);
+        }
+
+        /*
+         * Every list is extended or shrunk once with an exactly sized batch of indices. The
+         * indices, in ascending order, are taken from the array or, when it is null, are the range itself
+         */
+        private void update(int[] indices, int from, int to, boolean remove){
+            int[][] batches = new int[mGrams.length][];
+            int[] counts = new int[mGrams.length];
+            for(int i = from; i < to; i++){
+                int index = indices == null ? i : indices[i];
+                if(!gramsOf(index))
+                    continue;
+                for(int t = 0; t < mTouchedCount; t++){
+                    int list = mTouched[t];
+                    if(batches[list] == null)
+                        batches[list] = new int[16];
+                    else if(counts[list] == batches[list].length)
+                        batches[list] = Arrays.copyOf(batches[list], counts[list] * 2);
+                    batches[list][counts[list]++] = index;
+                }
+            }
+
+            for(int list = 0; list < counts.length; list++){
+                if(counts[list] == 0)
+                    continue;
+                own();
+                if(remove){
+                    if(mGrams[list] != null)
+                        mGrams[list] = mGrams[list].withoutAll(batches[list], counts[list]);
+                }else{
+                    mGrams[list] = (mGrams[list] == null ? new PostingList() : mGrams[list])
+                            .withAll(batches[list], counts[list]);
+                }
+            }
+        }
+
+        /*
+         * Collect the lists of a prediction, returns false if it isn't matched anywhere
+         */
+        private boolean gramsOf(int index){
+            if(!mSource.getStore().isSubstringMatched(index))
+                return false;
+            int length = mSource.length(index);
+            if(mBuffer.length < length)
+                mBuffer = new int[Math.max(length, mBuffer.length * 2)];
+            length = mSource.get(index, mBuffer);
+
+            mStamp++;
+            mTouchedCount = 0;
+            for(int pos = 0; pos + mLength <= length; pos++){
+                int list = gramOf(mBuffer, pos, mKeyCount, mLength);
+                if(mStamps[list] == mStamp)
+                    continue;
+                mStamps[list] = mStamp;
+                if(mTouchedCount == mTouched.length)
+                    mTouched = Arrays.copyOf(mTouched, mTouchedCount * 2);
+                mTouched[mTouchedCount++] = list;
+            }
+            return mTouchedCount > 0;
+        }
+
+        private void own(){
+            if(!mOwned){
+                mGrams = mGrams.clone();
+                mOwned = true;
+            }
+        }
+    }
+
+    /**
+     * Verifies the candidates of a query and works out the positions that matched. The first
+     * occurrence of the query in the keys of the field is taken.
+     *
+     * Not thread-safe, use one per query.
+     */
+    static final class Matcher {
+        private final Predictor.InputType mInputType;
+        private int[] mSequence = new int[16];
+        private int[] mOffsets = new int[16];
+
+        Matcher(Predictor.InputType inputType){
+            mInputType = inputType;
+        }
+
+        /**
+         * Match a candidate
+         * @param store Store of the candidate
+         * @param index Index of the candidate
+         * @param keys Keys of the query
+         * @param length Number of keys
+         * @return The matched positions or null if the candidate doesn't contain the query
+         */
+        short[] match(PredictionStore store, int index, int[] keys, int length){
+            int encodingLength = store.getLength(index);
+            if(mSequence.length < encodingLength){
+                mSequence = new int[encodingLength];
+                mOffsets = new int[encodingLength];
+            }
+            int sequenceLength = 0;
+            for(int c = 0; c < encodingLength; c++){
+                int key = Utils.mapInput(mInputType, store.getChar(index, c));
+                if(key != -1){
+                    mOffsets[sequenceLength] = c;
+                    mSequence[sequenceLength++] = key;
+                }
+            }
+
+            for(int start = 0; start + length <= sequenceLength; start++){
+                int i = 0;
+                while(i < length && mSequence[start + i] == keys[i]) i++;
+                if(i == length){
+                    short[] alignment = new short[length];
+                    for(int pos = 0; pos < length; pos++)
+                        alignment[pos] = (short) store.getPosition(index, mOffsets[start + pos]);
+                    return alignment;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Strategy for indexing the key sequences of the predictions and finding the ones that start
+ * with the keys of a query. Pass one to {@link Predictor#Predictor(Predictor.InputType, IndexEngine)}.
+ *
+ * {@link #COLUMNS}, the default, keeps a posting list per key and position and intersects the
+ * lists of the query keys. It updates cheaply and shines when queries narrow the candidates down
+ * quickly. {@link #TRIE} sorts the key sequences into a compact array-backed trie whose nodes
+ * know the range of predictions below them, hence a query is a walk down one path with no
+ * intersections at all. Recently added predictions are checked one by one until the trie is
+ * rebuilt, so it suits data that is loaded in bulk and updated now and then.
+ *
+ * The engines work on internal snapshots of the index, hence only the ones provided here can be
+ * used.
+ */
+public abstract class IndexEngine {
+    /**
+     * Posting lists per key and position, intersected per query
+     */
+    public final static IndexEngine COLUMNS = new ColumnEngine();
+    /**
+     * Compact trie with precomputed ranges, walked per query
+     */
+    public final static IndexEngine TRIE = new TrieEngine();
+
+    final static PostingList EMPTY = new PostingList();
+    /* Candidates few enough to check their keys directly instead of intersecting more lists */
+    final static int VERIFY_MAX = 128;
+
+    IndexEngine(){}
+
+    /**
+     * Create an empty index
+     * @param keys Number of distinct keys
+     * @return The index
+     */
+    abstract Index newIndex(int keys);
+
+    /**
+     * Source of the key sequences of the predictions being indexed
+     */
+    interface Keys {
+        /**
+         * Get an upper bound of the length of a key sequence
+         * @param index Index of the prediction
+         * @return The length of its encoding
+         */
+        int length(int index);
+
+        /**
+         * Get the key sequence of a prediction
+         * @param index Index of the prediction
+         * @param buffer Receives the keys, at least {@link #length(int)} long
+         * @return Number of keys
+         */
+        int get(int index, int[] buffer);
+    }
+
+    /**
+     * Immutable snapshot of an index. Indices at or beyond the count of the generation that owns
+     * the snapshot may be returned and must be ignored by the readers.
+     */
+    static abstract class Index {
+        /**
+         * Get the length of the longest key sequence. Query keys beyond it are ignored
+         * @return The depth
+         */
+        abstract int getDepth();
+
+        /**
+         * Find the predictions whose key sequences start with the keys of a query
+         * @param keys Keys of the query
+         * @param from Number of keys already matched by the partition
+         * @param to Number of keys to match, at most {@link #getDepth()}
+         * @param partition Predictions matching the first from keys or null if from is 0. Engines
+         *                  that can't narrow it down start from scratch
+         * @return The predictions or null if to is 0
+         */
+        abstract PostingList match(int[] keys, int from, int to, PostingList partition);
+
+        /**
+         * Find the predictions whose key sequences start with all the keys of a query. Engines may
+         * plan the query, e.g. check some of the keys on the key sequences of a few candidates
+         * instead of matching them in the index
+         * @param keys Keys of the query
+         * @param length Number of keys, at most {@link #getDepth()}
+         * @param source Key sequences of the predictions
+         * @param metrics Receives the candidates left after every step of the plan, null for none
+         * @return The predictions or null if length is 0
+         */
+        PostingList match(int[] keys, int length, Keys source, PredictorMetrics metrics){
+            return match(keys, length, source, metrics, 0, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Find the predictions of a window whose key sequences start with all the keys of a
+         * query, see {@link #match(int[], int, Keys, PredictorMetrics)}. Queries that need a few
+         * predictions match the windows in turn until they have enough
+         * @param from First index of the window, see {@link PostingList#slice(int, int)}
+         * @param to End of the window
+         * @return The predictions of the window or null if length is 0
+         */
+        PostingList match(int[] keys, int length, Keys source, PredictorMetrics metrics, int from, int to){
+            PostingList partition = match(keys, 0, length, null);
+            if(partition == null)
+                return null;
+            partition = partition.slice(from, to);
+            if(metrics != null)
+                metrics.onCandidates(length, partition.cardinality());
+            return partition;
+        }
+
+        /**
+         * Match the predictions whose keys start within a number of edits of the query, see
+         * {@link FuzzyMatcher}
+         * @param keys The keys of the query, more than maxEdits of them
+         * @param length Number of keys
+         * @param maxEdits Maximum number of substitutions, insertions and deletions
+         * @return The matches and possibly more that the caller must verify, null if none
+         */
+        abstract PostingList matchFuzzy(int[] keys, int length, int maxEdits);
+
+        /**
+         * Check if matching one key at a time costs the same as matching all of them at once,
+         * i.e. the partition is narrowed down instead of starting from scratch
+         * @return True if so
+         */
+        boolean isIncremental(){
+            return false;
+        }
+
+        /**
+         * Estimate the heap taken by the posting lists or nodes of the index
+         * @return Bytes per column for indices made of columns, else a single total
+         */
+        abstract long[] estimateBytes();
+
+        /**
+         * Create an editor for the next snapshot
+         * @param source Key sequences of the predictions, including the ones appended later
+         * @return The editor
+         */
+        abstract Editor edit(Keys source);
+
+        /**
+         * Stream the matches of a query in index order
+         * @param keys Keys of the query
+         * @param length Number of keys
+         * @param generation Generation owning this snapshot
+         * @param consumer Receives the matches
+         */
+        void stream(int[] keys, int length, Generation generation, PredictionConsumer consumer){
+            int depth = Math.min(length, getDepth());
+            PostingList partition = match(keys, 0, depth, null);
+            if(partition == null)
+                return;
+            for(int index = partition.next(0); index >= 0 && index < generation.mCount;
+                index = partition.next(index + 1)){
+                if(!consumer.onPrediction(generation.getPrediction(index), depth, index))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Prepares the next snapshot of an index. Must be used by one writer at a time and always on
+     * the latest snapshot. A prediction added by an editor can be removed by the same editor,
+     * compaction replays the removals on the editor that rebuilt the index.
+     */
+    static abstract class Editor {
+        /**
+         * Index a prediction appended after all the indexed ones
+         * @param index Index of the prediction
+         */
+        abstract void add(int index);
+
+        /**
+         * Index a batch of predictions appended after all the indexed ones
+         * @param first Index of the first prediction
+         * @param end Index after the last prediction
+         */
+        abstract void addAll(int first, int end);
+
+        /**
+         * Unindex a prediction
+         * @param index Index of the prediction
+         */
+        abstract void remove(int index);
+
+        /**
+         * Unindex a batch of predictions
+         * @param indices Indices of the predictions in ascending order
+         * @param count Number of indices to take from the array
+         */
+        void removeAll(int[] indices, int count){
+            for(int i = 0; i < count; i++)
+                remove(indices[i]);
+        }
+
+        /**
+         * Create the new snapshot. The editor must not be used afterwards
+         * @return The snapshot
+         */
+        abstract Index publish();
+    }
+}
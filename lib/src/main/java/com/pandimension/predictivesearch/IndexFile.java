@@ -0,0 +1,469 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Internal binary snapshot of a generation. The file is memory-mapped when opened and nothing is
+ * parsed apart from the header and the chunk headers of the cells: posting lists are read in
+ * place and so are the predictions, hence opening a large index costs next to nothing and the
+ * pages are shared with the OS cache. All numbers are big-endian.
+ *
+ * Layout: header (magic, version, input type, labels, field types matched anywhere, counts), item
+ * ids, encodings, alignments, word starts, prediction records, item offsets, cells, cell directory
+ * and a fixed size trailer holding the offsets of the sections. The cells of the {@link WordIndex}
+ * follow the columns as one row of word starts and then a row per first key of the pairs and of
+ * the bigrams, followed by the grams of the {@link GramIndex} in rows of as many cells. The
+ * predictions are written in rank order, see {@link Generation#mRanked}.
+ */
+final class IndexFile {
+    final static int MAGIC = 0x50534958; // "PSIX"
+    final static int VERSION = 6;
+
+    /* item, label, level, field index, encoding offset, encoding length, words offset, word count,
+       substring flag */
+    private final static int RECORD_INTS = 9;
+    private final static int TRAILER_INTS = 7;
+    /* Locks taken the first time an item is resolved, spread by item */
+    private final static int RESOLVE_LOCKS = 64;
+
+    private final ByteBuffer mBuffer;
+    private final Predictor.InputType mInputType;
+    private final LinkedHashMap<String, DataItem.FieldType> mLabels;
+    private final EnumSet<DataItem.FieldType> mSubstrings;
+    private final String[] mLabelNames;
+    private final int mKeys;
+    private final int mDepth;
+    private final int mCount;
+    private final int mItemCount;
+    private final int mEncodingsOffset;
+    private final int mAlignmentsOffset;
+    private final int mWordsOffset;
+    private final int mRecordsOffset;
+    private final int mItemOffsetsOffset;
+    private final DataItemResolver mResolver;
+    /* Resolved lazily, all the predictions of an item share one instance */
+    private final AtomicReferenceArray<DataItem> mItems;
+    private final Object[] mResolveLocks;
+
+    private IndexFile(ByteBuffer buffer, DataItemResolver resolver) throws IOException {
+        mBuffer = buffer;
+        mResolver = resolver;
+        try {
+            int end = buffer.capacity() - TRAILER_INTS * 4;
+            if(end < 0 || buffer.getInt(0) != MAGIC || buffer.getInt(end + (TRAILER_INTS - 1) * 4) != MAGIC)
+                throw new IOException("Not a predictor index");
+            if(buffer.getInt(4) != VERSION)
+                throw new IOException("Unsupported index version " + buffer.getInt(4));
+
+            int offset = 8;
+            mInputType = Predictor.InputType.values()[buffer.getInt(offset)];
+            int labelCount = buffer.getInt(offset + 4);
+            offset += 8;
+            mLabels = new LinkedHashMap<String, DataItem.FieldType>();
+            mLabelNames = new String[labelCount];
+            for(int i = 0; i < labelCount; i++){
+                mLabelNames[i] = readString(buffer, offset);
+                offset += 4 + mLabelNames[i].length() * 2;
+                mLabels.put(mLabelNames[i], DataItem.FieldType.values()[buffer.get(offset++)]);
+            }
+            mSubstrings = EnumSet.noneOf(DataItem.FieldType.class);
+            int substrings = buffer.getInt(offset);
+            for(DataItem.FieldType type: DataItem.FieldType.values())
+                if((substrings & (1 << type.ordinal())) != 0)
+                    mSubstrings.add(type);
+            mKeys = buffer.getInt(offset + 4);
+            mDepth = buffer.getInt(offset + 8);
+
+            mItemCount = buffer.getInt(end);
+            mCount = buffer.getInt(end + 4);
+            mEncodingsOffset = buffer.getInt(end + 8);
+            mAlignmentsOffset = buffer.getInt(end + 12);
+            mWordsOffset = buffer.getInt(end + 16);
+            mRecordsOffset = buffer.getInt(end + 20);
+            mItemOffsetsOffset = mRecordsOffset + mCount * RECORD_INTS * 4;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt predictor index", e);
+        }
+        mItems = new AtomicReferenceArray<DataItem>(mItemCount);
+        mResolveLocks = new Object[RESOLVE_LOCKS];
+        for(int i = 0; i < RESOLVE_LOCKS; i++)
+            mResolveLocks[i] = new Object();
+    }
+
+    /**
+     * Map an index file
+     * @param file The file written by {@link #write(File, Predictor.InputType, LinkedHashMap, Generation)}
+     * @param resolver Resolves the item ids stored in the file
+     * @return The index file
+     * @throws IOException If the file can't be read or is not an index
+     */
+    static IndexFile open(File file, DataItemResolver resolver) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Index is too large to be mapped");
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new IndexFile(buffer, resolver);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a generation. It must be compact i.e. without tombstones or indices at or beyond
+     * its count and indexed by {@link IndexEngine#COLUMNS}, see {@link Predictor#writeIndex(File)}.
+     * The file is written next to the target, synced and renamed over it, hence a Predictor that
+     * mapped the target keeps reading the old file and a failed write leaves it untouched
+     */
+    static void write(File file, Predictor.InputType inputType,
+                      LinkedHashMap<String, DataItem.FieldType> labels,
+                      EnumSet<DataItem.FieldType> substrings, Generation generation)
+            throws IOException {
+        ColumnEngine.ColumnIndex columns = (ColumnEngine.ColumnIndex) generation.mIndex;
+        int keys = columns.getKeys();
+        int count = generation.mCount;
+        PredictionStore store = generation.mStore;
+        HashMap<String, Integer> labelIndices = new HashMap<String, Integer>();
+        for(String label: labels.keySet())
+            labelIndices.put(label, labelIndices.size());
+
+        File target = file.getAbsoluteFile();
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        boolean written = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputType.ordinal());
+            out.writeInt(labels.size());
+            for(Map.Entry<String, DataItem.FieldType> entry: labels.entrySet()){
+                writeString(out, entry.getKey());
+                out.writeByte(entry.getValue().ordinal());
+            }
+            int substringMask = 0;
+            for(DataItem.FieldType type: substrings)
+                substringMask |= 1 << type.ordinal();
+            out.writeInt(substringMask);
+            out.writeInt(keys);
+            out.writeInt(generation.getDepth());
+
+            // Items are stored once, the predictions refer to them by position
+            LinkedHashMap<String, Integer> items = new LinkedHashMap<String, Integer>();
+            List<Integer> itemOffsets = new ArrayList<Integer>();
+            int[] itemOf = new int[count];
+            for(int index = 0; index < count; index++){
+                String id = store.getItemId(index);
+                Integer item = items.get(id);
+                if(item == null){
+                    item = items.size();
+                    items.put(id, item);
+                    itemOffsets.add(out.size());
+                    writeString(out, id);
+                }
+                itemOf[index] = item;
+            }
+
+            int encodingsOffset = out.size();
+            for(int index = 0; index < count; index++)
+                for(int pos = 0; pos < store.getLength(index); pos++)
+                    out.writeChar(store.getChar(index, pos));
+
+            // One alignment per encoded char as unsigned shorts, hence both share the offsets
+            int alignmentsOffset = out.size();
+            for(int index = 0; index < count; index++)
+                for(int pos = 0; pos < store.getLength(index); pos++)
+                    out.writeShort(store.getPosition(index, pos));
+
+            // Word starts of the predictions matched by words, as unsigned shorts
+            int wordsOffset = out.size();
+            for(int index = 0; index < count; index++)
+                for(int word = 0; word < store.getWordCount(index); word++)
+                    out.writeShort(store.getWord(index, word));
+
+            int recordsOffset = out.size();
+            int encodingOffset = 0;
+            int wordOffset = 0;
+            for(int index = 0; index < count; index++){
+                out.writeInt(itemOf[index]);
+                out.writeInt(labelIndices.get(store.getLabel(index)));
+                out.writeInt(store.getLevel(index));
+                out.writeInt(store.getFieldIndex(index));
+                out.writeInt(encodingOffset);
+                out.writeInt(store.getLength(index));
+                encodingOffset += store.getLength(index);
+                int words = store.getWordCount(index);
+                out.writeInt(wordOffset);
+                out.writeInt(words);
+                if(words > 0)
+                    wordOffset += words;
+                out.writeInt(store.isSubstringMatched(index) ? 1 : 0);
+            }
+            for(int itemOffset: itemOffsets)
+                out.writeInt(itemOffset);
+
+            int depth = generation.getDepth();
+            int rows = rows(depth, keys);
+            int[] directory = new int[rows * keys];
+            for(int pos = 0; pos < rows; pos++){
+                for(int key = 0; key < keys; key++){
+                    PostingList cell = pos < depth ? columns.getCell(pos, key) :
+                            pos == depth ? generation.mWords.mStarts[key] :
+                                    pos <= depth + keys ? generation.mWords.mPairs[(pos - depth - 1) * keys + key] :
+                                            pos <= depth + 2 * keys ?
+                                                    generation.mWords.mBigrams[(pos - depth - 1 - keys) * keys + key] :
+                                                    generation.mGrams.mGrams[(pos - depth - 1 - 2 * keys) * keys + key];
+                    directory[pos * keys + key] = cell == null ? -1 : out.size();
+                    if(cell != null)
+                        cell.write(out);
+                }
+            }
+            for(int offset: directory)
+                out.writeInt(offset);
+
+            out.writeInt(items.size());
+            out.writeInt(count);
+            out.writeInt(encodingsOffset);
+            out.writeInt(alignmentsOffset);
+            out.writeInt(wordsOffset);
+            out.writeInt(recordsOffset);
+            out.writeInt(MAGIC);
+            // The written size saturates instead of overflowing
+            if(out.size() == Integer.MAX_VALUE)
+                throw new IOException("Index is too large to be written");
+            out.flush();
+            stream.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if(!written)
+                temp.delete();
+        }
+        if(!temp.renameTo(target)){
+            temp.delete();
+            throw new IOException("Failed to replace " + target);
+        }
+    }
+
+    Predictor.InputType getInputType(){
+        return mInputType;
+    }
+
+    LinkedHashMap<String, DataItem.FieldType> getLabels(){
+        return mLabels;
+    }
+
+    /**
+     * Get the field types that were matched anywhere
+     * @return The field types
+     */
+    EnumSet<DataItem.FieldType> getSubstrings(){
+        return mSubstrings;
+    }
+
+    /**
+     * Get the number of keys per position the cells were written for
+     * @return The number of keys
+     */
+    int getKeys(){
+        return mKeys;
+    }
+
+    /**
+     * Get the number of predictions
+     * @return The count
+     */
+    int getCount(){
+        return mCount;
+    }
+
+    /**
+     * Get the number of items
+     * @return The count
+     */
+    int getItemCount(){
+        return mItemCount;
+    }
+
+    /**
+     * Map the cells of the index. The posting lists read straight from the file
+     * @return The columns
+     */
+    PostingList[][] mapColumns(){
+        PostingList[][] columns = new PostingList[mDepth][];
+        for(int pos = 0; pos < mDepth; pos++)
+            columns[pos] = mapRow(pos);
+        return columns;
+    }
+
+    /**
+     * Map the word index. The posting lists read straight from the file
+     * @return The word index
+     */
+    WordIndex mapWords(){
+        PostingList[] pairs = new PostingList[mKeys * mKeys];
+        PostingList[] bigrams = new PostingList[mKeys * mKeys];
+        for(int key = 0; key < mKeys; key++){
+            System.arraycopy(mapRow(mDepth + 1 + key), 0, pairs, key * mKeys, mKeys);
+            System.arraycopy(mapRow(mDepth + 1 + mKeys + key), 0, bigrams, key * mKeys, mKeys);
+        }
+        return new WordIndex(mapRow(mDepth), pairs, bigrams);
+    }
+
+    /**
+     * Map the gram index. The posting lists read straight from the file
+     * @return The gram index
+     */
+    GramIndex mapGrams(){
+        PostingList[] grams = new PostingList[GramIndex.gramCount(mKeys)];
+        for(int row = 0; row < grams.length / mKeys; row++)
+            System.arraycopy(mapRow(mDepth + 1 + 2 * mKeys + row), 0, grams, row * mKeys, mKeys);
+        return new GramIndex(mKeys, grams);
+    }
+
+    /**
+     * Get the id of the item of a prediction without resolving it
+     * @param index Index of the prediction
+     * @return The id
+     */
+    String getItemId(int index){
+        int item = mBuffer.getInt(record(index));
+        return readString(mBuffer, mBuffer.getInt(mItemOffsetsOffset + item * 4));
+    }
+
+    int getItemNumber(int index){
+        return mBuffer.getInt(record(index));
+    }
+
+    /**
+     * Get the item of a prediction. The items are resolved once and then reused
+     * @param index Index of the prediction
+     * @return The item
+     */
+    DataItem getItem(int index){
+        return resolveItem(mBuffer.getInt(record(index)), index);
+    }
+
+    String getLabel(int index){
+        return mLabelNames[mBuffer.getInt(record(index) + 4)];
+    }
+
+    int getLevel(int index){
+        return mBuffer.getInt(record(index) + 8);
+    }
+
+    int getFieldIndex(int index){
+        return mBuffer.getInt(record(index) + 12);
+    }
+
+    int getLength(int index){
+        return mBuffer.getInt(record(index) + 20);
+    }
+
+    char getChar(int index, int pos){
+        return mBuffer.getChar(mEncodingsOffset + (mBuffer.getInt(record(index) + 16) + pos) * 2);
+    }
+
+    int getPosition(int index, int pos){
+        return mBuffer.getShort(mAlignmentsOffset + (mBuffer.getInt(record(index) + 16) + pos) * 2) & 0xFFFF;
+    }
+
+    int getWordCount(int index){
+        return mBuffer.getInt(record(index) + 28);
+    }
+
+    int getWord(int index, int word){
+        return mBuffer.getShort(mWordsOffset + (mBuffer.getInt(record(index) + 24) + word) * 2) & 0xFFFF;
+    }
+
+    boolean isSubstringMatched(int index){
+        return mBuffer.getInt(record(index) + 32) != 0;
+    }
+
+    /* Private Methods */
+
+    private PostingList[] mapRow(int pos){
+        PostingList[] row = new PostingList[mKeys];
+        int directoryOffset = mBuffer.capacity() - TRAILER_INTS * 4 - rows(mDepth, mKeys) * mKeys * 4;
+        for(int key = 0; key < mKeys; key++){
+            int offset = mBuffer.getInt(directoryOffset + (pos * mKeys + key) * 4);
+            if(offset >= 0)
+                row[key] = PostingList.map(mBuffer, offset);
+        }
+        return row;
+    }
+
+    /*
+     * Rows of the cell directory: the columns, the word starts, the pairs, the bigrams and the grams
+     */
+    private static int rows(int depth, int keys){
+        return depth + 1 + 2 * keys + GramIndex.gramCount(keys) / keys;
+    }
+
+    private int record(int index){
+        return mRecordsOffset + index * RECORD_INTS * 4;
+    }
+
+    private DataItem resolveItem(int item, int index){
+        DataItem resolved = mItems.get(item);
+        if(resolved != null)
+            return resolved;
+        // The resolver is called once per item, only readers of items sharing a lock wait
+        synchronized (mResolveLocks[item % RESOLVE_LOCKS]) {
+            resolved = mItems.get(item);
+            if(resolved == null){
+                String id = getItemId(index);
+                resolved = mResolver.resolve(id);
+                if(resolved == null)
+                    throw new IllegalStateException("No data item for id " + id);
+                mItems.set(item, resolved);
+            }
+            return resolved;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(ByteBuffer buffer, int offset){
+        char[] chars = new char[buffer.getInt(offset)];
+        for(int i = 0; i < chars.length; i++)
+            chars[i] = buffer.getChar(offset + 4 + i * 2);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Internal table-driven encoder that maps text to the characters of a keypad. Every char of the
+ * BMP is looked up in a precomputed table, already lowercased, and the encoding and the positions
+ * of the encoded chars are written into buffers supplied by the caller, hence encoding allocates
+ * nothing. The tables are built on first use.
+ */
+final class KeyEncoder {
+    private final char[] mTable;
+
+    private KeyEncoder(char[] table){
+        mTable = table;
+    }
+
+    /**
+     * Get the encoder for an input type
+     * @param inputType The input type
+     * @return The encoder
+     */
+    static KeyEncoder of(Predictor.InputType inputType){
+        return inputType == Predictor.InputType.NUMBER_KEYPAD ? Keypad.ENCODER : AlphaNum.ENCODER;
+    }
+
+    /**
+     * Encode text. Chars without a key are skipped, the positions refer to the source
+     * @param source The text, only the first 65536 chars are encoded
+     * @param includeSymbols Whether to keep the symbols of the keypad
+     * @param encoding Receives the encoded chars
+     * @param positions Receives the position in the source of every encoded char, unsigned
+     * @return Number of encoded chars. If it is larger than the buffers only as many as fit
+     * were written
+     */
+    int encode(String source, boolean includeSymbols, char[] encoding, short[] positions){
+        int length = Math.min(source.length(), 0x10000);
+        int capacity = Math.min(encoding.length, positions.length);
+        int n = 0;
+        for(int pos = 0; pos < length; pos++){
+            char cc = mTable[source.charAt(pos)];
+            if(cc == 0 || (!includeSymbols && isSymbol(cc)))
+                continue;
+            if(n < capacity){
+                encoding[n] = cc;
+                positions[n] = (short) pos;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    private static boolean isSymbol(char c){
+        return c == '+' || c == '*' || c == '#' || c == '.' || c == ',' || c == '@';
+    }
+
+    private static char[] buildTable(boolean keypad){
+        char[] table = new char[0x10000];
+        for(int c = 0; c < table.length; c++){
+            char lower = Character.toLowerCase((char) c);
+            table[c] = keypad ? keypadChar(lower) : alphaNumChar(lower);
+        }
+        return table;
+    }
+
+    private static char keypadChar(char c){
+        switch(c){
+            //case ' ': return '1';
+            case 'a': case 'á': case 'à': case 'â': case 'ä': case 'ã':
+            case 'b': case 'c': case 'ç': return '2';
+            case 'd':
+            case 'e': case 'é': case 'è': case 'ê': case 'ë':
+            case 'f': return '3';
+            case 'g': case 'h':
+            case 'i': case 'í': case 'î': return '4';
+            case 'j': case 'k': case 'l': return '5';
+            case 'm': case 'n': case 'ñ':
+            case 'o': case 'ó': case 'ò':case 'ô' :case 'ö': case 'õ': return '6';
+            case 'p': case 'q': case 'r': case 's': return '7';
+            case 't':
+            case 'u': case 'ú': case 'ù': case 'ü':
+            case 'v': return '8';
+            case 'w': case 'x': case 'y': case 'z': return '9';
+            case '+': case '*': case '#': return c;
+            default: return Character.isDigit(c) ? c : 0;
+        }
+    }
+
+    private static char alphaNumChar(char c){
+        switch(c){
+            case 'á': case 'à': case 'â': case 'ä': case 'ã': return 'a';
+            case 'ç': return 'c';
+            case 'é': case 'è': case 'ê': case 'ë': return 'e';
+            case 'í': case 'î': return 'i';
+            case 'ñ': return 'n';
+            case 'ó': case 'ò':case 'ô' :case 'ö': case 'õ': return 'o';
+            case 'ú': case 'ù': case 'ü': return 'u';
+            case '.': case ',': case '@': return c;
+            default: return Character.isLetterOrDigit(c) ? c : 0;
+        }
+    }
+
+    /* Holders so that only the tables in use are built */
+
+    private static final class Keypad {
+        final static KeyEncoder ENCODER = new KeyEncoder(buildTable(true));
+    }
+
+    private static final class AlphaNum {
+        final static KeyEncoder ENCODER = new KeyEncoder(buildTable(false));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link PredictorMetrics} listener that records the events in histograms. Recording takes a
+ * few atomic increments and never locks. The histograms have power of two buckets, hence the
+ * percentiles are accurate to a factor of two which is plenty to spot regressions.
+ */
+public class MetricsRecorder implements PredictorMetrics {
+    /* Candidate counts of the steps beyond are recorded in the last histogram */
+    final static int MAX_STEPS = 16;
+
+    private final Histogram mPredict = new Histogram();
+    private final Histogram mAdd = new Histogram();
+    private final Histogram mRemove = new Histogram();
+    private final Histogram mResults = new Histogram();
+    private final Histogram[] mCandidates = new Histogram[MAX_STEPS];
+
+    public MetricsRecorder(){
+        for(int i = 0; i < MAX_STEPS; i++)
+            mCandidates[i] = new Histogram();
+    }
+
+    @Override
+    public void onPredict(long nanos, int keys, int predictions){
+        mPredict.record(nanos);
+        mResults.record(predictions);
+    }
+
+    @Override
+    public void onCandidates(int step, int candidates){
+        mCandidates[Math.min(step, MAX_STEPS) - 1].record(candidates);
+    }
+
+    @Override
+    public void onAdd(long nanos, int items){
+        mAdd.record(nanos);
+    }
+
+    @Override
+    public void onRemove(long nanos, int items){
+        mRemove.record(nanos);
+    }
+
+    /**
+     * Get the latencies of the predictions
+     * @return Histogram of nanoseconds
+     */
+    public Histogram getPredictLatency(){
+        return mPredict;
+    }
+
+    /**
+     * Get the latencies of adding and replacing items
+     * @return Histogram of nanoseconds
+     */
+    public Histogram getAddLatency(){
+        return mAdd;
+    }
+
+    /**
+     * Get the latencies of removing items
+     * @return Histogram of nanoseconds
+     */
+    public Histogram getRemoveLatency(){
+        return mRemove;
+    }
+
+    /**
+     * Get the number of predictions returned per query
+     * @return Histogram of counts
+     */
+    public Histogram getResults(){
+        return mResults;
+    }
+
+    /**
+     * Get the number of candidates left after an intersection step
+     * @param step Number of keys matched, from 1. Steps beyond {@value #MAX_STEPS} share a histogram
+     * @return Histogram of counts
+     */
+    public Histogram getCandidates(int step){
+        return mCandidates[Math.min(step, MAX_STEPS) - 1];
+    }
+
+    /**
+     * Histogram of non-negative values with power of two buckets
+     */
+    public static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(64);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * Record a value, negative values are recorded as 0
+         * @param value The value
+         */
+        public void record(long value){
+            value = Math.max(0, value);
+            mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while(value > (max = mMax.get()) && !mMax.compareAndSet(max, value));
+        }
+
+        public long getCount(){
+            return mCount.get();
+        }
+
+        public long getMax(){
+            return mMax.get();
+        }
+
+        public double getMean(){
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Get an upper bound of a percentile
+         * @param percentile Between 0 and 100
+         * @return The upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile){
+            long count = mCount.get();
+            if(count == 0)
+                return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for(int bucket = 0; bucket < 64; bucket++){
+                seen += mBuckets.get(bucket);
+                if(seen >= Math.max(1, rank))
+                    return Math.min(bucket == 0 ? 0 : (1L << bucket) - 1, mMax.get());
+            }
+            return mMax.get();
+        }
+
+        /**
+         * Forget all values
+         */
+        public void reset(){
+            for(int bucket = 0; bucket < 64; bucket++)
+                mBuckets.set(bucket, 0);
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+    }
+}
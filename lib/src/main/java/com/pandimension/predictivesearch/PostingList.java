@@ -0,0 +1,991 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Internal compressed set of non-negative ints used for the posting lists of the partitions.
+ * Values are split into chunks of 65536 by their high 16 bits (roaring style). Sparse chunks
+ * are stored as sorted char arrays and dense chunks as 1024 word bitmaps, so an index costs
+ * at most 2 bytes and intersecting two dense chunks is a plain word-level AND.
+ *
+ * Lists that are visible to readers are persistent: {@link #with(int)} and {@link #without(int)}
+ * return new versions and share the untouched chunks. Appending a value larger than the ones in
+ * its chunk writes into spare capacity of the shared chunk, hence a version must only be extended
+ * once and readers of older versions must ignore values they don't know about. The predictor
+ * guarantees this as it only ever appends fresh ids to the latest version. {@link #add(int)}
+ * mutates the list and may only be used on lists that are still being built.
+ */
+final class PostingList {
+    /* Number of values per chunk */
+    final static int CHUNK_SIZE = 0x10000;
+    /* Chunks with more values than this are stored as bitmaps */
+    final static int ARRAY_MAX = 4096;
+    private final static int BITMAP_WORDS = 1024;
+    /* Arrays this many times larger than the other side are searched instead of merged */
+    private final static int GALLOP_RATIO = 32;
+
+    private char[] mKeys;
+    private Container[] mContainers;
+    private int mSize;
+
+    PostingList(){
+        mKeys = new char[4];
+        mContainers = new Container[4];
+    }
+
+    private PostingList(char[] keys, Container[] containers, int size){
+        mKeys = keys;
+        mContainers = containers;
+        mSize = size;
+    }
+
+    /**
+     * Add a value to a list that is still being built and not visible to readers
+     * @param value A non-negative int
+     */
+    void add(int value){
+        char key = highBits(value);
+        int i = findKey(key);
+        if(i >= 0){
+            mContainers[i] = mContainers[i].add(lowBits(value));
+        }else{
+            i = -i - 1;
+            if(mSize == mKeys.length){
+                mKeys = Arrays.copyOf(mKeys, mSize * 2);
+                mContainers = Arrays.copyOf(mContainers, mSize * 2);
+            }
+            System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+            System.arraycopy(mContainers, i, mContainers, i + 1, mSize - i);
+            mKeys[i] = key;
+            mContainers[i] = new ArrayContainer().add(lowBits(value));
+            mSize++;
+        }
+    }
+
+    /**
+     * Create a new version of the list with the value added
+     * @param value A non-negative int
+     * @return The new version or this list if it already contains the value
+     */
+    PostingList with(int value){
+        char key = highBits(value);
+        int i = findKey(key);
+        if(i >= 0){
+            if(mContainers[i].contains(lowBits(value))) return this;
+            Container[] containers = Arrays.copyOf(mContainers, mSize);
+            containers[i] = mContainers[i].with(lowBits(value));
+            return new PostingList(mKeys, containers, mSize);
+        }
+
+        i = -i - 1;
+        char[] keys = new char[mSize + 1];
+        Container[] containers = new Container[mSize + 1];
+        System.arraycopy(mKeys, 0, keys, 0, i);
+        System.arraycopy(mContainers, 0, containers, 0, i);
+        System.arraycopy(mKeys, i, keys, i + 1, mSize - i);
+        System.arraycopy(mContainers, i, containers, i + 1, mSize - i);
+        keys[i] = key;
+        containers[i] = new ArrayContainer().add(lowBits(value));
+        return new PostingList(keys, containers, mSize + 1);
+    }
+
+    /**
+     * Create a new version of the list with the value removed
+     * @param value A non-negative int
+     * @return The new version or this list if it doesn't contain the value
+     */
+    PostingList without(int value){
+        int i = findKey(highBits(value));
+        if(i < 0 || !mContainers[i].contains(lowBits(value))) return this;
+        Container c = mContainers[i].without(lowBits(value));
+        if(c.cardinality() > 0){
+            Container[] containers = Arrays.copyOf(mContainers, mSize);
+            containers[i] = c;
+            return new PostingList(mKeys, containers, mSize);
+        }
+
+        char[] keys = new char[Math.max(1, mSize - 1)];
+        Container[] containers = new Container[keys.length];
+        System.arraycopy(mKeys, 0, keys, 0, i);
+        System.arraycopy(mContainers, 0, containers, 0, i);
+        System.arraycopy(mKeys, i + 1, keys, i, mSize - i - 1);
+        System.arraycopy(mContainers, i + 1, containers, i, mSize - i - 1);
+        return new PostingList(keys, containers, mSize - 1);
+    }
+
+    /**
+     * Create a new version of the list with a batch of values appended. Only the chunks that
+     * receive values are copied and they are sized exactly
+     * @param values Values in ascending order, all larger than the ones in the list
+     * @param count Number of values to take from the array
+     * @return The new version
+     */
+    PostingList withAll(int[] values, int count){
+        if(count == 0) return this;
+        char[] keys = Arrays.copyOf(mKeys, mSize + (values[count - 1] >>> 16) - (values[0] >>> 16) + 1);
+        Container[] containers = Arrays.copyOf(mContainers, keys.length);
+        int size = mSize;
+        int from = 0;
+        while(from < count){
+            char key = highBits(values[from]);
+            int to = from + 1;
+            while(to < count && highBits(values[to]) == key) to++;
+
+            if(size > 0 && keys[size - 1] == key){
+                containers[size - 1] = containers[size - 1].withAll(values, from, to);
+            }else{
+                keys[size] = key;
+                containers[size++] = new ArrayContainer(new char[0], 0).withAll(values, from, to);
+            }
+            from = to;
+        }
+        return new PostingList(keys, containers, size);
+    }
+
+    /**
+     * Create a new version of the list with a batch of values removed. Only the chunks that
+     * lose values are copied
+     * @param values Values in ascending order, the ones not in the list are ignored
+     * @param count Number of values to take from the array
+     * @return The new version or this list if it contains none of the values
+     */
+    PostingList withoutAll(int[] values, int count){
+        Container[] containers = null;
+        int from = 0;
+        while(from < count){
+            char key = highBits(values[from]);
+            int to = from + 1;
+            while(to < count && highBits(values[to]) == key) to++;
+
+            int i = findKey(key);
+            if(i >= 0){
+                Container c = withoutValues(mContainers[i], values, from, to);
+                if(c != mContainers[i]){
+                    if(containers == null)
+                        containers = Arrays.copyOf(mContainers, mSize);
+                    containers[i] = c;
+                }
+            }
+            from = to;
+        }
+        if(containers == null)
+            return this;
+
+        // Drop the chunks left empty
+        char[] keys = new char[Math.max(1, mSize)];
+        int size = 0;
+        for(int i = 0; i < mSize; i++){
+            if(containers[i] != null){
+                keys[size] = mKeys[i];
+                containers[size++] = containers[i];
+            }
+        }
+        return new PostingList(keys, containers, size);
+    }
+
+    boolean contains(int value){
+        int i = findKey(highBits(value));
+        return i >= 0 && mContainers[i].contains(lowBits(value));
+    }
+
+    int cardinality(){
+        int n = 0;
+        for(int i = 0; i < mSize; i++)
+            n += mContainers[i].cardinality();
+        return n;
+    }
+
+    boolean isEmpty(){
+        return mSize == 0;
+    }
+
+    /**
+     * Find the smallest value in the set that is greater than or equal to the given value.
+     * Use it to iterate the set without allocations:
+     * for(int i = list.next(0); i >= 0; i = list.next(i + 1))
+     * @param from The value to start from
+     * @return The next value or -1 if there is none
+     */
+    int next(int from){
+        if(from < 0) from = 0;
+        int i = findKey(highBits(from));
+        if(i >= 0){
+            int low = mContainers[i].next(lowBits(from));
+            if(low >= 0) return (mKeys[i] << 16) | low;
+            i++;
+        }else{
+            i = -i - 1;
+        }
+        if(i < mSize)
+            return (mKeys[i] << 16) | mContainers[i].next(0);
+        return -1;
+    }
+
+    /**
+     * Intersect with another set. Neither set is modified
+     * @param other The set to intersect with
+     * @return A new set containing the common values
+     */
+    PostingList and(PostingList other){
+        int capacity = Math.max(1, Math.min(mSize, other.mSize));
+        char[] keys = new char[capacity];
+        Container[] containers = new Container[capacity];
+        int size = 0;
+        int i = 0, j = 0;
+        while(i < mSize && j < other.mSize){
+            if(mKeys[i] < other.mKeys[j]){
+                i++;
+            }else if(mKeys[i] > other.mKeys[j]){
+                j++;
+            }else{
+                Container c = mContainers[i].and(other.mContainers[j]);
+                if(c.cardinality() > 0){
+                    keys[size] = mKeys[i];
+                    containers[size++] = c;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new PostingList(keys, containers, size);
+    }
+
+    /**
+     * Get the values within a range of whole chunks. The chunks are shared, hence it only costs
+     * the lookup of the range
+     * @param from First value of the range, rounded down to a whole chunk
+     * @param to End of the range, rounded up to a whole chunk
+     * @return A set sharing the chunks of the range, this one if it has no others
+     */
+    PostingList slice(int from, int to){
+        int first = findKey(highBits(from));
+        if(first < 0) first = -first - 1;
+        int last = findKey((char) (((long) to + CHUNK_SIZE - 1) >>> 16));
+        if(last < 0) last = -last - 1;
+        if(first == 0 && last == mSize)
+            return this;
+        // Keep room for a chunk like every other list
+        int capacity = Math.max(1, last - first);
+        return new PostingList(Arrays.copyOfRange(mKeys, first, first + capacity),
+                Arrays.copyOfRange(mContainers, first, first + capacity), last - first);
+    }
+
+    /**
+     * Unite with another set. Neither set is modified, chunks found in one set only are shared
+     * with the result
+     * @param other The set to unite with
+     * @return A new set containing the values of both
+     */
+    PostingList or(PostingList other){
+        int capacity = Math.max(1, mSize + other.mSize);
+        char[] keys = new char[capacity];
+        Container[] containers = new Container[capacity];
+        int size = 0;
+        int i = 0, j = 0;
+        while(i < mSize || j < other.mSize){
+            if(j == other.mSize || (i < mSize && mKeys[i] < other.mKeys[j])){
+                keys[size] = mKeys[i];
+                containers[size++] = mContainers[i++];
+            }else if(i == mSize || mKeys[i] > other.mKeys[j]){
+                keys[size] = other.mKeys[j];
+                containers[size++] = other.mContainers[j++];
+            }else{
+                keys[size] = mKeys[i];
+                containers[size++] = orContainers(mContainers[i++], other.mContainers[j++]);
+            }
+        }
+        return new PostingList(keys, containers, size);
+    }
+
+    /**
+     * Approximate heap footprint of the set
+     * @return Size in bytes
+     */
+    long sizeInBytes(){
+        long bytes = 16 + mKeys.length * 2 + mContainers.length * 4;
+        for(int i = 0; i < mSize; i++)
+            bytes += mContainers[i].sizeInBytes();
+        return bytes;
+    }
+
+    /**
+     * Write the list in the index file format. Chunks are written as they are laid out in memory
+     * so that {@link #map(ByteBuffer, int)} can use them in place
+     * @param out The stream
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(mSize);
+        for(int i = 0; i < mSize; i++){
+            Container c = mContainers[i];
+            out.writeChar(mKeys[i]);
+            out.writeBoolean(c instanceof AbstractBitmapContainer);
+            out.writeInt(c.cardinality());
+            if(c instanceof AbstractBitmapContainer){
+                for(int w = 0; w < BITMAP_WORDS; w++)
+                    out.writeLong(((AbstractBitmapContainer) c).word(w));
+            }else{
+                for(int v = 0; v < c.cardinality(); v++)
+                    out.writeChar(((AbstractArrayContainer) c).value(v));
+            }
+        }
+    }
+
+    /**
+     * Create a read-only list backed by a buffer, usually a mapped index file. Only the chunk
+     * headers are read, the values stay in the buffer
+     * @param buffer The buffer
+     * @param offset Offset of the list written by {@link #write(DataOutputStream)}
+     * @return The list
+     */
+    static PostingList map(ByteBuffer buffer, int offset){
+        int size = buffer.getInt(offset);
+        offset += 4;
+        char[] keys = new char[Math.max(1, size)];
+        Container[] containers = new Container[keys.length];
+        for(int i = 0; i < size; i++){
+            keys[i] = buffer.getChar(offset);
+            boolean bitmap = buffer.get(offset + 2) != 0;
+            int cardinality = buffer.getInt(offset + 3);
+            offset += 7;
+            if(bitmap){
+                containers[i] = new MappedBitmapContainer(buffer, offset, cardinality);
+                offset += BITMAP_WORDS * 8;
+            }else{
+                containers[i] = new MappedArrayContainer(buffer, offset, cardinality);
+                offset += cardinality * 2;
+            }
+        }
+        return new PostingList(keys, containers, size);
+    }
+
+    /* Private Methods */
+
+    private int findKey(char key){
+        // Values are mostly appended, hence check the last chunk first
+        if(mSize > 0 && mKeys[mSize - 1] == key) return mSize - 1;
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    private static char highBits(int value){
+        return (char) (value >>> 16);
+    }
+
+    private static char lowBits(int value){
+        return (char) value;
+    }
+
+    /* Containers */
+
+    private static abstract class Container {
+        abstract Container add(char value);
+        abstract Container with(char value);
+        abstract Container withAll(int[] values, int from, int to);
+        abstract Container without(char value);
+        abstract boolean contains(char value);
+        abstract int cardinality();
+        abstract int next(int from);
+        abstract Container and(Container other);
+        abstract long sizeInBytes();
+    }
+
+    /* Sorted values, on the heap or mapped */
+    private static abstract class AbstractArrayContainer extends Container {
+        /* Value at an index, below the cardinality */
+        abstract char value(int index);
+
+        @Override
+        Container and(Container other){
+            return andArray(this, other);
+        }
+    }
+
+    /* BITMAP_WORDS words with a bit per value, on the heap or mapped */
+    private static abstract class AbstractBitmapContainer extends Container {
+        /* Word at an index, below BITMAP_WORDS */
+        abstract long word(int index);
+
+        @Override
+        Container and(Container other){
+            return andBitmap(this, other);
+        }
+    }
+
+    private static final class ArrayContainer extends AbstractArrayContainer {
+        char[] mValues;
+        int mCardinality;
+
+        ArrayContainer(){
+            mValues = new char[4];
+        }
+
+        ArrayContainer(char[] values, int cardinality){
+            mValues = values;
+            mCardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value){
+            // Fast path for appends which is how the predictor fills the lists
+            int i = mCardinality > 0 && mValues[mCardinality - 1] < value ? -mCardinality - 1 :
+                    Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if(i >= 0) return this;
+            if(mCardinality == ARRAY_MAX)
+                return new BitmapContainer(this).add(value);
+
+            i = -i - 1;
+            if(mCardinality == mValues.length)
+                mValues = Arrays.copyOf(mValues, Math.min(ARRAY_MAX, mCardinality * 2));
+            System.arraycopy(mValues, i, mValues, i + 1, mCardinality - i);
+            mValues[i] = value;
+            mCardinality++;
+            return this;
+        }
+
+        @Override
+        Container with(char value){
+            if(mCardinality == ARRAY_MAX)
+                return new BitmapContainer(this).add(value);
+            if(mCardinality > 0 && mValues[mCardinality - 1] > value)
+                return new ArrayContainer(Arrays.copyOf(mValues, mCardinality), mCardinality).add(value);
+
+            // Append into the spare capacity shared with the older versions
+            char[] values = mValues;
+            if(mCardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, mCardinality * 2));
+            values[mCardinality] = value;
+            return new ArrayContainer(values, mCardinality + 1);
+        }
+
+        @Override
+        Container withAll(int[] values, int from, int to){
+            int n = mCardinality + to - from;
+            if(n > ARRAY_MAX){
+                Container bitmap = new BitmapContainer(this);
+                for(int i = from; i < to; i++)
+                    bitmap.add(lowBits(values[i]));
+                return bitmap;
+            }
+
+            char[] result = Arrays.copyOf(mValues, n);
+            for(int i = from; i < to; i++)
+                result[mCardinality + i - from] = lowBits(values[i]);
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container without(char value){
+            int i = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            char[] values = new char[Math.max(1, mCardinality - 1)];
+            System.arraycopy(mValues, 0, values, 0, i);
+            System.arraycopy(mValues, i + 1, values, i, mCardinality - i - 1);
+            return new ArrayContainer(values, mCardinality - 1);
+        }
+
+        @Override
+        boolean contains(char value){
+            return Arrays.binarySearch(mValues, 0, mCardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality(){
+            return mCardinality;
+        }
+
+        @Override
+        int next(int from){
+            int i = Arrays.binarySearch(mValues, 0, mCardinality, (char) from);
+            if(i < 0) i = -i - 1;
+            return i < mCardinality ? mValues[i] : -1;
+        }
+
+        @Override
+        long sizeInBytes(){
+            return 16 + mValues.length * 2;
+        }
+
+        @Override
+        char value(int index){
+            return mValues[index];
+        }
+    }
+
+    private static final class BitmapContainer extends AbstractBitmapContainer {
+        long[] mWords;
+        int mCardinality;
+        int mLast;
+
+        BitmapContainer(long[] words, int cardinality, int last){
+            mWords = words;
+            mCardinality = cardinality;
+            mLast = last;
+        }
+
+        BitmapContainer(ArrayContainer source){
+            mWords = new long[BITMAP_WORDS];
+            for(int i = 0; i < source.mCardinality; i++){
+                char v = source.mValues[i];
+                mWords[v >>> 6] |= 1L << v;
+            }
+            mCardinality = source.mCardinality;
+            mLast = source.mCardinality > 0 ? source.mValues[source.mCardinality - 1] : -1;
+        }
+
+        @Override
+        Container add(char value){
+            long bit = 1L << value;
+            if((mWords[value >>> 6] & bit) == 0){
+                mWords[value >>> 6] |= bit;
+                mCardinality++;
+                mLast = Math.max(mLast, value);
+            }
+            return this;
+        }
+
+        @Override
+        Container with(char value){
+            if(value < mLast)
+                return new BitmapContainer(mWords.clone(), mCardinality, mLast).add(value);
+
+            // Readers of the older versions ignore the appended bit
+            mWords[value >>> 6] |= 1L << value;
+            return new BitmapContainer(mWords, mCardinality + 1, value);
+        }
+
+        @Override
+        Container withAll(int[] values, int from, int to){
+            long[] words = mWords.clone();
+            for(int i = from; i < to; i++){
+                char v = lowBits(values[i]);
+                words[v >>> 6] |= 1L << v;
+            }
+            return new BitmapContainer(words, mCardinality + to - from,
+                    Math.max(mLast, lowBits(values[to - 1])));
+        }
+
+        @Override
+        Container without(char value){
+            long[] words = mWords.clone();
+            words[value >>> 6] &= ~(1L << value);
+            if(mCardinality - 1 <= ARRAY_MAX)
+                return toArrayContainer(words, mCardinality - 1);
+            return new BitmapContainer(words, mCardinality - 1, value == mLast ? lastOf(words) : mLast);
+        }
+
+        @Override
+        boolean contains(char value){
+            return (mWords[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality(){
+            return mCardinality;
+        }
+
+        @Override
+        int next(int from){
+            return nextInBitmap(this, from);
+        }
+
+        @Override
+        long sizeInBytes(){
+            return 16 + BITMAP_WORDS * 8;
+        }
+
+        @Override
+        long word(int index){
+            return mWords[index];
+        }
+    }
+
+    /**
+     * Read-only container over a sorted char array in a mapped index file. Updates create a
+     * heap copy first
+     */
+    private static final class MappedArrayContainer extends AbstractArrayContainer {
+        private final ByteBuffer mBuffer;
+        private final int mOffset;
+        private final int mCardinality;
+
+        MappedArrayContainer(ByteBuffer buffer, int offset, int cardinality){
+            mBuffer = buffer;
+            mOffset = offset;
+            mCardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value){
+            return toHeap().add(value);
+        }
+
+        @Override
+        Container with(char value){
+            return toHeap().add(value);
+        }
+
+        @Override
+        Container withAll(int[] values, int from, int to){
+            return toHeap().withAll(values, from, to);
+        }
+
+        @Override
+        Container without(char value){
+            return toHeap().without(value);
+        }
+
+        @Override
+        boolean contains(char value){
+            return search(value) >= 0;
+        }
+
+        @Override
+        int cardinality(){
+            return mCardinality;
+        }
+
+        @Override
+        int next(int from){
+            int i = search((char) from);
+            if(i < 0) i = -i - 1;
+            return i < mCardinality ? value(i) : -1;
+        }
+
+        @Override
+        long sizeInBytes(){
+            // Lives in the page cache
+            return 16;
+        }
+
+        @Override
+        char value(int index){
+            return mBuffer.getChar(mOffset + index * 2);
+        }
+
+
+        private int search(char value){
+            int low = 0, high = mCardinality - 1;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                char v = value(mid);
+                if(v < value) low = mid + 1;
+                else if(v > value) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        private ArrayContainer toHeap(){
+            char[] values = new char[mCardinality];
+            for(int i = 0; i < mCardinality; i++)
+                values[i] = value(i);
+            return new ArrayContainer(values, mCardinality);
+        }
+    }
+
+    /**
+     * Read-only container over a bitmap in a mapped index file. Updates create a heap copy first
+     */
+    private static final class MappedBitmapContainer extends AbstractBitmapContainer {
+        private final ByteBuffer mBuffer;
+        private final int mOffset;
+        private final int mCardinality;
+
+        MappedBitmapContainer(ByteBuffer buffer, int offset, int cardinality){
+            mBuffer = buffer;
+            mOffset = offset;
+            mCardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value){
+            return toHeap().add(value);
+        }
+
+        @Override
+        Container with(char value){
+            return toHeap().add(value);
+        }
+
+        @Override
+        Container withAll(int[] values, int from, int to){
+            return toHeap().withAll(values, from, to);
+        }
+
+        @Override
+        Container without(char value){
+            return toHeap().without(value);
+        }
+
+        @Override
+        boolean contains(char value){
+            return (word(value >>> 6) & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality(){
+            return mCardinality;
+        }
+
+        @Override
+        int next(int from){
+            return nextInBitmap(this, from);
+        }
+
+        @Override
+        long sizeInBytes(){
+            // Lives in the page cache
+            return 16;
+        }
+
+        @Override
+        long word(int index){
+            return mBuffer.getLong(mOffset + index * 8);
+        }
+
+        private BitmapContainer toHeap(){
+            long[] words = new long[BITMAP_WORDS];
+            for(int i = 0; i < BITMAP_WORDS; i++)
+                words[i] = word(i);
+            return new BitmapContainer(words, mCardinality, lastOf(words));
+        }
+    }
+
+    /* Container algorithms shared by the heap and mapped containers */
+
+    private static Container andArray(AbstractArrayContainer array, Container other){
+        int cardinality = array.cardinality();
+        char[] result = new char[Math.min(cardinality, other.cardinality())];
+        int n = 0;
+        if(other instanceof AbstractBitmapContainer){
+            n = probe(array, (AbstractBitmapContainer) other, result);
+        }else{
+            AbstractArrayContainer sorted = (AbstractArrayContainer) other;
+            if(sorted.cardinality() >= cardinality * GALLOP_RATIO)
+                n = gallop(array, sorted, result);
+            else if(cardinality >= sorted.cardinality() * GALLOP_RATIO)
+                n = gallop(sorted, array, result);
+            else
+                n = merge(array, sorted, result);
+        }
+        return new ArrayContainer(result, n);
+    }
+
+    /*
+     * Every value of the array is looked up in the bitmap. Heap containers are read directly
+     */
+    private static int probe(AbstractArrayContainer array, AbstractBitmapContainer bitmap, char[] result){
+        int cardinality = array.cardinality();
+        int n = 0;
+        if(array instanceof ArrayContainer && bitmap instanceof BitmapContainer){
+            char[] values = ((ArrayContainer) array).mValues;
+            long[] words = ((BitmapContainer) bitmap).mWords;
+            for(int i = 0; i < cardinality; i++){
+                char v = values[i];
+                if((words[v >>> 6] & (1L << v)) != 0)
+                    result[n++] = v;
+            }
+            return n;
+        }
+        for(int i = 0; i < cardinality; i++){
+            char v = array.value(i);
+            if((bitmap.word(v >>> 6) & (1L << v)) != 0)
+                result[n++] = v;
+        }
+        return n;
+    }
+
+    /*
+     * Similar sizes: both arrays are walked in step. Heap containers are read directly
+     */
+    private static int merge(AbstractArrayContainer a, AbstractArrayContainer b, char[] result){
+        int ca = a.cardinality(), cb = b.cardinality();
+        int n = 0, i = 0, j = 0;
+        if(a instanceof ArrayContainer && b instanceof ArrayContainer){
+            char[] va = ((ArrayContainer) a).mValues, vb = ((ArrayContainer) b).mValues;
+            while(i < ca && j < cb){
+                char x = va[i], y = vb[j];
+                if(x == y)
+                    result[n++] = x;
+                if(x <= y) i++;
+                if(y <= x) j++;
+            }
+            return n;
+        }
+        while(i < ca && j < cb){
+            char x = a.value(i), y = b.value(j);
+            if(x == y)
+                result[n++] = x;
+            if(x <= y) i++;
+            if(y <= x) j++;
+        }
+        return n;
+    }
+
+    /*
+     * Skewed sizes: every value of the small array is searched in the large one, doubling the
+     * step from the last match and then bisecting
+     */
+    private static int gallop(AbstractArrayContainer small, AbstractArrayContainer large, char[] result){
+        int smallCardinality = small.cardinality(), largeCardinality = large.cardinality();
+        int n = 0, low = 0;
+        for(int i = 0; i < smallCardinality && low < largeCardinality; i++){
+            char v = small.value(i);
+            int step = 1, high = low;
+            while(high < largeCardinality && large.value(high) < v){
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, largeCardinality - 1);
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(large.value(mid) < v) low = mid + 1;
+                else high = mid;
+            }
+            if(low < largeCardinality && large.value(low) == v)
+                result[n++] = v;
+        }
+        return n;
+    }
+
+    private static Container andBitmap(AbstractBitmapContainer bitmap, Container other){
+        if(other instanceof AbstractArrayContainer)
+            return andArray((AbstractArrayContainer) other, bitmap);
+
+        AbstractBitmapContainer words = (AbstractBitmapContainer) other;
+        long[] result = new long[BITMAP_WORDS];
+        int n = 0;
+        for(int i = 0; i < BITMAP_WORDS; i++){
+            result[i] = bitmap.word(i) & words.word(i);
+            n += Long.bitCount(result[i]);
+        }
+        return n > ARRAY_MAX ? new BitmapContainer(result, n, lastOf(result)) :
+                toArrayContainer(result, n);
+    }
+
+    /*
+     * Returns the container itself if it contains none of the values and null if it loses all
+     */
+    private static Container withoutValues(Container container, int[] values, int from, int to){
+        int cardinality = container.cardinality();
+        int n = 0;
+        if(container instanceof AbstractBitmapContainer){
+            long[] words = new long[BITMAP_WORDS];
+            for(int i = 0; i < BITMAP_WORDS; i++)
+                words[i] = ((AbstractBitmapContainer) container).word(i);
+            n = cardinality;
+            for(int i = from; i < to; i++){
+                char v = lowBits(values[i]);
+                if((words[v >>> 6] & (1L << v)) != 0){
+                    words[v >>> 6] &= ~(1L << v);
+                    n--;
+                }
+            }
+            if(n == cardinality) return container;
+            if(n == 0) return null;
+            return n > ARRAY_MAX ? new BitmapContainer(words, n, lastOf(words)) : toArrayContainer(words, n);
+        }
+
+        AbstractArrayContainer array = (AbstractArrayContainer) container;
+        char[] result = new char[cardinality];
+        int j = from;
+        for(int i = 0; i < cardinality; i++){
+            char v = array.value(i);
+            while(j < to && lowBits(values[j]) < v) j++;
+            if(j == to || lowBits(values[j]) != v)
+                result[n++] = v;
+        }
+        if(n == cardinality) return container;
+        return n == 0 ? null : new ArrayContainer(result, n);
+    }
+
+    private static Container orContainers(Container a, Container b){
+        if(a instanceof AbstractArrayContainer && b instanceof AbstractArrayContainer &&
+                a.cardinality() + b.cardinality() <= ARRAY_MAX){
+            return orArrays((AbstractArrayContainer) a, (AbstractArrayContainer) b);
+        }
+
+        long[] result = new long[BITMAP_WORDS];
+        for(Container c: new Container[]{a, b}){
+            if(c instanceof AbstractBitmapContainer){
+                AbstractBitmapContainer bitmap = (AbstractBitmapContainer) c;
+                for(int w = 0; w < BITMAP_WORDS; w++)
+                    result[w] |= bitmap.word(w);
+            }else{
+                AbstractArrayContainer array = (AbstractArrayContainer) c;
+                for(int v = 0; v < array.cardinality(); v++)
+                    result[array.value(v) >>> 6] |= 1L << array.value(v);
+            }
+        }
+        int n = 0;
+        for(int w = 0; w < BITMAP_WORDS; w++)
+            n += Long.bitCount(result[w]);
+        return n > ARRAY_MAX ? new BitmapContainer(result, n, lastOf(result)) :
+                toArrayContainer(result, n);
+    }
+
+    private static Container orArrays(AbstractArrayContainer a, AbstractArrayContainer b){
+        int ca = a.cardinality(), cb = b.cardinality();
+        char[] result = new char[ca + cb];
+        int n = 0, i = 0, j = 0;
+        while(i < ca || j < cb){
+            if(j == cb || (i < ca && a.value(i) < b.value(j))) result[n++] = a.value(i++);
+            else if(i == ca || a.value(i) > b.value(j)) result[n++] = b.value(j++);
+            else{
+                result[n++] = a.value(i++);
+                j++;
+            }
+        }
+        return new ArrayContainer(result, n);
+    }
+
+    private static int nextInBitmap(AbstractBitmapContainer bitmap, int from){
+        int w = from >>> 6;
+        if(w >= BITMAP_WORDS) return -1;
+        long word = bitmap.word(w) & (-1L << from);
+        while(true){
+            if(word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+            if(++w == BITMAP_WORDS) return -1;
+            word = bitmap.word(w);
+        }
+    }
+
+    private static int lastOf(long[] words){
+        for(int i = BITMAP_WORDS - 1; i >= 0; i--){
+            if(words[i] != 0)
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(words[i]);
+        }
+        return -1;
+    }
+
+    private static ArrayContainer toArrayContainer(long[] words, int cardinality){
+        char[] values = new char[cardinality];
+        int n = 0;
+        for(int i = 0; i < BITMAP_WORDS; i++){
+            long word = words[i];
+            while(word != 0){
+                values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values, n);
+    }
+}
@@ -18,36 +18,38 @@ package com.pandimension.predictivesearch;
 
 import com.sun.istack.internal.NotNull;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
 
 /**
  * Class representing a single prediction. Wraps a {@link DataItem} object as provided to the
  * Predictor. It also contains the position indicators or alignments of the matches with the query.
- * The predictor creates a list of Predictions only once and updates the alignments with different
- * queries
+ * The predictor keeps its predictions in columnar storage and creates Prediction objects as
+ * lightweight views carrying the extent of the match for every query, hence concurrent queries
+ * never affect each other
  */
 public class Prediction implements Comparable<Prediction> {
 
-    private ArrayList<Integer> mAlignment;
-    private DataItem mItem;
-    private String mLabel;
-    private String mEncoding;
-    private int mLevel;
-    private int mFieldIndex;
-    private int mExtent;
-
-    Prediction(DataItem item, String encoding, ArrayList<Integer> alignment, String label, int level, int targetIndex){
-        mItem = item;
-        mEncoding = encoding;
-        mAlignment = alignment;
-        mLevel = level;
-        mLabel = label;
-        mFieldIndex = targetIndex;
+    private final PredictionStore mStore;
+    private final int mIndex;
+    private final int mExtent;
+    /* Positions matched other than the leading ones of the field, unsigned */
+    private final short[] mAlignment;
+
+    Prediction(PredictionStore store, int index){
+        this(store, index, store.getLength(index), null);
     }
 
-    void updateExtent(int extent){
+    /**
+     * Create a view for a match
+     * @param extent Number of positions that matched
+     * @param alignment Positions matched other than the leading ones, or null
+     */
+    Prediction(PredictionStore store, int index, int extent, short[] alignment){
+        mStore = store;
+        mIndex = index;
         mExtent = extent;
+        mAlignment = alignment;
     }
 
     /**
@@ -55,7 +57,7 @@ public class Prediction implements Comparable<Prediction> {
      * @return A {@link DataItem} object that you can cast to the actual subclass
      */
     public DataItem getItem(){
-        return mItem;
+        return mStore.getItem(mIndex);
     }
 
     /**
@@ -63,7 +65,7 @@ public class Prediction implements Comparable<Prediction> {
      * @return A String representing the encoding
      */
     public String getEncoding(){
-        return mEncoding;
+        return mStore.getEncoding(mIndex);
     }
 
     /**
@@ -71,12 +73,12 @@ public class Prediction implements Comparable<Prediction> {
      * @return The label
      */
     public String getLabel(){
-        return mLabel;
+        return mStore.getLabel(mIndex);
     }
 
 
     int getLevel(){
-        return mLevel;
+        return mStore.getLevel(mIndex);
     }
 
     /**
@@ -84,7 +86,7 @@ public class Prediction implements Comparable<Prediction> {
      * @return int
      */
     public int getFieldIndex(){
-        return mFieldIndex;
+        return mStore.getFieldIndex(mIndex);
     }
 
     /**
@@ -92,20 +94,45 @@ public class Prediction implements Comparable<Prediction> {
      * @return List of positions
      */
     public List<Integer> getAlignment(){
-        return mAlignment.subList(0, mExtent);
+        return getAlignment(mExtent);
+    }
+
+    /**
+     * Get the alignment for a match reported to a {@link PredictionConsumer}
+     * @param extent The extent passed along with the prediction
+     * @return List of positions
+     */
+    public List<Integer> getAlignment(int extent){
+        return new Alignment(mStore, mIndex, mAlignment, extent);
     }
 
     public int compareTo(Prediction other) {
-        int d = equals(other) ? 0 : other.mLevel - mLevel;
-        if(d == 0) d = mItem.compareTo(other.mItem);
+        DataItem item = getItem();
+        DataItem otherItem = other.getItem();
+        int d = item.equals(otherItem) ? 0 : other.getLevel() - getLevel();
+        if(d == 0) d = compareItems(item, otherItem);
         return d;
     }
 
+    /**
+     * Compare items in the order of their predictions within a level, i.e. by descending score
+     * if both are {@link ScoredDataItem}s and then as per {@link DataItem#compareTo(Object)}
+     * @return Negative if the first item comes first
+     */
+    static int compareItems(DataItem item, DataItem other){
+        if(item instanceof ScoredDataItem && other instanceof ScoredDataItem){
+            int d = Double.compare(((ScoredDataItem) other).getScore(), ((ScoredDataItem) item).getScore());
+            if(d != 0)
+                return d;
+        }
+        return item.compareTo(other);
+    }
+
     @Override
     public boolean equals(Object arg0) {
         if(arg0 instanceof Prediction) {
             Prediction other = (Prediction) arg0;
-            return mItem.equals(other.mItem);
+            return getItem().equals(other.getItem());
         }else{
             return false;
         }
@@ -113,7 +140,38 @@ public class Prediction implements Comparable<Prediction> {
 
     @Override
     public int hashCode(){
-        return mItem.hashCode();
+        return getItem().hashCode();
     }
 
+    /**
+     * Read-only view of the positions, boxed only when read
+     */
+    private static final class Alignment extends AbstractList<Integer> {
+        private final PredictionStore mStore;
+        private final int mIndex;
+        /* Read from the store if null */
+        private final short[] mPositions;
+        private final int mSize;
+
+        Alignment(PredictionStore store, int index, short[] positions, int size){
+            if(size < 0 || size > (positions != null ? positions.length : store.getLength(index)))
+                throw new IndexOutOfBoundsException("Extent " + size);
+            mStore = store;
+            mIndex = index;
+            mPositions = positions;
+            mSize = size;
+        }
+
+        @Override
+        public Integer get(int index){
+            if(index < 0 || index >= mSize)
+                throw new IndexOutOfBoundsException("Index " + index);
+            return mPositions != null ? mPositions[index] & 0xFFFF : mStore.getPosition(mIndex, index);
+        }
+
+        @Override
+        public int size(){
+            return mSize;
+        }
+    }
 }
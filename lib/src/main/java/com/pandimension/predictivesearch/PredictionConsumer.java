@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Callback interface that receives the matches of a query one by one. Pass an implementation to
+ * {@link Predictor#predict(String, PredictionConsumer)} to get predictions without creating
+ * result collections.
+ *
+ * Matches arrive in index order, not sorted, and an item can match more than once through
+ * different fields or variants. Every match is passed as a lightweight view of the prediction
+ * along with the extent of the match. Views of matches of separated fields at a later word or
+ * by initials carry their own alignment.
+ */
+public interface PredictionConsumer {
+    /**
+     * Called for every match
+     * @param prediction The matched prediction
+     * @param extent Number of positions that matched the query. Use
+     *               {@link Prediction#getAlignment(int)} to get the positions to highlight
+     * @param ordinal Position of the prediction in the index. Unique within a single query, it
+     *                can be used to remember matches without hashing
+     * @return True to continue, false to stop the query
+     */
+    boolean onPrediction(Prediction prediction, int extent, int ordinal);
+}
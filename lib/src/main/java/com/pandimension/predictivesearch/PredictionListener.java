@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Collection;
+
+/**
+ * Callback interface that receives the results of the queries of an {@link AsyncSession}. It is
+ * called on a background thread, post the results to the UI thread as needed and return quickly.
+ */
+public interface PredictionListener {
+    /**
+     * Called with the result of the latest query only
+     * @param query The query
+     * @param predictions Same as {@link QuerySession#predict(String, int)}, null for an empty query
+     */
+    void onPredictions(String query, Collection<Prediction> predictions);
+}
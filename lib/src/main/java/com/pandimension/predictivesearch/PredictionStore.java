@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+
+/**
+ * Internal columnar storage of the predictions. Instead of an object per prediction the
+ * encodings are packed in one array, one byte per char as long as every char fits and two bytes
+ * afterwards, the positions and the word starts in short arrays and the rest in an int array of
+ * records holding the item, label, level and field index as small ints along with the offsets.
+ * Items and labels are stored once in their own tables. {@link Prediction} objects are
+ * lightweight views created when a match is returned.
+ *
+ * A store is an immutable snapshot like a {@link Generation}. A {@link Writer} appends to the
+ * arrays in place and readers of older snapshots never read past their counts. Snapshots
+ * loaded from an {@link IndexFile} read the predictions of the file in place and append after
+ * them.
+ */
+class PredictionStore {
+    /* item, label, level, field index, encoding offset, encoding length, words offset, word count,
+       substring flag */
+    private final static int RECORD_INTS = 9;
+    private final static int ITEM = 0, LABEL = 1, LEVEL = 2, FIELD_INDEX = 3, ENCODING_OFFSET = 4,
+            ENCODING_LENGTH = 5, WORDS_OFFSET = 6, WORD_COUNT = 7, SUBSTRING = 8;
+
+    IndexFile mFile;
+    int mFileCount;
+    int mCount;
+    String[] mLabels;
+    int mLabelCount;
+    DataItem[] mItems;
+    int mItemCount;
+    int[] mRecords;
+    /* Either holds the chars of the encodings, until one of them doesn't fit in a byte */
+    byte[] mLatin;
+    char[] mChars;
+    int mCharCount;
+    /* Unsigned positions in the fields, one per encoded char */
+    short[] mPositions;
+    short[] mWords;
+    int mWordCount;
+
+    /**
+     * Create an empty store
+     * @param capacity Expected number of predictions
+     */
+    PredictionStore(int capacity){
+        mLabels = new String[Math.min(capacity, 4)];
+        mItems = new DataItem[capacity / 2];
+        mRecords = new int[capacity * RECORD_INTS];
+        mLatin = new byte[capacity * 8];
+        mPositions = new short[capacity * 8];
+        mWords = new short[0];
+    }
+
+    /**
+     * Create a store reading the predictions of an index file
+     * @param file The index file
+     */
+    PredictionStore(IndexFile file){
+        this(0);
+        mFile = file;
+        mFileCount = file.getCount();
+        mCount = mFileCount;
+    }
+
+    private PredictionStore(PredictionStore other){
+        mFile = other.mFile;
+        mFileCount = other.mFileCount;
+        mCount = other.mCount;
+        mLabels = other.mLabels;
+        mLabelCount = other.mLabelCount;
+        mItems = other.mItems;
+        mItemCount = other.mItemCount;
+        mRecords = other.mRecords;
+        mLatin = other.mLatin;
+        mChars = other.mChars;
+        mCharCount = other.mCharCount;
+        mPositions = other.mPositions;
+        mWords = other.mWords;
+        mWordCount = other.mWordCount;
+    }
+
+    /**
+     * Get the number of predictions
+     * @return The count
+     */
+    int size(){
+        return mCount;
+    }
+
+    /**
+     * Create a view of a prediction
+     * @param index Index of the prediction
+     * @return The prediction
+     */
+    Prediction get(int index){
+        return new Prediction(this, index);
+    }
+
+    DataItem getItem(int index){
+        if(index < mFileCount) return mFile.getItem(index);
+        return mItems[record(index, ITEM)];
+    }
+
+    /**
+     * Get a number identifying the item of a prediction without resolving it. The predictions of
+     * an item are contiguous and share the number, the numbers of other items may be reused
+     * @param index Index of the prediction
+     * @return The number
+     */
+    int getItemNumber(int index){
+        if(index < mFileCount) return mFile.getItemNumber(index);
+        return (mFile == null ? 0 : mFile.getItemCount()) + record(index, ITEM);
+    }
+
+    /**
+     * Get the id of the item of a prediction, without resolving it if it is read from a file
+     * @param index Index of the prediction
+     * @return The id
+     */
+    String getItemId(int index){
+        if(index < mFileCount) return mFile.getItemId(index);
+        return getItem(index).getId();
+    }
+
+    String getLabel(int index){
+        if(index < mFileCount) return mFile.getLabel(index);
+        return mLabels[record(index, LABEL)];
+    }
+
+    int getLevel(int index){
+        if(index < mFileCount) return mFile.getLevel(index);
+        return record(index, LEVEL);
+    }
+
+    int getFieldIndex(int index){
+        if(index < mFileCount) return mFile.getFieldIndex(index);
+        return record(index, FIELD_INDEX);
+    }
+
+    /**
+     * Get the length of the encoding of a prediction
+     * @param index Index of the prediction
+     * @return The number of encoded chars
+     */
+    int getLength(int index){
+        if(index < mFileCount) return mFile.getLength(index);
+        return record(index, ENCODING_LENGTH);
+    }
+
+    char getChar(int index, int pos){
+        if(index < mFileCount) return mFile.getChar(index, pos);
+        int offset = record(index, ENCODING_OFFSET) + pos;
+        return mChars != null ? mChars[offset] : (char) (mLatin[offset] & 0xFF);
+    }
+
+    /**
+     * Get the position in the field of an encoded char
+     * @param index Index of the prediction
+     * @param pos Index of the encoded char
+     * @return The position
+     */
+    int getPosition(int index, int pos){
+        if(index < mFileCount) return mFile.getPosition(index, pos);
+        return mPositions[record(index, ENCODING_OFFSET) + pos] & 0xFFFF;
+    }
+
+    String getEncoding(int index){
+        char[] encoding = new char[getLength(index)];
+        for(int pos = 0; pos < encoding.length; pos++)
+            encoding[pos] = getChar(index, pos);
+        return new String(encoding);
+    }
+
+    /**
+     * Get the number of words after the first one, see {@link WordIndex}
+     * @param index Index of the prediction
+     * @return The number of words or -1 if the field is only matched from its start
+     */
+    int getWordCount(int index){
+        if(index < mFileCount) return mFile.getWordCount(index);
+        return record(index, WORD_COUNT);
+    }
+
+    /**
+     * Get the start of a word as an index into the key sequence of the encoding
+     * @param index Index of the prediction
+     * @param word Index of the word, the first one excluded
+     * @return The start
+     */
+    int getWord(int index, int word){
+        if(index < mFileCount) return mFile.getWord(index, word);
+        return mWords[record(index, WORDS_OFFSET) + word];
+    }
+
+    /**
+     * Check if a prediction is matched anywhere in the field, see {@link GramIndex}
+     * @param index Index of the prediction
+     * @return True if matched anywhere, false if only from its start or words
+     */
+    boolean isSubstringMatched(int index){
+        if(index < mFileCount) return mFile.isSubstringMatched(index);
+        return record(index, SUBSTRING) != 0;
+    }
+
+    private int record(int index, int field){
+        return mRecords[(index - mFileCount) * RECORD_INTS + field];
+    }
+
+    /**
+     * Appends to a store. Must be used by one writer at a time and always on the latest
+     * snapshot since it writes into arrays that are shared with older snapshots. It can be read
+     * like a store while it is being written.
+     */
+    static final class Writer extends PredictionStore {
+        /**
+         * Create a writer for a new store
+         * @param capacity Expected number of predictions
+         */
+        Writer(int capacity){
+            super(capacity);
+        }
+
+        Writer(PredictionStore base){
+            super(base);
+        }
+
+        /**
+         * Append a prediction
+         * @param encoding Buffer holding the encoding
+         * @param positions Buffer holding the positions
+         * @param length Length of the encoding
+         * @param words Starts of the words after the first one or null, see {@link WordIndex}
+         * @param substring True if matched anywhere, see {@link GramIndex}
+         * @return The index of the prediction
+         */
+        int add(DataItem item, String label, int level, int fieldIndex, char[] encoding,
+                short[] positions, int length, short[] words, boolean substring){
+            int record = addRecord(item, label, level, fieldIndex, length, words == null ? -1 : words.length,
+                    substring);
+            for(int pos = 0; pos < length; pos++)
+                putChar(mCharCount + pos, encoding[pos]);
+            System.arraycopy(positions, 0, mPositions, mCharCount, length);
+            mCharCount += length;
+            if(words != null){
+                System.arraycopy(words, 0, mWords, mWordCount, words.length);
+                mWordCount += words.length;
+            }
+            return record;
+        }
+
+        /**
+         * Append a copy of a prediction of another store
+         * @param source The store
+         * @param index Index of the prediction in the store
+         * @return The index of the copy
+         */
+        int add(PredictionStore source, int index){
+            int length = source.getLength(index);
+            int wordCount = source.getWordCount(index);
+            int record = addRecord(source.getItem(index), source.getLabel(index),
+                    source.getLevel(index), source.getFieldIndex(index), length, wordCount,
+                    source.isSubstringMatched(index));
+            for(int pos = 0; pos < length; pos++){
+                putChar(mCharCount + pos, source.getChar(index, pos));
+                mPositions[mCharCount + pos] = (short) source.getPosition(index, pos);
+            }
+            mCharCount += length;
+            for(int word = 0; word < wordCount; word++)
+                mWords[mWordCount++] = (short) source.getWord(index, word);
+            return record;
+        }
+
+        /**
+         * Create the new snapshot. The writer can be used further for the next one
+         * @return The snapshot
+         */
+        PredictionStore publish(){
+            return new PredictionStore(this);
+        }
+
+        /*
+         * Grows the arrays and writes the record, the caller fills in the encoding and words
+         */
+        private int addRecord(DataItem item, String label, int level, int fieldIndex, int length,
+                              int wordCount, boolean substring){
+            // The predictions of an item are appended together
+            if(mItemCount == 0 || mItems[mItemCount - 1] != item){
+                if(mItemCount == mItems.length)
+                    mItems = Arrays.copyOf(mItems, Math.max(16, mItemCount * 2));
+                mItems[mItemCount++] = item;
+            }
+
+            int labelIndex = 0;
+            while(labelIndex < mLabelCount && !mLabels[labelIndex].equals(label)) labelIndex++;
+            if(labelIndex == mLabelCount){
+                if(mLabelCount == mLabels.length)
+                    mLabels = Arrays.copyOf(mLabels, Math.max(4, mLabelCount * 2));
+                mLabels[mLabelCount++] = label;
+            }
+
+            int heapCount = mCount - mFileCount;
+            if((heapCount + 1) * RECORD_INTS > mRecords.length)
+                mRecords = Arrays.copyOf(mRecords, Math.max(16, heapCount * 2) * RECORD_INTS);
+            if(mCharCount + length > mPositions.length){
+                int capacity = Math.max(mCharCount + length, mPositions.length * 2);
+                mPositions = Arrays.copyOf(mPositions, capacity);
+                if(mChars != null)
+                    mChars = Arrays.copyOf(mChars, capacity);
+                else
+                    mLatin = Arrays.copyOf(mLatin, capacity);
+            }
+            if(wordCount > 0 && mWordCount + wordCount > mWords.length)
+                mWords = Arrays.copyOf(mWords, Math.max(mWordCount + wordCount, mWords.length * 2));
+
+            int offset = heapCount * RECORD_INTS;
+            mRecords[offset + ITEM] = mItemCount - 1;
+            mRecords[offset + LABEL] = labelIndex;
+            mRecords[offset + LEVEL] = level;
+            mRecords[offset + FIELD_INDEX] = fieldIndex;
+            mRecords[offset + ENCODING_OFFSET] = mCharCount;
+            mRecords[offset + ENCODING_LENGTH] = length;
+            mRecords[offset + WORDS_OFFSET] = mWordCount;
+            mRecords[offset + WORD_COUNT] = wordCount;
+            mRecords[offset + SUBSTRING] = substring ? 1 : 0;
+            return mCount++;
+        }
+
+        private void putChar(int offset, char c){
+            if(mChars == null && c > 0xFF){
+                // Widened copies, the snapshots taken so far keep reading the bytes
+                mChars = new char[mLatin.length];
+                for(int i = 0; i < offset; i++)
+                    mChars[i] = (char) (mLatin[i] & 0xFF);
+                mLatin = null;
+            }
+            if(mChars != null)
+                mChars[offset] = c;
+            else
+                mLatin[offset] = (byte) c;
+        }
+    }
+}
@@ -15,19 +15,31 @@
  */
 
 package com.pandimension.predictivesearch;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The main Predictor class. Can predict on number keypad as well as QWERTY keyboard. It is thread
- * safe, hence you can update its data in the background.
+ * safe, hence you can update its data in the background. Updates are serialized and published as
+ * snapshots, predictions read the latest snapshot without locking and never wait for updates.
  *
  * HOW TO USE:
  * 1. Create an instance of this class with the desired input type
@@ -52,24 +64,182 @@ public class Predictor {
         QWERTY_KEYPAD
     }
 
-    final static int MAX_ITEM_LENGTH = 100;
-    final static int MAX_ITEMS = 3000;
+    /* Values of 100 keys or more have never been indexed */
+    final static int DEFAULT_MAX_FIELD_LENGTH = 99;
+    /* Positions of the encodings are unsigned shorts */
+    final static int MAX_FIELD_LENGTH = 0x10000;
+    final static int DEFAULT_EXPECTED_ITEMS = 1000;
+    final static int DEFAULT_VARIANTS_PER_ITEM = 3;
+    final static int MIN_ITEMS_PER_THREAD = 256;
+    /* Items pulled from a DataSource at a time, and chunks being encoded per thread */
+    final static int STREAM_CHUNK = 1024;
+    final static int STREAM_CHUNKS_PER_THREAD = 2;
+    final static float DEFAULT_COMPACTION_RATIO = 0.25f;
+    final static int MIN_COMPACTION_SIZE = 256;
+    final static int NO_LIMIT = 0;
+    final static int MAX_QUERY_THREADS = 4;
+    final static long DEFAULT_FUZZY_BUDGET_MICROS = 20000;
+    /* Matches walked between checks for cancellation */
+    final static int CANCELLATION_INTERVAL = 256;
 
     private InputType mInputType;
+    private final IndexEngine mEngine;
+    private final int mMaxFieldLength;
+    private EnumSet<DataItem.FieldType> mSubstrings;
     private LinkedHashMap<String, DataItem.FieldType> mLabels;
-    private HashMap<String, LinkedList<Integer>> mIndexMap;
-    private ArrayList<Prediction> mPredictions;
-    private LinkedList<HashSet<Integer>[]> mPartitions;
+    /* Null until the first update if loaded from an index file */
+    private HashMap<String, int[]> mIndexMap;
+    private volatile Generation mGeneration;
+    private float mCompactionRatio = DEFAULT_COMPACTION_RATIO;
+    private boolean mCompacting;
+    private ExecutorService mBackground;
+    private ExecutorService mQueries;
+    private volatile PredictorMetrics mMetrics;
+    private volatile ResultCache mCache;
+    private final Object mCompactionLock = new Object();
 
     /**
      * Constructor for the class
      * @param inputType Type of inputs that will be handled
      */
     public Predictor(InputType inputType){
-        mInputType = inputType;
-        mPartitions = new LinkedList<>();
-        mPredictions = new ArrayList<Prediction>(MAX_ITEMS);
-        mIndexMap = new HashMap<String, LinkedList<Integer>>();
+        this(inputType, IndexEngine.COLUMNS);
+    }
+
+    /**
+     * Constructor for the class with a choice of index
+     * @param inputType Type of inputs that will be handled
+     * @param engine The index, see {@link IndexEngine} for the options
+     */
+    public Predictor(InputType inputType, IndexEngine engine){
+        this(new Builder(inputType).engine(engine));
+    }
+
+    private Predictor(Builder builder){
+        mInputType = builder.mInputType;
+        mEngine = builder.mEngine;
+        mMaxFieldLength = builder.mMaxFieldLength;
+        mSubstrings = builder.mSubstrings;
+        long capacity = Math.min(Integer.MAX_VALUE / 8, (long) builder.mExpectedItems * builder.mVariantsPerItem);
+        mGeneration = new Generation((int) capacity, mEngine.newIndex(maxKeyLength(mInputType)),
+                maxKeyLength(mInputType));
+        mIndexMap = new HashMap<String, int[]>(builder.mExpectedItems * 4 / 3 + 1);
+    }
+
+    /**
+     * Builder for a Predictor with capacity hints. The hints only size the initial storage,
+     * a Predictor grows beyond them as needed
+     */
+    public static final class Builder {
+        private final InputType mInputType;
+        private IndexEngine mEngine = IndexEngine.COLUMNS;
+        private int mExpectedItems = DEFAULT_EXPECTED_ITEMS;
+        private int mVariantsPerItem = DEFAULT_VARIANTS_PER_ITEM;
+        private int mMaxFieldLength = DEFAULT_MAX_FIELD_LENGTH;
+        private final EnumSet<DataItem.FieldType> mSubstrings = EnumSet.noneOf(DataItem.FieldType.class);
+
+        /**
+         * Constructor for the builder
+         * @param inputType Type of inputs that will be handled
+         */
+        public Builder(InputType inputType){
+            mInputType = inputType;
+        }
+
+        /**
+         * Set the index, {@link IndexEngine#COLUMNS} by default
+         * @param engine The index, see {@link IndexEngine} for the options
+         * @return This builder
+         */
+        public Builder engine(IndexEngine engine){
+            mEngine = engine;
+            return this;
+        }
+
+        /**
+         * Set the number of items expected, 1000 by default. Storage for as many is allocated
+         * upfront, hence loading doesn't copy it over and over as it grows
+         * @param items Expected number of items
+         * @return This builder
+         */
+        public Builder expectedItems(int items){
+            if(items < 0)
+                throw new IllegalArgumentException("Expected items cannot be negative");
+            mExpectedItems = items;
+            return this;
+        }
+
+        /**
+         * Set the number of variants, i.e. encoded field values, expected per item, 3 by default.
+         * A contact with a name and two numbers of 10 or more digits has 5: the name and the full
+         * and last digits of each number
+         * @param variants Expected number of variants per item
+         * @return This builder
+         */
+        public Builder variantsPerItem(int variants){
+            if(variants < 1)
+                throw new IllegalArgumentException("Variants per item must be positive");
+            mVariantsPerItem = variants;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of keys of a field value, 99 by default. Longer values are not
+         * indexed. Every key of the longest value adds a column to the index
+         * @param length Up to 65536 keys
+         * @return This builder
+         */
+        public Builder maxFieldLength(int length){
+            if(length < 1 || length > MAX_FIELD_LENGTH)
+                throw new IllegalArgumentException("Field length must be between 1 and " + MAX_FIELD_LENGTH);
+            mMaxFieldLength = length;
+            return this;
+        }
+
+        /**
+         * Match the fields of a type anywhere instead of only from their start, e.g. "2345" in
+         * the middle of a number or any part of an email address. Such a field is stored once,
+         * without the suffix variants of numbers, and an index of its n-grams finds the fields
+         * that contain a query. Queries shorter than a gram, i.e. 3 keys on a number keypad and
+         * 2 on a QWERTY one, still match from the start only
+         * @param type The field type
+         * @return This builder
+         */
+        public Builder substringMatch(DataItem.FieldType type){
+            mSubstrings.add(type);
+            return this;
+        }
+
+        /**
+         * Create the Predictor
+         * @return A new Predictor
+         */
+        public Predictor build(){
+            return new Predictor(this);
+        }
+    }
+
+    /**
+     * Load a Predictor from an index file written by {@link #writeIndex(File)}. The file is
+     * memory-mapped and used in place, hence loading is almost instant regardless of the number
+     * of items and the index doesn't take up heap until it is updated or compacted. The input
+     * type and labels are restored from the file. Items are stored by id only and resolved the
+     * first time they are predicted. The Predictor uses the {@link IndexEngine#COLUMNS} index.
+     * @param file The index file
+     * @param resolver Looks up the items by id
+     * @return A Predictor that can be used and updated like any other
+     * @throws IOException If the file can't be read or is not a valid index
+     */
+    public static Predictor openIndex(File file, DataItemResolver resolver) throws IOException {
+        IndexFile index = IndexFile.open(file, resolver);
+        Predictor predictor = new Predictor(index.getInputType());
+        if(index.getKeys() != predictor.maxKeyLength(index.getInputType()))
+            throw new IOException("Index was written for a different keypad");
+        predictor.mLabels = index.getLabels();
+        predictor.mSubstrings = index.getSubstrings();
+        predictor.mGeneration = new Generation(index);
+        predictor.mIndexMap = null;
+        return predictor;
     }
 
     /**
@@ -84,50 +254,246 @@ public class Predictor {
         mLabels = labels;
     }
 
+    /**
+     * Set the share of tombstones at which the index is compacted in the background. Removing or
+     * replacing items leaves tombstones behind that keep taking memory and make the posting lists
+     * sparser. Compaction renumbers the live predictions and rebuilds the cells, hence memory and
+     * scan costs follow the live items instead of all the items ever added. It also ranks the
+     * items added one by one since the last compaction, whose predictions have to be sorted by
+     * every query until then, hence it runs as well when their share reaches the ratio.
+     * @param ratio Ratio of tombstones or unranked predictions to all predictions, e.g. 0.25 (the
+     *              default). Pass 0 to disable automatic compaction
+     */
+    public void setCompactionRatio(float ratio){
+        mCompactionRatio = ratio;
+    }
+
 
     /**
      * Add a single item (Thread-safe). If an item with the same id already exists it won't be added.
      * @param item A {@link DataItem} object
      */
     public void addItem(DataItem item){
-        // Prevent duplicates from being added
-        if(mIndexMap.containsKey(item.getId()))
-            return;
         // Cannot add items without labels being set
         if(mLabels == null)
             return;
+        PredictorMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        // Encoding doesn't touch the index, hence it is done before taking the lock
+        PredictionStore predictions = encodeItem(item);
         synchronized (this) {
+            Generation.Editor editor = edit();
+            indexItem(editor, item, predictions);
+            mGeneration = editor.publish();
+            scheduleCompaction();
+        }
+        if(metrics != null)
+            metrics.onAdd(System.nanoTime() - start, 1);
+    }
 
-            int level = mLabels.size();
-            for(String label: mLabels.keySet()){
-                List<String> fieldList = null;
-                if((fieldList = item.getField(label)) != null){
-
-                    for(int tIndex = 0; tIndex < fieldList.size(); tIndex++){
-                        String field = fieldList.get(tIndex);
-                        List<String> variants = null;
-                        DataItem.FieldType itemFieldType = mLabels.get(label);
-                        switch(itemFieldType){
-                            case NUMBER:
-                                variants = Utils.variantsOfNumber(field);
-                                break;
-                            case TEXT_SEPARATED:
-                                variants = Utils.variantsOfText(field, shouldIncludeNumbers());
-                                break;
-                            case TEXT_CONTIGUOUS:
-                            default:
-                                variants = new ArrayList<String>();
-                                variants.add(field);
-                                break;
-                        }
+    /**
+     * Add a batch of items (Thread-safe). Use it for the initial load, it is much faster than
+     * calling {@link #addItem(DataItem)} for every item. The items are encoded in parallel on all
+     * cores and the index is then built in one pass and published at once. Items with ids that
+     * already exist won't be added.
+     * @param items A Collection of {@link DataItem} objects
+     */
+    public void addItems(Collection<? extends DataItem> items){
+        // Cannot add items without labels being set
+        if(mLabels == null || items.isEmpty())
+            return;
 
-                        for(String variant: variants){
-                            addItem(variant, label, item, level, tIndex);
-                        }
+        PredictorMetrics metrics = mMetrics;
+        long started = metrics == null ? 0 : System.nanoTime();
+        DataItem[] itemArray = items.toArray(new DataItem[items.size()]);
+        // Loaded in rank order into an empty Predictor, otherwise ranked by the next compaction
+        boolean ranked = mGeneration.mCount == 0;
+        if(ranked)
+            Arrays.sort(itemArray, new Comparator<DataItem>() {
+                @Override
+                public int compare(DataItem a, DataItem b) {
+                    return Prediction.compareItems(a, b);
+                }
+            });
+        List<PredictionStore> encodings = encodeItems(itemArray);
+        if(encodings == null)
+            return;
+
+        synchronized (this) {
+            Generation.Editor editor = edit();
+            int first = editor.size();
+            for(int i = 0; i < itemArray.length; i++)
+                registerItem(editor, itemArray[i], encodings.get(i));
+            if(ranked && first == 0)
+                editor.markRanked();
+            editor.indexFrom(first);
+            mGeneration = editor.publish();
+            scheduleCompaction();
+        }
+        if(metrics != null)
+            metrics.onAdd(System.nanoTime() - started, itemArray.length);
+    }
+
+    /**
+     * Add the items of a source (Thread-safe). The items are pulled in chunks on the calling
+     * thread and encoded on worker threads while the next ones are read. Only a few chunks are
+     * pulled ahead of the indexing, hence the memory used to load stays the same however large the
+     * source is. Every chunk is indexed in one pass and published on its own, predictions see the
+     * items as they are loaded. The items are ranked by the next compaction. Items with ids that
+     * already exist won't be added. If the thread is interrupted the load stops after the chunks
+     * indexed so far, the items read ahead are dropped and the interrupt flag stays set.
+     * @param source The items
+     * @return The number of items pulled from the source and indexed, fewer than the source had
+     * if the thread was interrupted
+     */
+    public int addItems(DataSource source){
+        return streamItems(source, this);
+    }
+
+    /**
+     * Pipeline of {@link #addItems(DataSource)} feeding several Predictors, e.g. the input types
+     * of a {@link DualPredictor}. Every chunk is pulled once, encoded by each of them and indexed
+     * by each of them in the order given
+     * @param source The items
+     * @param predictors The Predictors, all with labels set
+     * @return The number of items pulled from the source and indexed
+     */
+    static int streamItems(DataSource source, Predictor... predictors){
+        // Cannot add items without labels being set
+        for(Predictor predictor: predictors)
+            if(predictor.mLabels == null)
+                return 0;
+
+        long started = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<DataItem[]> chunks = new ArrayDeque<DataItem[]>();
+        // The encodings of a chunk by every Predictor in turn
+        ArrayDeque<Future<List<PredictionStore>>> encodings = new ArrayDeque<Future<List<PredictionStore>>>();
+        int count = 0;
+        boolean more = true;
+        try {
+            while(true){
+                // Read ahead only as long as the workers keep up
+                while(more && chunks.size() < threads * STREAM_CHUNKS_PER_THREAD){
+                    final DataItem[] chunk = readChunk(source);
+                    if(chunk == null){
+                        more = false;
+                        break;
+                    }
+                    // The source isn't asked again once it ran dry
+                    more = chunk.length == STREAM_CHUNK;
+                    chunks.add(chunk);
+                    for(final Predictor predictor: predictors){
+                        encodings.add(executor.submit(new Callable<List<PredictionStore>>() {
+                            @Override
+                            public List<PredictionStore> call() throws Exception {
+                                List<PredictionStore> result = new ArrayList<PredictionStore>(chunk.length);
+                                for(DataItem item: chunk)
+                                    result.add(predictor.encodeItem(item));
+                                return result;
+                            }
+                        }));
                     }
                 }
-                level--;
+                if(chunks.isEmpty())
+                    break;
+                // Getting an encoding that is done already doesn't check for interrupts
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+
+                DataItem[] chunk = chunks.poll();
+                for(Predictor predictor: predictors)
+                    predictor.indexChunk(chunk, encodings.poll().get());
+                count += chunk.length;
             }
+        } catch (InterruptedException e) {
+            // The chunks indexed so far stay, the count tells how many
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to encode items", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - started;
+        for(Predictor predictor: predictors){
+            PredictorMetrics metrics = predictor.mMetrics;
+            if(metrics != null)
+                metrics.onAdd(elapsed, count);
+        }
+        return count;
+    }
+
+    /**
+     * Apply a batch of changes (Thread-safe), e.g. the changes of a sync. The new items are
+     * encoded in parallel as in {@link #addItems(Collection)}, then the lock is taken once, every
+     * posting list loses and gains its share of the batch in one step and a single generation is
+     * published. Predictions see either none or all of the changes.
+     * @param changes The changes, applied in order
+     */
+    public void applyChanges(ChangeSet changes){
+        // Cannot add items without labels being set
+        if(mLabels == null || changes.isEmpty())
+            return;
+
+        PredictorMetrics metrics = mMetrics;
+        long started = metrics == null ? 0 : System.nanoTime();
+        DataItem[] items = new DataItem[changes.mAdditions];
+        int n = 0;
+        for(ChangeSet.Change change: changes.mChanges)
+            if(change.mItem != null)
+                items[n++] = change.mItem;
+        List<PredictionStore> encodings = encodeItems(items);
+        if(encodings == null)
+            return;
+
+        int removals;
+        synchronized (this) {
+            // Work out the net effect first, items added and removed within the batch are never indexed
+            HashMap<String, int[]> indexMap = indexMap();
+            LinkedHashMap<String, Integer> added = new LinkedHashMap<String, Integer>();
+            HashSet<String> removed = new HashSet<String>();
+            n = 0;
+            for(ChangeSet.Change change: changes.mChanges){
+                String id = change.mRemovedId;
+                if(id != null && added.remove(id) == null && indexMap.containsKey(id))
+                    removed.add(id);
+                if(change.mItem != null){
+                    id = change.mItem.getId();
+                    if(!added.containsKey(id) && (removed.contains(id) || !indexMap.containsKey(id)))
+                        added.put(id, n);
+                    n++;
+                }
+            }
+
+            int[] indices = new int[16];
+            int count = 0;
+            for(String id: removed){
+                for(int index: indexMap.remove(id)){
+                    if(count == indices.length)
+                        indices = Arrays.copyOf(indices, count * 2);
+                    indices[count++] = index;
+                }
+            }
+            Arrays.sort(indices, 0, count);
+            removals = removed.size();
+
+            Generation.Editor editor = edit();
+            editor.removeAll(indices, count);
+            int first = editor.size();
+            for(int i: added.values())
+                registerItem(editor, items[i], encodings.get(i));
+            editor.indexFrom(first);
+            mGeneration = editor.publish();
+            scheduleCompaction();
+        }
+        if(metrics != null){
+            // Both halves of the batch report the time of the whole batch
+            long elapsed = System.nanoTime() - started;
+            if(items.length > 0)
+                metrics.onAdd(elapsed, items.length);
+            if(removals > 0 || items.length == 0)
+                metrics.onRemove(elapsed, removals);
         }
     }
 
@@ -136,132 +502,953 @@ public class Predictor {
      * @param id Id of the data item to remove
      */
     public void removeItem(String id){
+        PredictorMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
         synchronized (this) {
-            if(mIndexMap.containsKey(id)){
-                for(int index: mIndexMap.get(id)){
-                    Prediction p = mPredictions.get(index);
-                    ListIterator<HashSet<Integer>[]> iterator = mPartitions.listIterator();
-                    for(char c: p.getEncoding().toCharArray()){
-                        int i = mapInput(c);
-                        if(i == -1) continue;
-                        HashSet<Integer>[] col = iterator.next();
-                        if(col[i] != null){
-                            col[i].remove(index);
-                        }
-                    }
-                    mPredictions.set(index, null);
-                }
-                mIndexMap.remove(id);
-            }
+            if(!indexMap().containsKey(id))
+                return;
+            Generation.Editor editor = edit();
+            removeItem(editor, id);
+            mGeneration = editor.publish();
+            scheduleCompaction();
         }
+        if(metrics != null)
+            metrics.onRemove(System.nanoTime() - start, 1);
     }
 
     /**
      * Replace an existing item with a new item. Use this method to update the Predictor
      * when any changes occur in background, example a change in contact item. This method is
-     * identical to calling removeItem() and addItem()
+     * identical to calling removeItem() and addItem() except that predictions never see
+     * the state in between
      * @param oldId Id of the existing dataitem
      * @param newItem The new item
      */
     public void replaceItem(String oldId, DataItem newItem){
+        if(mLabels == null)
+            return;
+        PredictorMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        PredictionStore predictions = encodeItem(newItem);
         synchronized (this) {
-            removeItem(oldId);
-            addItem(newItem);
+            Generation.Editor editor = edit();
+            removeItem(editor, oldId);
+            indexItem(editor, newItem, predictions);
+            mGeneration = editor.publish();
+            scheduleCompaction();
+        }
+        if(metrics != null)
+            metrics.onAdd(System.nanoTime() - start, 1);
+    }
+
+
+    /**
+     * Compact the index right away in the calling thread (Thread-safe). Normally compaction runs
+     * in the background as per {@link #setCompactionRatio(float)}. The new index is built without
+     * holding the lock, updates published in the meantime are replayed at the end. Predictions
+     * keep running on the old index until the new one is published.
+     */
+    public void compact(){
+        synchronized (mCompactionLock) {
+            Generation source = mGeneration;
+            if(source.getTombstones() == 0 && source.mRanked == source.mCount)
+                return;
+
+            int[] remap = new int[source.mCount];
+            Generation.Editor editor = rebuild(source, remap, mEngine);
+
+            synchronized (this) {
+                Generation current = mGeneration;
+
+                // Replay the additions and removals published since the source generation
+                int first = editor.size();
+                int[] appended = new int[current.mCount - source.mCount];
+                for(int index = source.mCount; index < current.mCount; index++)
+                    appended[index - source.mCount] = current.mRemoved.contains(index) ? -1 :
+                            editor.add(current.mStore, index);
+                editor.indexFrom(first);
+
+                // The editor indexed these itself, every index it holds must support that
+                for(int index = current.mRemoved.next(0); index >= 0 && index < source.mCount;
+                    index = current.mRemoved.next(index + 1)){
+                    if(remap[index] >= 0)
+                        editor.remove(remap[index]);
+                }
+
+                for(int[] indices: indexMap().values()){
+                    for(int i = 0; i < indices.length; i++)
+                        indices[i] = indices[i] < source.mCount ? remap[indices[i]] :
+                                appended[indices[i] - source.mCount];
+                }
+                mGeneration = editor.publishAfter(current);
+            }
         }
     }
 
+    /**
+     * Write the index to a file (Thread-safe). Only the live predictions of the latest snapshot
+     * are written, renumbered as in {@link #compact()}, along with the labels and the input
+     * type. Updates and predictions are not blocked while the file is written. Load it with
+     * {@link #openIndex(File, DataItemResolver)} to skip encoding and indexing on startup. The
+     * file is replaced at once, e.g. a Predictor opened from it keeps working.
+     * @param file The file, replaced if it exists
+     * @throws IOException If the file can't be written
+     */
+    public void writeIndex(File file) throws IOException {
+        if(mLabels == null)
+            throw new IllegalStateException("Labels must be set before writing the index");
+        Generation source = mGeneration;
+        // The file holds the posting lists of the columns whatever the engine
+        Generation.Editor editor = rebuild(source, null, IndexEngine.COLUMNS);
+        IndexFile.write(file, mInputType, mLabels, mSubstrings, editor.publishAfter(source));
+    }
 
     /**
-     * Make a prediction on a query (Thread-safe). For small datasets (~1000) it is fast enough to
-     * be called from the UI thread. Call in a separate thread for larger sizes. Pass entire
-     * string everytime.
+     * Make a prediction on a query (Thread-safe). Predictions never wait for updates, they run on
+     * the latest published snapshot of the data. For small datasets (~1000) it is fast enough to
+     * be called from the UI thread. Call in a separate thread or use an {@link AsyncSession} for
+     * larger sizes, see ScalingTest for the latency with a million items. Pass entire string
+     * everytime.
      * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
      * @return A Collection of Prediction objects sorted by order enforced by the DataItem interface
      * implementation. Additionally items will be sorted by field type
      */
     public Collection<Prediction> predict(String query){
+        return predict(query, NO_LIMIT);
+    }
+
+    /**
+     * Make a prediction on a query and keep only the best predictions (Thread-safe). Use it when
+     * only a screenful of results is displayed. The index is matched a window of predictions at a
+     * time until the best ones are found, hence short queries with a lot of matches don't pay for
+     * intersecting or sorting all of them.
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @return A Collection of at most limit Prediction objects in the same order as
+     * {@link #predict(String)}
+     */
+    public Collection<Prediction> predict(String query, int limit){
+        if(limit < 0)
+            throw new IllegalArgumentException("Limit cannot be negative");
+        if(query == null || query.isEmpty())
+            return null;
+
+        PredictorMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        Generation generation = mGeneration;
+        int[] keys = new int[query.length()];
+        int length = mapQuery(query, keys, generation.getDepth());
+
+        ResultCache cache = mCache;
+        String cacheKey = cache == null ? null : ResultCache.keyOf(keys, length, limit);
+        Collection<Prediction> predictions = cache == null ? null : cache.get(cacheKey, generation.mVersion);
+        if(predictions == null){
+            predictions = collect(generation, null, keys, length, limit, null, metrics);
+            if(cache != null){
+                predictions = Collections.unmodifiableCollection(predictions);
+                cache.put(cacheKey, generation.mVersion, predictions);
+            }
+        }
+        if(metrics != null)
+            metrics.onPredict(System.nanoTime() - start, length, predictions.size());
+        return predictions;
+    }
+
+    /**
+     * Make a prediction that tolerates typos (Thread-safe), see
+     * {@link #predictFuzzy(String, int, int, long)}. Gives up looking for more inexact matches
+     * after 20ms
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param maxEdits Maximum number of mistyped, extra or missing keys
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @return The exact predictions followed by the inexact ones
+     */
+    public Collection<Prediction> predictFuzzy(String query, int maxEdits, int limit){
+        return predictFuzzy(query, maxEdits, limit, DEFAULT_FUZZY_BUDGET_MICROS);
+    }
+
+    /**
+     * Make a prediction that tolerates typos (Thread-safe). Fields also match if the query can
+     * be turned into their beginning, or the beginning of a later word of a separated field,
+     * with at most maxEdits mistyped, extra or missing keys. Candidates are taken from the index:
+     * the columns match every part of the query that a typo can't have touched and the trie is
+     * walked along the paths within reach, the word index does the same with its bigrams.
+     * Initials of the words before the matched one only match exactly.
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param maxEdits Maximum number of mistyped, extra or missing keys, 1 or 2 is plenty. Queries
+     *                 of no more keys than that only match exactly
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @param budgetMicros Time after which no more candidates are verified. The exact predictions
+     *                     are always complete
+     * @return The exact predictions in the order of {@link #predict(String, int)}, followed by
+     * one prediction per other item ordered by the number of edits and then in the same order
+     */
+    public Collection<Prediction> predictFuzzy(String query, int maxEdits, int limit, long budgetMicros){
+        if(maxEdits < 0 || limit < 0)
+            throw new IllegalArgumentException("Edits and limit cannot be negative");
         if(query == null || query.isEmpty())
             return null;
 
+        long deadline = System.nanoTime() + budgetMicros * 1000;
+        Generation generation = mGeneration;
+        int[] keys = new int[query.length()];
+        // Extra keys can make the query longer than any field
+        int length = mapQuery(query, keys, generation.getDepth() + maxEdits);
+        int exactLength = Math.min(length, generation.getDepth());
+        List<Prediction> predictions = new ArrayList<Prediction>(collect(generation, null, keys, exactLength,
+                limit, null, null));
+        if(length <= maxEdits || (limit != NO_LIMIT && predictions.size() >= limit))
+            return predictions;
+
+        HashSet<DataItem> exact = new HashSet<DataItem>();
+        for(Prediction prediction: predictions)
+            exact.add(prediction.getItem());
+        HashMap<DataItem, FuzzyMatch> matches = new HashMap<DataItem, FuzzyMatch>();
+        // Fields matched by words are also verified from the start of every later word
+        PostingList candidates = generation.mIndex.matchFuzzy(keys, length, maxEdits);
+        PostingList words = generation.mWords.matchFuzzy(keys, length, maxEdits);
+        FuzzyMatcher matcher = new FuzzyMatcher(mInputType, maxEdits);
+        PredictionStore store = generation.mStore;
+        int candidate = nextIndex(generation, candidates, 0);
+        int word = nextIndex(generation, words, 0);
+        int steps = 0;
+        while(candidate >= 0 || word >= 0){
+            if(++steps % CANCELLATION_INTERVAL == 0 && System.nanoTime() > deadline)
+                break;
+            int index = first(candidate, word);
+            DataItem item = store.getItem(index);
+            if(!exact.contains(item)){
+                FuzzyMatch match = index == candidate ? fuzzyMatch(matcher, store, index, 0, keys, length) : null;
+                for(int w = 0; index == word && w < store.getWordCount(index); w++)
+                    match = closer(match, fuzzyMatch(matcher, store, index, store.getWord(index, w), keys, length));
+                FuzzyMatch previous = matches.get(item);
+                if(match != null && (previous == null || match.compareTo(previous) < 0))
+                    matches.put(item, match);
+            }
+            if(index == candidate)
+                candidate = nextIndex(generation, candidates, index + 1);
+            if(index == word)
+                word = nextIndex(generation, words, index + 1);
+        }
+
+        List<FuzzyMatch> inexact = new ArrayList<FuzzyMatch>(matches.values());
+        Collections.sort(inexact);
+        for(FuzzyMatch match: inexact){
+            if(limit != NO_LIMIT && predictions.size() >= limit)
+                break;
+            predictions.add(match.mPrediction);
+        }
+        return predictions;
+    }
+
+    /**
+     * Make a prediction on a query and stream the matches to a consumer (Thread-safe). With the
+     * default index the posting lists are walked in step without creating any intermediate lists
+     * or result collections, only a small view per match. Matches arrive unsorted, see
+     * {@link PredictionConsumer}.
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param consumer Receives the matches
+     */
+    public void predict(String query, PredictionConsumer consumer){
+        if(query == null || query.isEmpty())
+            return;
+
+        PredictorMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        CountingConsumer counter = metrics == null ? null : new CountingConsumer(consumer);
+        if(counter != null)
+            consumer = counter;
+        Generation generation = mGeneration;
+        int[] keys = new int[query.length()];
+        int length = mapQuery(query, keys, generation.getDepth());
+        if(generation.mWords.isEmpty() && generation.mGrams.isEmpty())
+            generation.mIndex.stream(keys, length, generation, consumer);
+        else
+            forEachMatch(generation, generation.mIndex.match(keys, length, generation.getKeys(mInputType), metrics),
+                    keys, length, consumer);
+        if(counter != null)
+            metrics.onPredict(System.nanoTime() - start, length, counter.mCount);
+    }
+
+    /**
+     * Set a listener for latencies and candidate counts (Thread-safe). Without a listener
+     * nothing is measured, with one every update and prediction takes a couple of calls to
+     * {@link System#nanoTime()} and predictions count the candidates after every step of their plan
+     * @param metrics The listener, null to stop measuring
+     */
+    public void setMetrics(PredictorMetrics metrics){
+        mMetrics = metrics;
+    }
+
+    /**
+     * Cache the results of {@link #predict(String)} and {@link #predict(String, int)} (Thread-safe).
+     * Useful when the same few short queries come in over and over, e.g. the first keys typed
+     * in a dialer: a cached query doesn't touch the index at all. Every update invalidates all
+     * the cached results. While the cache is on the returned collections are shared between
+     * callers, hence they are unmodifiable
+     * @param maxQueries Maximum number of cached queries, 0 to turn the cache off
+     * @param maxPredictions Maximum number of predictions of all the cached queries. Results
+     *                       with more predictions than this are not cached
+     */
+    public void setResultCache(int maxQueries, int maxPredictions){
+        if(maxQueries < 0 || maxPredictions < 0)
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        mCache = maxQueries == 0 || maxPredictions == 0 ? null : new ResultCache(maxQueries, maxPredictions);
+    }
+
+    /**
+     * Get the gauges of the latest snapshot (Thread-safe). Estimating the size of the index walks
+     * all of its posting lists, hence poll it every now and then rather than per query
+     * @return The {@link PredictorStats}
+     */
+    public PredictorStats getStats(){
+        Generation generation = mGeneration;
+        int items;
+        synchronized (this) {
+            // An index file that wasn't updated yet holds exactly the items of the file
+            items = mIndexMap == null ? generation.mStore.mFile.getItemCount() : mIndexMap.size();
+        }
+        ResultCache cache = mCache;
+        return new PredictorStats(items, generation.mCount, generation.getTombstones(),
+                generation.getDepth(), generation.mIndex.estimateBytes(),
+                cache == null ? 0 : cache.getHits(), cache == null ? 0 : cache.getMisses(),
+                cache == null ? 0 : cache.getEvictions());
+    }
+
+    /**
+     * Create a session for incremental predictions as the user types. The session remembers
+     * the candidates of the previous query so that typing one more key costs a single
+     * intersection and deleting keys costs nothing. Sessions are not thread-safe, use one per
+     * search box.
+     * @return A new {@link QuerySession}
+     */
+    public QuerySession newSession(){
+        return new QuerySession(this);
+    }
+
+    /**
+     * Create a session that runs the queries of a search box in the background. Only the result
+     * of the latest query is delivered: queries typed while one is running are coalesced and a
+     * running query is cancelled as soon as a newer one arrives. The queries of all the async
+     * sessions of this Predictor share a small pool of threads.
+     * @return A new {@link AsyncSession}
+     */
+    public AsyncSession newAsyncSession(){
         synchronized (this) {
-            TreeSet<Prediction> predictions = new TreeSet<Prediction>();
-            ListIterator<HashSet<Integer>[]> iterator = mPartitions.listIterator();
-            int pos = 0;
+            if(mQueries == null)
+                mQueries = newQueryExecutor();
+        }
+        return new AsyncSession(this, mQueries);
+    }
 
-            HashSet<Integer> partition = null;
+    /**
+     * Create a session that runs the queries of a search box on the given executor, see
+     * {@link #newAsyncSession()}. A session never has more than one task queued or running
+     * @param executor Runs the queries
+     * @return A new {@link AsyncSession}
+     */
+    public AsyncSession newAsyncSession(Executor executor){
+        return new AsyncSession(this, executor);
+    }
 
-            for(char c: query.toCharArray()){
-                int i = mapInput(c);
-                if(i == -1) continue;
+    /**
+     * Checked by long running queries to stop early
+     */
+    interface Cancellation {
+        boolean isCancelled();
+    }
 
-                if(!iterator.hasNext())
-                    break;
-                HashSet<Integer>[] col = iterator.next();
+    /* Package Private Methods used by QuerySession */
 
-                if(col[i] == null) {
-                    partition = null;
-                    break;
-                }
+    Generation getGeneration(){
+        return mGeneration;
+    }
 
-                if(partition == null)
-                    partition = new HashSet<Integer>(col[i]);
-                else
-                    partition.retainAll(col[i]);
+    PredictorMetrics getMetrics(){
+        return mMetrics;
+    }
 
-                pos++;
+    /**
+     * Collect the matches of a query. The matches of the ranked predictions arrive in result
+     * order, hence they are kept without comparing them and the walk stops as soon as the best
+     * level has enough of them. Only the matches of the predictions appended since the last
+     * compaction are sorted, see {@link Collector}. With a limit the predictions are matched a
+     * window at a time, starting with a chunk of the posting lists and doubling it, hence the
+     * lists beyond the window that fills the best level are never intersected
+     * @param partition Matches of the index or null to match the index window by window
+     * @param cancellation Stops the query, may be null
+     * @param metrics Receives the candidates of the windows matched in the index, may be null
+     * @return The predictions or null if cancelled
+     */
+    Collection<Prediction> collect(Generation generation, PostingList partition, int[] keys, int length,
+                                   int limit, Cancellation cancellation, PredictorMetrics metrics){
+        Collector collector = new Collector(generation, mLabels == null ? 0 : mLabels.size(), limit);
+        IndexEngine.Keys source = generation.getKeys(mInputType);
+        int window = limit == NO_LIMIT ? Integer.MAX_VALUE : PostingList.CHUNK_SIZE;
+        int start = 0;
+        while(start < generation.mCount){
+            int to = (int) Math.min((long) start - start % PostingList.CHUNK_SIZE + window, Integer.MAX_VALUE);
+            PostingList matches = partition != null ? partition.slice(start, to) :
+                    generation.mIndex.match(keys, length, source, metrics, start, to);
+            if(!forEachMatch(generation, matches, keys, length, start, to, cancellation, collector))
+                return null;
+            // Skip the rest of the ranked predictions but not the ones appended after them
+            start = collector.isFull() && start < generation.mRanked ? generation.mRanked : to;
+            window = (int) Math.min(2L * window, Integer.MAX_VALUE);
+        }
+        return collector.getPredictions();
+    }
+
+    /**
+     * Walk the matches of a query in index order and pass them to a consumer as views
+     * @param partition Matches of the index, may be null
+     */
+    void forEachMatch(final Generation generation, PostingList partition, int[] keys, int length,
+                      final PredictionConsumer consumer){
+        forEachMatch(generation, partition, keys, length, 0, Integer.MAX_VALUE, null, new MatchVisitor() {
+            @Override
+            public boolean onMatch(int index, int extent, short[] alignment) {
+                return consumer.onPrediction(new Prediction(generation.mStore, index, extent, alignment),
+                        extent, index);
             }
+        });
+    }
 
-            if(partition != null && !partition.isEmpty()){
+    /**
+     * Walk the matches of a query in index order. The matches of the index are merged with the
+     * verified candidates of the word index and of the gram index, a candidate is reported once,
+     * preferring a match from the start over one by words over one anywhere
+     * @param partition Matches of the index within the window, may be null
+     * @param from The first index to walk
+     * @param to End of the window of the word and gram candidates, see {@link PostingList#slice(int, int)}
+     * @param cancellation Checked every now and then, may be null
+     * @return False if cancelled
+     */
+    private boolean forEachMatch(Generation generation, PostingList partition, int[] keys, int length,
+                                 int from, int to, Cancellation cancellation, MatchVisitor visitor){
+        PostingList words = generation.mWords.match(keys, length, from, to);
+        PostingList grams = generation.mGrams.match(keys, length, from, to);
+        WordIndex.Matcher wordMatcher = words == null ? null : new WordIndex.Matcher(mInputType);
+        GramIndex.Matcher gramMatcher = grams == null ? null : new GramIndex.Matcher(mInputType);
+        int match = nextIndex(generation, partition, from);
+        int word = nextIndex(generation, words, from);
+        int gram = nextIndex(generation, grams, from);
+        int steps = 0;
+        while(match >= 0 || word >= 0 || gram >= 0){
+            if(cancellation != null && ++steps % CANCELLATION_INTERVAL == 0 && cancellation.isCancelled())
+                return false;
+            int index = first(first(match, word), gram);
+            short[] alignment = null;
+            boolean matched = index == match;
+            if(!matched && index == word){
+                alignment = wordMatcher.match(generation.mStore, index, keys, length);
+                matched = alignment != null;
+            }
+            if(!matched && index == gram){
+                alignment = gramMatcher.match(generation.mStore, index, keys, length);
+                matched = alignment != null;
+            }
+            if(matched && !visitor.onMatch(index, length, alignment))
+                return true;
+            if(index == match)
+                match = nextIndex(generation, partition, index + 1);
+            if(index == word)
+                word = nextIndex(generation, words, index + 1);
+            if(index == gram)
+                gram = nextIndex(generation, grams, index + 1);
+        }
+        return true;
+    }
+
+    /*
+     * Verify a fuzzy candidate from one of its keys on, null if it doesn't match
+     */
+    private static FuzzyMatch fuzzyMatch(FuzzyMatcher matcher, PredictionStore store, int index, int from,
+                                         int[] keys, int length){
+        int distance = matcher.match(store, index, from, keys, length);
+        if(distance < 0)
+            return null;
+        short[] alignment = from == 0 ? null : matcher.getAlignment(store, index);
+        return new FuzzyMatch(new Prediction(store, index, matcher.getExtent(), alignment), distance);
+    }
+
+    /*
+     * The closer of two fuzzy matches where null means none
+     */
+    private static FuzzyMatch closer(FuzzyMatch a, FuzzyMatch b){
+        return a == null ? b : b == null || a.compareTo(b) <= 0 ? a : b;
+    }
 
-                for(int index: partition){
-                    Prediction p = mPredictions.get(index);
-                    p.updateExtent(pos);
-                    predictions.add(p);
+    /*
+     * The lower of two indices where -1 means none
+     */
+    private static int first(int a, int b){
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+
+    /**
+     * Receives the matches of a query by index, hence views are only created for the matches
+     * that are kept
+     */
+    private interface MatchVisitor {
+        /**
+         * @param alignment Positions matched by words or null if the leading positions matched
+         * @return True to continue
+         */
+        boolean onMatch(int index, int extent, short[] alignment);
+    }
+
+    /**
+     * Collects the matches of a query in result order. The ranked predictions are ordered by item
+     * with the predictions of an item together and best level first, hence the first match of an
+     * item is its best one and the matches of a level arrive in result order. They are appended to
+     * a list per level without calling the comparator, a full list of the best level ends the
+     * walk. The matches of the unranked predictions are sorted and merged in at the end, this is
+     * the only part of a query that compares items.
+     */
+    private static final class Collector implements MatchVisitor {
+        private final Generation mGeneration;
+        private final int mLimit;
+        private final int mTopLevel;
+        /* Ranked matches per level */
+        private final List<List<Prediction>> mLevels = new ArrayList<List<Prediction>>();
+        private final List<Prediction> mUnranked = new ArrayList<Prediction>();
+        private int mLastItem = -1;
+        private boolean mFull;
+
+        /**
+         * @param topLevel The best level of any prediction
+         */
+        Collector(Generation generation, int topLevel, int limit){
+            mGeneration = generation;
+            mTopLevel = topLevel;
+            mLimit = limit;
+        }
+
+        @Override
+        public boolean onMatch(int index, int extent, short[] alignment) {
+            PredictionStore store = mGeneration.mStore;
+            int item = store.getItemNumber(index);
+            // The predictions of an item are contiguous, only its first match is kept
+            if(item == mLastItem)
+                return true;
+            mLastItem = item;
+
+            Prediction p = new Prediction(store, index, extent, alignment);
+            if(index >= mGeneration.mRanked){
+                mUnranked.add(p);
+                return true;
+            }
+            int level = store.getLevel(index);
+            while(mLevels.size() <= level)
+                mLevels.add(new ArrayList<Prediction>());
+            List<Prediction> predictions = mLevels.get(level);
+            if(mLimit == NO_LIMIT || predictions.size() < mLimit)
+                predictions.add(p);
+            // Nothing ranks before a full list of the best level
+            mFull = mLimit != NO_LIMIT && level >= mTopLevel && predictions.size() >= mLimit;
+            return !mFull;
+        }
+
+        /**
+         * Check if the walk ended early
+         * @return True if the best level has enough matches
+         */
+        boolean isFull(){
+            return mFull;
+        }
+
+        /**
+         * Get the predictions, best first
+         * @return The predictions
+         */
+        List<Prediction> getPredictions(){
+            int size = mUnranked.size();
+            for(List<Prediction> predictions: mLevels)
+                size += predictions.size();
+            if(mLimit != NO_LIMIT)
+                size = Math.min(size, mLimit);
+            ArrayList<Prediction> result = new ArrayList<Prediction>(size);
+            Collections.sort(mUnranked);
+            int unranked = 0;
+            for(int level = mLevels.size() - 1; level >= 0; level--){
+                for(Prediction p: mLevels.get(level)){
+                    while(unranked < mUnranked.size() && mUnranked.get(unranked).compareTo(p) < 0 &&
+                            result.size() < size)
+                        result.add(mUnranked.get(unranked++));
+                    if(result.size() == size)
+                        return result;
+                    result.add(p);
                 }
             }
+            while(unranked < mUnranked.size() && result.size() < size)
+                result.add(mUnranked.get(unranked++));
+            return result;
+        }
+    }
 
-            return predictions;
+    /**
+     * An inexact match, ordered by the number of edits first
+     */
+    private static final class FuzzyMatch implements Comparable<FuzzyMatch> {
+        final Prediction mPrediction;
+        final int mEdits;
+
+        FuzzyMatch(Prediction prediction, int edits){
+            mPrediction = prediction;
+            mEdits = edits;
+        }
+
+        @Override
+        public int compareTo(FuzzyMatch other) {
+            return mEdits != other.mEdits ? mEdits - other.mEdits : mPrediction.compareTo(other.mPrediction);
+        }
+    }
+
+    /**
+     * Counts the matches passed on to a consumer
+     */
+    static final class CountingConsumer implements PredictionConsumer {
+        private final PredictionConsumer mConsumer;
+        int mCount;
+
+        CountingConsumer(PredictionConsumer consumer){
+            mConsumer = consumer;
+        }
+
+        @Override
+        public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+            mCount++;
+            return mConsumer.onPrediction(prediction, extent, ordinal);
         }
     }
 
     /* Private Methods */
 
-    private void addItem(String field, String label, DataItem item, int level, int fieldIndex){
-        ArrayList<Integer> alignments = new ArrayList<Integer>(field.length());
-        boolean includeSymbols = mLabels.get(label) == DataItem.FieldType.NUMBER;
-        String encoding = encodeInput(field, includeSymbols, alignments);
+    private Generation.Editor edit(){
+        return new Generation.Editor(mGeneration, mInputType);
+    }
+
+    private HashMap<String, int[]> indexMap(){
+        if(mIndexMap == null){
+            // Loaded from a file, nothing was updated since hence all predictions are in there
+            Generation generation = mGeneration;
+            mIndexMap = new HashMap<String, int[]>(generation.mStore.mFile.getItemCount() * 4 / 3 + 1);
+            for(int index = 0; index < generation.mCount; index++){
+                String id = generation.mStore.getItemId(index);
+                int[] indices = mIndexMap.get(id);
+                if(indices == null){
+                    indices = new int[1];
+                }else{
+                    indices = Arrays.copyOf(indices, indices.length + 1);
+                }
+                indices[indices.length - 1] = index;
+                mIndexMap.put(id, indices);
+            }
+        }
+        return mIndexMap;
+    }
+
+    /**
+     * Build a detached copy of a generation with only the live predictions, renumbered in rank
+     * order. This is the only place apart from loading into an empty Predictor where items are
+     * compared to rank them
+     * @param remap Receives the new index of every prediction or -1 if removed, may be null
+     */
+    private Generation.Editor rebuild(Generation source, int[] remap, IndexEngine engine){
+        Generation.Editor editor = new Generation.Editor(
+                new Generation(Math.max(16, (source.mCount - source.getTombstones()) * 5 / 4),
+                        engine.newIndex(maxKeyLength(mInputType)), maxKeyLength(mInputType)),
+                mInputType);
+        if(remap != null)
+            Arrays.fill(remap, -1);
+        final PredictionStore store = source.mStore;
+        // The first prediction of every live item, stably sorted hence ties keep their order
+        List<Integer> items = new ArrayList<Integer>();
+        int last = -1;
+        for(int index = 0; index < source.mCount; index++){
+            if(source.mRemoved.contains(index))
+                continue;
+            if(last != index - 1 || last < 0 || store.getItemNumber(last) != store.getItemNumber(index))
+                items.add(index);
+            last = index;
+        }
+        Collections.sort(items, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Prediction.compareItems(store.getItem(a), store.getItem(b));
+            }
+        });
+
+        for(int first: items){
+            int number = store.getItemNumber(first);
+            for(int index = first; index < source.mCount && store.getItemNumber(index) == number &&
+                    !source.mRemoved.contains(index); index++){
+                int target = editor.add(store, index);
+                if(remap != null)
+                    remap[index] = target;
+            }
+        }
+        editor.markRanked();
+        editor.indexFrom(0);
+        return editor;
+    }
+
+    /**
+     * Index a chunk of streamed items and publish them
+     */
+    private void indexChunk(DataItem[] chunk, List<PredictionStore> encodings){
+        synchronized (this) {
+            Generation.Editor editor = edit();
+            int first = editor.size();
+            for(int i = 0; i < chunk.length; i++)
+                registerItem(editor, chunk[i], encodings.get(i));
+            editor.indexFrom(first);
+            mGeneration = editor.publish();
+            scheduleCompaction();
+        }
+    }
 
-        if(!encoding.isEmpty() && encoding.length() < MAX_ITEM_LENGTH){
-            mPredictions.add(new Prediction(item, encoding, alignments, label, level, fieldIndex));
-            int index = mPredictions.size() - 1;
-            addToPartitions(encoding, index);
+    /**
+     * Pull the next chunk of items
+     * @return The items or null if the source is exhausted
+     */
+    private static DataItem[] readChunk(DataSource source){
+        DataItem[] chunk = new DataItem[STREAM_CHUNK];
+        int n = 0;
+        DataItem item;
+        while(n < chunk.length && (item = source.next()) != null)
+            chunk[n++] = item;
+        if(n == 0)
+            return null;
+        return n == chunk.length ? chunk : Arrays.copyOf(chunk, n);
+    }
 
-            if(!mIndexMap.containsKey(item.getId()))
-                mIndexMap.put(item.getId(), new LinkedList<Integer>());
+    /**
+     * Encode items, in parallel on all cores when there are enough of them
+     * @return The encodings in the order of the items or null if the thread was interrupted
+     */
+    private List<PredictionStore> encodeItems(final DataItem[] items){
+        List<PredictionStore> encodings = new ArrayList<PredictionStore>(items.length);
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                items.length / MIN_ITEMS_PER_THREAD);
 
-            mIndexMap.get(item.getId()).add(index);
+        if(threads <= 1){
+            for(DataItem item: items)
+                encodings.add(encodeItem(item));
+        }else{
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                int chunk = (items.length + threads * 4 - 1) / (threads * 4);
+                List<Future<List<PredictionStore>>> futures = new ArrayList<Future<List<PredictionStore>>>();
+                for(int start = 0; start < items.length; start += chunk){
+                    final int from = start;
+                    final int to = Math.min(items.length, start + chunk);
+                    futures.add(executor.submit(new Callable<List<PredictionStore>>() {
+                        @Override
+                        public List<PredictionStore> call() throws Exception {
+                            List<PredictionStore> result = new ArrayList<PredictionStore>(to - from);
+                            for(int i = from; i < to; i++)
+                                result.add(encodeItem(items[i]));
+                            return result;
+                        }
+                    }));
+                }
+                for(Future<List<PredictionStore>> future: futures)
+                    encodings.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to encode items", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
         }
 
+        return encodings;
     }
 
-    @SuppressWarnings("unchecked")
-    private void addToPartitions(String encoding, int index){
-        ListIterator<HashSet<Integer>[]> iterator = mPartitions.listIterator();
-        for(char c: encoding.toCharArray()){
-            int i = mapInput(c);
-            if(i == -1) continue;
+    /**
+     * Encode the fields of an item and their variants
+     * @return A store holding the encodings of the item only
+     */
+    private PredictionStore encodeItem(DataItem item){
+        PredictionStore.Writer predictions = new PredictionStore.Writer(4);
+        // Scratch buffers for the encoder, shared by all the variants
+        char[] encoding = new char[Math.min(mMaxFieldLength, DEFAULT_MAX_FIELD_LENGTH)];
+        short[] positions = new short[encoding.length];
+        int level = mLabels.size();
+        for(String label: mLabels.keySet()){
+            List<String> fieldList = null;
+            if((fieldList = item.getField(label)) != null){
 
-            HashSet<Integer>[] col = null;
-            if(iterator.hasNext()) {
-                col = iterator.next();
-            }else{
-                col = new HashSet[maxKeyLength(mInputType)];
-                iterator.add(col);
+                for(int tIndex = 0; tIndex < fieldList.size(); tIndex++){
+                    String field = fieldList.get(tIndex);
+                    List<String> variants = null;
+                    DataItem.FieldType itemFieldType = mLabels.get(label);
+                    boolean substring = mSubstrings.contains(itemFieldType);
+                    switch(itemFieldType){
+                        case NUMBER:
+                            // Every variant is a suffix of the number
+                            if(substring){
+                                variants = new ArrayList<String>();
+                                variants.add(field);
+                            }else{
+                                variants = Utils.variantsOfNumber(field);
+                            }
+                            break;
+                        case TEXT_SEPARATED:
+                            // Stored once, the words are matched at query time
+                            encodeVariant(predictions, field, label, item, level, tIndex,
+                                    Utils.wordStarts(field, shouldIncludeNumbers()), substring, encoding,
+                                    positions);
+                            continue;
+                        case TEXT_CONTIGUOUS:
+                        default:
+                            variants = new ArrayList<String>();
+                            variants.add(field);
+                            break;
+                    }
+
+                    for(String variant: variants)
+                        encodeVariant(predictions, variant, label, item, level, tIndex, null,
+                                substring, encoding, positions);
+                }
             }
-            if(col[i] == null)
-                col[i] = new HashSet<Integer>();
-            col[i].add(index);
+            level--;
+        }
+        return predictions;
+    }
+
+    /**
+     * Encode a field or a variant of it
+     * @param wordStarts Offsets of the words after the first one if matched by words, else null
+     * @param substring True if matched anywhere
+     */
+    private void encodeVariant(PredictionStore.Writer predictions, String field, String label,
+                               DataItem item, int level, int fieldIndex, int[] wordStarts,
+                               boolean substring, char[] encoding, short[] positions){
+        // QWERTY encodings always keep the symbols
+        boolean includeSymbols = mInputType == InputType.QWERTY_KEYPAD ||
+                mLabels.get(label) == DataItem.FieldType.NUMBER;
+        int length = KeyEncoder.of(mInputType).encode(field, includeSymbols, encoding, positions);
+        if(length > encoding.length && length <= mMaxFieldLength){
+            // Rare long values get buffers of their own
+            encoding = new char[length];
+            positions = new short[length];
+            KeyEncoder.of(mInputType).encode(field, includeSymbols, encoding, positions);
         }
+
+        // Nothing is allocated for the variants that are dropped
+        if(length > 0 && length <= mMaxFieldLength)
+            predictions.add(item, label, level, fieldIndex, encoding, positions, length,
+                    wordsOf(wordStarts, encoding, positions, length), substring);
+    }
+
+    /**
+     * Translate the offsets of words into indices of the key sequence of an encoding
+     * @return The indices or null if there are no words to match
+     */
+    private short[] wordsOf(int[] wordStarts, char[] encoding, short[] positions, int length){
+        if(wordStarts == null || wordStarts.length == 0)
+            return null;
+        short[] words = new short[wordStarts.length];
+        int count = 0;
+        int key = 0;
+        for(int c = 0; c < length && count < words.length; c++){
+            if(mapInput(encoding[c]) == -1)
+                continue;
+            // Words start with a letter or a digit which is always encoded
+            if((positions[c] & 0xFFFF) == wordStarts[count])
+                words[count++] = (short) key;
+            key++;
+        }
+        if(count == 0)
+            return null;
+        return count == words.length ? words : Arrays.copyOf(words, count);
+    }
+
+    private void indexItem(Generation.Editor editor, DataItem item, PredictionStore predictions){
+        int first = editor.size();
+        if(!registerItem(editor, item, predictions))
+            return;
+
+        for(int index = first; index < editor.size(); index++)
+            editor.index(index);
+    }
+
+    /**
+     * Append the predictions of an item without indexing them
+     * @return False if the item is a duplicate
+     */
+    private boolean registerItem(Generation.Editor editor, DataItem item, PredictionStore predictions){
+        // Prevent duplicates from being added
+        if(indexMap().containsKey(item.getId()))
+            return false;
+
+        int[] indices = new int[predictions.size()];
+        for(int index = 0; index < indices.length; index++)
+            indices[index] = editor.add(predictions, index);
+        indexMap().put(item.getId(), indices);
+        return true;
+    }
+
+    private void removeItem(Generation.Editor editor, String id){
+        int[] indices = indexMap().remove(id);
+        if(indices == null)
+            return;
+
+        for(int index: indices)
+            editor.remove(index);
+    }
+
+    private void scheduleCompaction(){
+        Generation generation = mGeneration;
+        float threshold = generation.mCount * mCompactionRatio;
+        if(mCompacting || mCompactionRatio <= 0 || generation.mCount < MIN_COMPACTION_SIZE ||
+                (generation.getTombstones() < threshold && generation.mCount - generation.mRanked < threshold))
+            return;
+
+        mCompacting = true;
+        if(mBackground == null)
+            mBackground = newBackgroundExecutor();
+        mBackground.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } finally {
+                    synchronized (Predictor.this) {
+                        mCompacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private static ExecutorService newQueryExecutor(){
+        int threads = Math.max(1, Math.min(MAX_QUERY_THREADS, Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Predictor-query");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static ExecutorService newBackgroundExecutor(){
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Predictor-background");
+                // Never keep the application alive
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     private int maxKeyLength(InputType inputType){
@@ -273,13 +1460,31 @@ public class Predictor {
         return mInputType == InputType.QWERTY_KEYPAD;
     }
 
-    private int mapInput(char key){
-        if(mInputType == InputType.NUMBER_KEYPAD) return Utils.mapKey(key);
-        else return Utils.mapAlphaNum(key);
+    int mapInput(char key){
+        return Utils.mapInput(mInputType, key);
+    }
+
+    /*
+     * Ignores the items appended after the generation
+     */
+    private static int nextIndex(Generation generation, PostingList list, int from){
+        if(list == null)
+            return -1;
+        int index = list.next(from);
+        return index < generation.mCount ? index : -1;
     }
 
-    private String encodeInput(String source, boolean includeSymbols, List<Integer> positions){
-        if(mInputType == InputType.NUMBER_KEYPAD) return Utils.mapToKeypad(source, includeSymbols, positions);
-        else return Utils.mapToAlphaNum(source, true, positions);
+    /**
+     * Map the keys of a query, the ones beyond the depth of the index are ignored
+     * @return Number of keys
+     */
+    private int mapQuery(String query, int[] keys, int depth){
+        int length = 0;
+        for(int c = 0; c < query.length() && length < depth; c++){
+            int key = mapInput(query.charAt(c));
+            if(key != -1)
+                keys[length++] = key;
+        }
+        return length;
     }
-}
\ No newline at end of file
+}
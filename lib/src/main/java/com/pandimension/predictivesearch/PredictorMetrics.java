@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Listener for the events of a Predictor, set with {@link Predictor#setMetrics(PredictorMetrics)}.
+ * Use {@link MetricsRecorder} for histograms or forward the events to your metrics library. The
+ * callbacks are made on the threads doing the work, hence they must be thread-safe and cheap.
+ * Without a listener nothing is measured at all.
+ *
+ * Gauges such as the number of items or the size of the index are read on demand with
+ * {@link Predictor#getStats()}.
+ */
+public interface PredictorMetrics {
+    /**
+     * Called after every prediction, including the ones of sessions
+     * @param nanos Time taken
+     * @param keys Number of keys in the query
+     * @param predictions Number of predictions returned or streamed
+     */
+    void onPredict(long nanos, int keys, int predictions);
+
+    /**
+     * Called after every intersection step of a prediction. Planned queries match the keys in
+     * the order of the plan and report the final step once the rest is checked directly. Queries
+     * with a limit match a window of predictions at a time and report the steps of every window.
+     * Sessions report the keys they intersect, not the cached ones. Indices that can't narrow
+     * candidates down key by key report the final step only and queries streamed straight from
+     * the index report none
+     * @param step Number of keys matched so far
+     * @param candidates Number of candidates left
+     */
+    void onCandidates(int step, int candidates);
+
+    /**
+     * Called after items were added or replaced
+     * @param nanos Time taken, including encoding
+     * @param items Number of items
+     */
+    void onAdd(long nanos, int items);
+
+    /**
+     * Called after items were removed, including the items replaced by a batch of changes
+     * @param nanos Time taken
+     * @param items Number of items
+     */
+    void onRemove(long nanos, int items);
+}
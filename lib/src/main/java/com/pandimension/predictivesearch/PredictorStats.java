@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+/**
+ * Gauges of a Predictor at a point in time, obtained from {@link Predictor#getStats()}
+ */
+public final class PredictorStats {
+    private final int mItems;
+    private final int mVariants;
+    private final int mTombstones;
+    private final int mDepth;
+    private final long[] mColumnBytes;
+    private final long mCacheHits;
+    private final long mCacheMisses;
+    private final long mCacheEvictions;
+
+    PredictorStats(int items, int variants, int tombstones, int depth, long[] columnBytes,
+                   long cacheHits, long cacheMisses, long cacheEvictions){
+        mItems = items;
+        mVariants = variants;
+        mTombstones = tombstones;
+        mDepth = depth;
+        mColumnBytes = columnBytes;
+        mCacheHits = cacheHits;
+        mCacheMisses = cacheMisses;
+        mCacheEvictions = cacheEvictions;
+    }
+
+    /**
+     * Get the number of items
+     * @return The count
+     */
+    public int getItemCount(){
+        return mItems;
+    }
+
+    /**
+     * Get the number of indexed variants, i.e. encoded field values, including the removed ones
+     * @return The count
+     */
+    public int getVariantCount(){
+        return mVariants;
+    }
+
+    /**
+     * Get the number of removed variants that still occupy a slot until the next compaction
+     * @return The count
+     */
+    public int getTombstoneCount(){
+        return mTombstones;
+    }
+
+    /**
+     * Get the number of positions the index partitions the variants by
+     * @return The depth
+     */
+    public int getDepth(){
+        return mDepth;
+    }
+
+    /**
+     * Get the estimated size of the index per column, i.e. per position of the encodings. Indices
+     * that aren't organised in columns report a single total
+     * @return Bytes per column
+     */
+    public long[] getColumnBytes(){
+        return mColumnBytes.clone();
+    }
+
+    /**
+     * Get the estimated size of the index
+     * @return Bytes
+     */
+    public long getIndexBytes(){
+        long total = 0;
+        for(long bytes: mColumnBytes)
+            total += bytes;
+        return total;
+    }
+
+    /**
+     * Get the number of queries answered by the result cache since it was set, see
+     * {@link Predictor#setResultCache(int, int)}
+     * @return The count
+     */
+    public long getCacheHits(){
+        return mCacheHits;
+    }
+
+    /**
+     * Get the number of queries the result cache didn't have or had only for an older version
+     * of the data
+     * @return The count
+     */
+    public long getCacheMisses(){
+        return mCacheMisses;
+    }
+
+    /**
+     * Get the number of current results dropped from the cache to make room
+     * @return The count
+     */
+    public long getCacheEvictions(){
+        return mCacheEvictions;
+    }
+
+    /**
+     * Get the share of the queries answered by the result cache
+     * @return Between 0 and 1, 0 without a cache
+     */
+    public double getCacheHitRate(){
+        long lookups = mCacheHits + mCacheMisses;
+        return lookups == 0 ? 0 : (double) mCacheHits / lookups;
+    }
+
+    @Override
+    public String toString(){
+        return "items=" + mItems + " variants=" + mVariants + " tombstones=" + mTombstones +
+                " depth=" + mDepth + " indexBytes=" + getIndexBytes() + " cacheHitRate=" + getCacheHitRate();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A stateful prediction session obtained from {@link Predictor#newSession()}. It caches the
+ * candidates after every key of the last query. When the new query extends the last one only the
+ * new keys are intersected and on backspace the cached candidates are reused directly. Any change
+ * to the Predictor's data discards the cache. Word matches of separated fields are not cached, they
+ * are looked up again for every query.
+ *
+ * A session is not thread-safe. Use one session per search box.
+ */
+public class QuerySession {
+    private final Predictor mPredictor;
+    private int mGeneration;
+    private int[] mKeys;
+    private PostingList[] mCandidates;
+    private int mDepth;
+
+    QuerySession(Predictor predictor){
+        mPredictor = predictor;
+        mKeys = new int[16];
+        mCandidates = new PostingList[16];
+    }
+
+    /**
+     * Make a prediction on a query. Pass the entire query every time, the session works out
+     * which part of it has changed since the last call.
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @return Same as {@link Predictor#predict(String)}
+     */
+    public Collection<Prediction> predict(String query){
+        return predict(query, Predictor.NO_LIMIT);
+    }
+
+    /**
+     * Make a prediction on a query and keep only the best predictions
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @return Same as {@link Predictor#predict(String, int)}
+     */
+    public Collection<Prediction> predict(String query, int limit){
+        if(limit < 0)
+            throw new IllegalArgumentException("Limit cannot be negative");
+        return predict(query, limit, null);
+    }
+
+    /**
+     * Make a prediction on a query that can be cancelled. The candidates intersected before
+     * cancellation are kept for the next query
+     * @param cancellation Checked between keys and while collecting, may be null
+     * @return The predictions, null for an empty query or if cancelled
+     */
+    Collection<Prediction> predict(String query, int limit, Predictor.Cancellation cancellation){
+        if(query == null || query.isEmpty())
+            return null;
+
+        PredictorMetrics metrics = mPredictor.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Generation generation = mPredictor.getGeneration();
+        PostingList partition = advance(generation, query, cancellation, metrics);
+        if(cancellation != null && cancellation.isCancelled())
+            return null;
+        Collection<Prediction> predictions = mPredictor.collect(generation, partition, mKeys, mDepth,
+                limit, cancellation, null);
+        if(metrics != null && predictions != null)
+            metrics.onPredict(System.nanoTime() - start, mDepth, predictions.size());
+        return predictions;
+    }
+
+    /**
+     * Make a prediction on a query and stream the matches to a consumer. Apart from intersecting
+     * newly typed keys, matching the words of separated fields and a small view per match nothing
+     * is allocated
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param consumer Receives the matches, see {@link PredictionConsumer}
+     */
+    public void predict(String query, PredictionConsumer consumer){
+        if(query == null || query.isEmpty())
+            return;
+
+        PredictorMetrics metrics = mPredictor.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Predictor.CountingConsumer counter = metrics == null ? null : new Predictor.CountingConsumer(consumer);
+        if(counter != null)
+            consumer = counter;
+        Generation generation = mPredictor.getGeneration();
+        PostingList partition = advance(generation, query, null, metrics);
+        mPredictor.forEachMatch(generation, partition, mKeys, mDepth, consumer);
+        if(counter != null)
+            metrics.onPredict(System.nanoTime() - start, mDepth, counter.mCount);
+    }
+
+    /**
+     * Forget the last query. The next prediction will start from scratch
+     */
+    public void reset(){
+        mDepth = 0;
+    }
+
+    /* Private Methods */
+
+    private PostingList advance(Generation generation, String query, Predictor.Cancellation cancellation,
+                                PredictorMetrics metrics){
+        if(mGeneration != generation.mNumber){
+            mGeneration = generation.mNumber;
+            mDepth = 0;
+        }
+
+        // Keep the candidates of the common prefix with the last query
+        int length = 0;
+        int common = 0;
+        boolean diverged = false;
+        for(int c = 0; c < query.length(); c++){
+            int key = mPredictor.mapInput(query.charAt(c));
+            if(key == -1) continue;
+            if(length == mKeys.length){
+                mKeys = Arrays.copyOf(mKeys, length * 2);
+                mCandidates = Arrays.copyOf(mCandidates, length * 2);
+            }
+            if(!diverged && length < mDepth && mKeys[length] == key)
+                common++;
+            else
+                diverged = true;
+            mKeys[length++] = key;
+        }
+        mDepth = Math.min(common, length);
+
+        PostingList partition = mDepth > 0 ? mCandidates[mDepth - 1] : null;
+        int maxDepth = Math.min(length, generation.getDepth());
+        while(mDepth < maxDepth){
+            if(cancellation != null && cancellation.isCancelled())
+                return null;
+            partition = generation.mIndex.match(mKeys, mDepth, mDepth + 1, partition);
+            mCandidates[mDepth++] = partition;
+            if(metrics != null)
+                metrics.onCandidates(mDepth, partition.cardinality());
+        }
+        return partition;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Internal bounded cache of the results of queries, least recently used first out. Entries are
+ * keyed by the keys of the query and the limit, and stamped with the version of the generation
+ * they were computed on. An entry of an older version is never returned, hence every update
+ * invalidates all of them at once without touching the cache. The weight of an entry is the
+ * number of its predictions.
+ */
+final class ResultCache {
+    private final int mMaxEntries;
+    private final long mMaxWeight;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private long mWeight;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * Create a cache
+     * @param maxEntries Maximum number of queries
+     * @param maxWeight Maximum number of predictions of all the queries
+     */
+    ResultCache(int maxEntries, long maxWeight){
+        mMaxEntries = maxEntries;
+        mMaxWeight = maxWeight;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Create the key of a query
+     * @param keys Keys of the query
+     * @param length Number of keys
+     * @param limit Limit of the query
+     * @return The key
+     */
+    static String keyOf(int[] keys, int length, int limit){
+        char[] chars = new char[length + 2];
+        chars[0] = (char) (limit >>> 16);
+        chars[1] = (char) limit;
+        for(int pos = 0; pos < length; pos++)
+            chars[pos + 2] = (char) keys[pos];
+        return new String(chars);
+    }
+
+    /**
+     * Look up the result of a query
+     * @param key Key of the query
+     * @param version Version of the current generation
+     * @return The predictions or null if not cached or stale
+     */
+    synchronized Collection<Prediction> get(String key, int version){
+        Entry entry = mEntries.get(key);
+        if(entry != null && entry.mVersion != version){
+            remove(key, entry);
+            entry = null;
+        }
+        if(entry == null){
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mPredictions;
+    }
+
+    /**
+     * Cache the result of a query. Results heavier than the whole cache are not kept
+     * @param key Key of the query
+     * @param version Version of the generation the result was computed on
+     * @param predictions The predictions, must not be modified afterwards
+     */
+    synchronized void put(String key, int version, Collection<Prediction> predictions){
+        int weight = Math.max(1, predictions.size());
+        if(weight > mMaxWeight)
+            return;
+        Entry previous = mEntries.put(key, new Entry(version, predictions));
+        if(previous != null)
+            mWeight -= Math.max(1, previous.mPredictions.size());
+        mWeight += weight;
+
+        Iterator<Map.Entry<String, Entry>> eldest = mEntries.entrySet().iterator();
+        while(mWeight > mMaxWeight || mEntries.size() > mMaxEntries){
+            Map.Entry<String, Entry> entry = eldest.next();
+            // Dropping stale entries doesn't count as an eviction
+            if(entry.getValue().mVersion == version)
+                mEvictions++;
+            mWeight -= Math.max(1, entry.getValue().mPredictions.size());
+            eldest.remove();
+        }
+    }
+
+    synchronized long getHits(){
+        return mHits;
+    }
+
+    synchronized long getMisses(){
+        return mMisses;
+    }
+
+    synchronized long getEvictions(){
+        return mEvictions;
+    }
+
+    synchronized int size(){
+        return mEntries.size();
+    }
+
+    /* Private Methods */
+
+    private void remove(String key, Entry entry){
+        mEntries.remove(key);
+        mWeight -= Math.max(1, entry.mPredictions.size());
+    }
+
+    private static final class Entry {
+        final int mVersion;
+        final Collection<Prediction> mPredictions;
+
+        Entry(int version, Collection<Prediction> predictions){
+            mVersion = version;
+            mPredictions = predictions;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pandimension.predictivesearch;
+
+/**
+ * A {@link DataItem} with a static score, e.g. how often a contact is called. Predictions of
+ * scored items are ordered by descending score and only items with equal scores are compared with
+ * {@link Comparable#compareTo(Object)}. The score is read when the Predictor ranks its items, it
+ * must not change while the item is in the Predictor. Replace the item to change its score.
+ */
+public interface ScoredDataItem extends DataItem {
+    /**
+     * Get the score of this item
+     * @return The score, higher scores are predicted first
+     */
+    double getScore();
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A Predictor for large datasets, e.g. a server side directory search with millions of items.
+ * Items are hash-partitioned by id across a number of internal {@link Predictor} shards. Queries
+ * run on all shards in parallel on a {@link ForkJoinPool} and the ordered results of the shards
+ * are merged, hence short queries with huge numbers of matches are spread over the cores. Every
+ * shard is locked separately so updates only block updates to the same shard.
+ *
+ * The same labels and input type apply to all shards. Use it like a {@link Predictor}.
+ */
+public class ShardedPredictor {
+    private final Predictor[] mShards;
+    private final ForkJoinPool mPool;
+
+    /**
+     * Constructor for the class, with a shard and a thread per core
+     * @param inputType Type of inputs that will be handled
+     */
+    public ShardedPredictor(Predictor.InputType inputType){
+        this(inputType, Runtime.getRuntime().availableProcessors(), IndexEngine.COLUMNS, null);
+    }
+
+    /**
+     * Constructor for the class with a choice of sharding
+     * @param inputType Type of inputs that will be handled
+     * @param shards Number of shards
+     * @param engine The index of every shard, see {@link IndexEngine}
+     * @param pool Runs the queries, null to create one with a thread per core. Its threads are
+     *             daemons and stay alive as long as the pool is reachable
+     */
+    public ShardedPredictor(Predictor.InputType inputType, int shards, IndexEngine engine,
+                            ForkJoinPool pool){
+        this(new Predictor.Builder(inputType).engine(engine), shards, pool);
+    }
+
+    /**
+     * Constructor for the class with shards configured by a builder
+     * @param builder Creates every shard. Capacity hints are per shard
+     * @param shards Number of shards
+     * @param pool Runs the queries, null to create one with a thread per core
+     */
+    public ShardedPredictor(Predictor.Builder builder, int shards, ForkJoinPool pool){
+        if(shards <= 0)
+            throw new IllegalArgumentException("Need at least one shard");
+        mShards = new Predictor[shards];
+        for(int i = 0; i < shards; i++)
+            mShards[i] = builder.build();
+        mPool = pool != null ? pool : new ForkJoinPool();
+    }
+
+    /**
+     * Set the labels for the data items that identify the fields, see
+     * {@link Predictor#setLabels(LinkedHashMap)}
+     * @param labels A LinkedHashMap containing the label and type of the Field
+     */
+    public void setLabels(LinkedHashMap<String, DataItem.FieldType> labels){
+        for(Predictor shard: mShards)
+            shard.setLabels(labels);
+    }
+
+    /**
+     * Set the share of tombstones at which a shard is compacted in the background, see
+     * {@link Predictor#setCompactionRatio(float)}
+     * @param ratio Ratio of tombstones to all predictions
+     */
+    public void setCompactionRatio(float ratio){
+        for(Predictor shard: mShards)
+            shard.setCompactionRatio(ratio);
+    }
+
+    /**
+     * Set a listener for the metrics of all the shards, see {@link Predictor#setMetrics(PredictorMetrics)}.
+     * Every shard reports its own part of a query
+     * @param metrics The listener, null to stop measuring
+     */
+    public void setMetrics(PredictorMetrics metrics){
+        for(Predictor shard: mShards)
+            shard.setMetrics(metrics);
+    }
+
+    /**
+     * Cache the results of every shard, see {@link Predictor#setResultCache(int, int)}
+     * @param maxQueries Maximum number of cached queries per shard, 0 to turn the cache off
+     * @param maxPredictions Maximum number of cached predictions per shard
+     */
+    public void setResultCache(int maxQueries, int maxPredictions){
+        for(Predictor shard: mShards)
+            shard.setResultCache(maxQueries, maxPredictions);
+    }
+
+    /**
+     * Get the gauges of a shard, see {@link Predictor#getStats()}
+     * @param shard Index of the shard
+     * @return The {@link PredictorStats}
+     */
+    public PredictorStats getStats(int shard){
+        return mShards[shard].getStats();
+    }
+
+    /**
+     * Get the number of shards
+     * @return The count
+     */
+    public int getShardCount(){
+        return mShards.length;
+    }
+
+    /**
+     * Add a single item (Thread-safe). Only the shard of the item is locked
+     * @param item A {@link DataItem} object
+     */
+    public void addItem(DataItem item){
+        shardOf(item.getId()).addItem(item);
+    }
+
+    /**
+     * Add a batch of items (Thread-safe). The items are split by shard and the shards are built
+     * in parallel, see {@link Predictor#addItems(Collection)}
+     * @param items A Collection of {@link DataItem} objects
+     */
+    public void addItems(Collection<? extends DataItem> items){
+        final List<List<DataItem>> batches = new ArrayList<List<DataItem>>(mShards.length);
+        for(int i = 0; i < mShards.length; i++)
+            batches.add(new ArrayList<DataItem>(items.size() / mShards.length + 1));
+        for(DataItem item: items)
+            batches.get(shardIndex(item.getId())).add(item);
+
+        mPool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                List<RecursiveTask<Void>> tasks = new ArrayList<RecursiveTask<Void>>(mShards.length);
+                for(int i = 0; i < mShards.length; i++){
+                    final int shard = i;
+                    tasks.add(new RecursiveTask<Void>() {
+                        @Override
+                        protected Void compute() {
+                            if(!batches.get(shard).isEmpty())
+                                mShards[shard].addItems(batches.get(shard));
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(tasks);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Remove a single item (Thread-safe)
+     * @param id Id of the data item to remove
+     */
+    public void removeItem(String id){
+        shardOf(id).removeItem(id);
+    }
+
+    /**
+     * Replace an existing item with a new item (Thread-safe). Predictions never see the state in
+     * between as long as both ids belong to the same shard, which is always the case when the id
+     * doesn't change. Otherwise the new item is added before the old one is removed
+     * @param oldId Id of the existing dataitem
+     * @param newItem The new item
+     */
+    public void replaceItem(String oldId, DataItem newItem){
+        Predictor shard = shardOf(oldId);
+        Predictor newShard = shardOf(newItem.getId());
+        if(shard == newShard){
+            shard.replaceItem(oldId, newItem);
+        }else{
+            newShard.addItem(newItem);
+            shard.removeItem(oldId);
+        }
+    }
+
+    /**
+     * Apply a batch of changes (Thread-safe). The changes are split by shard and every shard
+     * applies its share at once, see {@link Predictor#applyChanges(ChangeSet)}. Predictions may see
+     * the changes of some shards before the others, e.g. an item replaced by one of another shard
+     * may briefly be missing or appear twice
+     * @param changes The changes, applied in order within every shard
+     */
+    public void applyChanges(ChangeSet changes){
+        ChangeSet[] batches = new ChangeSet[mShards.length];
+        for(int i = 0; i < batches.length; i++)
+            batches[i] = new ChangeSet();
+        for(ChangeSet.Change change: changes.mChanges){
+            if(change.mItem == null){
+                batches[shardIndex(change.mRemovedId)].remove(change.mRemovedId);
+            }else if(change.mRemovedId == null){
+                batches[shardIndex(change.mItem.getId())].add(change.mItem);
+            }else if(shardIndex(change.mRemovedId) == shardIndex(change.mItem.getId())){
+                batches[shardIndex(change.mRemovedId)].replace(change.mRemovedId, change.mItem);
+            }else{
+                batches[shardIndex(change.mRemovedId)].remove(change.mRemovedId);
+                batches[shardIndex(change.mItem.getId())].add(change.mItem);
+            }
+        }
+
+        for(int i = 0; i < mShards.length; i++)
+            if(!batches[i].isEmpty())
+                mShards[i].applyChanges(batches[i]);
+    }
+
+    /**
+     * Compact all shards right away, see {@link Predictor#compact()}
+     */
+    public void compact(){
+        for(Predictor shard: mShards)
+            shard.compact();
+    }
+
+    /**
+     * Make a prediction on a query (Thread-safe), see {@link Predictor#predict(String)}
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @return A Collection of Prediction objects in the same order as a single Predictor
+     */
+    public Collection<Prediction> predict(String query){
+        return predict(query, Predictor.NO_LIMIT);
+    }
+
+    /**
+     * Make a prediction on a query and keep only the best predictions (Thread-safe). Every shard
+     * selects its best predictions in parallel and the shards are merged pairwise as their
+     * tasks join
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param limit Maximum number of predictions to return, 0 for all of them
+     * @return Same as {@link Predictor#predict(String, int)}
+     */
+    public Collection<Prediction> predict(String query, int limit){
+        if(limit < 0)
+            throw new IllegalArgumentException("Limit cannot be negative");
+        if(query == null || query.isEmpty())
+            return null;
+        return mPool.invoke(new ShardQuery(query, limit, 0, mShards.length));
+    }
+
+    /**
+     * Make a prediction on a query and stream the matches to a consumer (Thread-safe). The
+     * shards are walked one after the other in the calling thread, hence the consumer needs no
+     * synchronization. The ordinals are unique across the shards
+     * @param query A string query. Will be numbers if Input Type is NUMBER_KEYPAD
+     * @param consumer Receives the matches, see {@link PredictionConsumer}
+     */
+    public void predict(String query, final PredictionConsumer consumer){
+        final int shards = mShards.length;
+        for(int i = 0; i < shards; i++){
+            final int shard = i;
+            final boolean[] stopped = new boolean[1];
+            mShards[i].predict(query, new PredictionConsumer() {
+                @Override
+                public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                    stopped[0] = !consumer.onPrediction(prediction, extent, ordinal * shards + shard);
+                    return !stopped[0];
+                }
+            });
+            if(stopped[0])
+                return;
+        }
+    }
+
+    /* Private Methods */
+
+    private int shardIndex(String id){
+        int hash = id.hashCode();
+        // Spread the high bits, ids often differ in their last chars only
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % mShards.length;
+    }
+
+    private Predictor shardOf(String id){
+        return mShards[shardIndex(id)];
+    }
+
+    /**
+     * Merge two sorted lists of predictions, keeping at most limit of them
+     */
+    private static List<Prediction> merge(List<Prediction> a, List<Prediction> b, int limit){
+        int size = a.size() + b.size();
+        if(limit != Predictor.NO_LIMIT)
+            size = Math.min(size, limit);
+        List<Prediction> merged = new ArrayList<Prediction>(size);
+        int i = 0, j = 0;
+        while(merged.size() < size){
+            if(j == b.size() || (i < a.size() && a.get(i).compareTo(b.get(j)) <= 0))
+                merged.add(a.get(i++));
+            else
+                merged.add(b.get(j++));
+        }
+        return merged;
+    }
+
+    /**
+     * Predicts on a range of shards, splitting it in halves until a single shard is left
+     */
+    private final class ShardQuery extends RecursiveTask<List<Prediction>> {
+        /* Tasks are never serialized, the field keeps -Xlint:serial quiet */
+        private static final long serialVersionUID = 1L;
+
+        private final String mQuery;
+        private final int mLimit;
+        private final int mFrom;
+        private final int mTo;
+
+        ShardQuery(String query, int limit, int from, int to){
+            mQuery = query;
+            mLimit = limit;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected List<Prediction> compute() {
+            if(mTo - mFrom == 1){
+                Collection<Prediction> predictions = mShards[mFrom].predict(mQuery, mLimit);
+                // Ranked already, the shards return their best predictions in order
+                return predictions == null ? Collections.<Prediction>emptyList() :
+                        new ArrayList<Prediction>(predictions);
+            }
+
+            int middle = (mFrom + mTo) >>> 1;
+            ShardQuery right = new ShardQuery(mQuery, mLimit, middle, mTo);
+            right.fork();
+            List<Prediction> left = new ShardQuery(mQuery, mLimit, mFrom, middle).compute();
+            return merge(left, right.join(), mLimit);
+        }
+    }
+}
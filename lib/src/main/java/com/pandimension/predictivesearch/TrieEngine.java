@@ -0,0 +1,524 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+
+/**
+ * Index that sorts the key sequences into a path-compressed trie stored in flat arrays. The
+ * predictions are laid out in trie order, hence every node knows the range of predictions in
+ * its subtree and a query walks down a single path. Nodes with large subtrees also keep their
+ * predictions in a posting list built with the trie, so a match is a lookup instead of a sort.
+ * The trie is immutable: predictions added later go to a tail that is checked sequentially and
+ * removals are filtered, until there are enough of them to rebuild it.
+ * <p>
+ * Since a lookup costs the same for any number of keys the index is not incremental. Query
+ * sessions only use the partition to narrow down the tail
+ */
+final class TrieEngine extends IndexEngine {
+    /* Rebuild when the tail or the removals outgrow this or a share of the trie */
+    private final static int MIN_REBUILD = 64;
+    private final static int REBUILD_SHARE = 8;
+    /* Nodes with at least this many predictions keep them in a posting list */
+    private final static int MIN_LIST = 64;
+
+    @Override
+    Index newIndex(int keys){
+        return new TrieIndex(keys, Trie.EMPTY, new int[16], new int[16][], 0, new PostingList(), 0);
+    }
+
+    /**
+     * Immutable trie. Node 0 is the root, the children of a node are consecutive nodes ordered by
+     * the first key of their labels. The label of a node is the run of keys on the edge from its
+     * parent.
+     */
+    private static final class Trie {
+        final static Trie EMPTY = new Trie(new int[0], 0, new int[]{0}, new int[]{0},
+                new int[]{1}, new int[]{1}, new int[]{0}, new int[]{0}, new byte[0], 0, new PostingList[1]);
+
+        final int[] mOrder;
+        final int mSize;
+        final int[] mStart;
+        final int[] mEnd;
+        final int[] mFirstChild;
+        final int[] mLastChild;
+        final int[] mLabelStart;
+        final int[] mLabelEnd;
+        final byte[] mLabels;
+        final int mDepth;
+        /* Predictions of the large subtrees in index order, null for the small ones */
+        final PostingList[] mLists;
+
+        Trie(int[] order, int size, int[] start, int[] end, int[] firstChild, int[] lastChild,
+             int[] labelStart, int[] labelEnd, byte[] labels, int depth, PostingList[] lists){
+            mOrder = order;
+            mSize = size;
+            mStart = start;
+            mEnd = end;
+            mFirstChild = firstChild;
+            mLastChild = lastChild;
+            mLabelStart = labelStart;
+            mLabelEnd = labelEnd;
+            mLabels = labels;
+            mDepth = depth;
+            mLists = lists;
+        }
+
+        /**
+         * Find the node whose subtree holds the sequences starting with the keys
+         * @return The node or -1 if there is none
+         */
+        int find(int[] keys, int length){
+            int node = 0;
+            int pos = 0;
+            while(pos < length){
+                node = child(node, keys[pos]);
+                if(node < 0)
+                    return -1;
+                // A query ending inside a label still matches the whole subtree
+                for(int l = mLabelStart[node]; l < mLabelEnd[node] && pos < length; l++, pos++){
+                    if(mLabels[l] != keys[pos])
+                        return -1;
+                }
+            }
+            return node;
+        }
+
+        private int child(int node, int key){
+            int low = mFirstChild[node], high = mLastChild[node] - 1;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                int k = mLabels[mLabelStart[mid]];
+                if(k < key) low = mid + 1;
+                else if(k > key) high = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        /**
+         * Build a trie. The sequences are bucketed by key one level at a time (MSD radix sort)
+         * and the nodes are created breadth first so that siblings are consecutive
+         * @param entries Indices of the predictions
+         * @param count Number of entries
+         * @param source Key sequences of the predictions
+         * @param keys Number of distinct keys
+         */
+        static Trie build(int[] entries, int count, Keys source, int keys){
+            // Flatten the sequences, keys always fit in a byte
+            int[] offsets = new int[count + 1];
+            for(int i = 0; i < count; i++)
+                offsets[i + 1] = offsets[i] + source.length(entries[i]);
+            byte[] sequences = new byte[offsets[count]];
+            int[] lengths = new int[count];
+            int[] buffer = new int[16];
+            int depth = 0;
+            for(int i = 0; i < count; i++){
+                if(buffer.length < offsets[i + 1] - offsets[i])
+                    buffer = new int[offsets[i + 1] - offsets[i]];
+                lengths[i] = source.get(entries[i], buffer);
+                for(int k = 0; k < lengths[i]; k++)
+                    sequences[offsets[i] + k] = (byte) buffer[k];
+                depth = Math.max(depth, lengths[i]);
+            }
+
+            // Positions of the entries, sorted in place as the nodes are split
+            int[] sorted = new int[count];
+            for(int i = 0; i < count; i++)
+                sorted[i] = i;
+            int[] scratch = new int[count];
+
+            int capacity = 16;
+            int[] start = new int[capacity], end = new int[capacity];
+            int[] firstChild = new int[capacity], lastChild = new int[capacity];
+            int[] labelStart = new int[capacity], labelEnd = new int[capacity];
+            int[] nodeDepth = new int[capacity];
+            byte[] labels = new byte[64];
+            int labelSize = 0;
+            int nodes = 1;
+            end[0] = count;
+
+            int[] counts = new int[keys + 1];
+            int[] bucketStart = new int[keys + 1];
+            int[] fill = new int[keys + 1];
+            for(int node = 0; node < nodes; node++){
+                int s = start[node], e = end[node], d = nodeDepth[node];
+
+                // Bucket 0 holds the sequences ending here, they go first
+                Arrays.fill(counts, 0);
+                for(int i = s; i < e; i++){
+                    int p = sorted[i];
+                    counts[lengths[p] > d ? sequences[offsets[p] + d] + 1 : 0]++;
+                }
+                firstChild[node] = nodes;
+                if(counts[0] == e - s){
+                    lastChild[node] = nodes;
+                    continue;
+                }
+
+                bucketStart[0] = s;
+                for(int k = 1; k <= keys; k++)
+                    bucketStart[k] = bucketStart[k - 1] + counts[k - 1];
+                System.arraycopy(bucketStart, 0, fill, 0, keys + 1);
+                for(int i = s; i < e; i++){
+                    int p = sorted[i];
+                    scratch[fill[lengths[p] > d ? sequences[offsets[p] + d] + 1 : 0]++] = p;
+                }
+                System.arraycopy(scratch, s, sorted, s, e - s);
+
+                for(int k = 1; k <= keys; k++){
+                    if(counts[k] == 0)
+                        continue;
+                    int bs = bucketStart[k], be = bs + counts[k];
+
+                    // Extend the label while all the sequences of the bucket agree
+                    int first = sorted[bs];
+                    int childDepth = d + 1;
+                    extend:
+                    while(childDepth < lengths[first]){
+                        byte key = sequences[offsets[first] + childDepth];
+                        for(int i = bs + 1; i < be; i++){
+                            int p = sorted[i];
+                            if(lengths[p] <= childDepth || sequences[offsets[p] + childDepth] != key)
+                                break extend;
+                        }
+                        childDepth++;
+                    }
+
+                    if(nodes == capacity){
+                        capacity *= 2;
+                        start = Arrays.copyOf(start, capacity);
+                        end = Arrays.copyOf(end, capacity);
+                        firstChild = Arrays.copyOf(firstChild, capacity);
+                        lastChild = Arrays.copyOf(lastChild, capacity);
+                        labelStart = Arrays.copyOf(labelStart, capacity);
+                        labelEnd = Arrays.copyOf(labelEnd, capacity);
+                        nodeDepth = Arrays.copyOf(nodeDepth, capacity);
+                    }
+                    int labelLength = childDepth - d;
+                    if(labelSize + labelLength > labels.length)
+                        labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelSize + labelLength));
+                    System.arraycopy(sequences, offsets[first] + d, labels, labelSize, labelLength);
+
+                    start[nodes] = bs;
+                    end[nodes] = be;
+                    labelStart[nodes] = labelSize;
+                    labelEnd[nodes] = labelSize + labelLength;
+                    nodeDepth[nodes] = childDepth;
+                    labelSize += labelLength;
+                    nodes++;
+                }
+                lastChild[node] = nodes;
+            }
+
+            int[] order = new int[count];
+            for(int i = 0; i < count; i++)
+                order[i] = entries[sorted[i]];
+
+            // Queries have at least one key, the root never needs a list
+            PostingList[] lists = new PostingList[nodes];
+            for(int node = 1; node < nodes; node++){
+                int size = end[node] - start[node];
+                if(size < MIN_LIST)
+                    continue;
+                System.arraycopy(order, start[node], scratch, 0, size);
+                Arrays.sort(scratch, 0, size);
+                lists[node] = new PostingList().withAll(scratch, size);
+            }
+            return new Trie(order, count, Arrays.copyOf(start, nodes), Arrays.copyOf(end, nodes),
+                    Arrays.copyOf(firstChild, nodes), Arrays.copyOf(lastChild, nodes),
+                    Arrays.copyOf(labelStart, nodes), Arrays.copyOf(labelEnd, nodes),
+                    Arrays.copyOf(labels, labelSize), depth, lists);
+        }
+    }
+
+    private static final class TrieIndex extends Index {
+        private final int mKeys;
+        private final Trie mTrie;
+        /* Predictions added since the trie was built, with their keys. Shared append-only */
+        private final int[] mTail;
+        private final int[][] mTailKeys;
+        private final int mTailSize;
+        private final PostingList mRemoved;
+        private final int mDepth;
+
+        TrieIndex(int keys, Trie trie, int[] tail, int[][] tailKeys, int tailSize, PostingList removed,
+                  int depth){
+            mKeys = keys;
+            mTrie = trie;
+            mTail = tail;
+            mTailKeys = tailKeys;
+            mTailSize = tailSize;
+            mRemoved = removed;
+            mDepth = depth;
+        }
+
+        @Override
+        int getDepth(){
+            return mDepth;
+        }
+
+        @Override
+        PostingList match(int[] keys, int from, int to, PostingList partition){
+            if(to == 0)
+                return null;
+
+            int node = to > mTrie.mDepth ? -1 : mTrie.find(keys, to);
+            PostingList matches = node < 0 ? EMPTY : subtree(node);
+            if(mTailSize == 0)
+                return matches;
+
+            // The tail is in index order and after all of the trie. The partition already holds
+            // the live entries matching the first keys
+            int[] indices = new int[16];
+            int n = 0;
+            if(partition == null){
+                for(int t = 0; t < mTailSize; t++){
+                    if(startsWith(mTailKeys[t], keys, 0, to) && !mRemoved.contains(mTail[t]))
+                        indices = append(indices, n++, mTail[t]);
+                }
+            }else{
+                for(int index = partition.next(mTail[0]); index >= 0; index = partition.next(index + 1)){
+                    int t = Arrays.binarySearch(mTail, 0, mTailSize, index);
+                    if(t >= 0 && startsWith(mTailKeys[t], keys, from, to))
+                        indices = append(indices, n++, index);
+                }
+            }
+            return matches.withAll(indices, n);
+        }
+
+        /*
+         * Live predictions in the subtree of a node. Large subtrees have them already, the
+         * removals are taken out of the few chunks that hold any
+         */
+        private PostingList subtree(int node){
+            PostingList list = mTrie.mLists[node];
+            if(list == null){
+                int start = mTrie.mStart[node];
+                int[] indices = new int[mTrie.mEnd[node] - start];
+                int n = 0;
+                for(int i = 0; i < indices.length; i++){
+                    int index = mTrie.mOrder[start + i];
+                    if(!mRemoved.contains(index))
+                        indices[n++] = index;
+                }
+                Arrays.sort(indices, 0, n);
+                return new PostingList().withAll(indices, n);
+            }
+            if(mRemoved.isEmpty())
+                return list;
+            PostingList removed = list.and(mRemoved);
+            if(removed.isEmpty())
+                return list;
+            int[] values = new int[removed.cardinality()];
+            int n = 0;
+            for(int index = removed.next(0); index >= 0; index = removed.next(index + 1))
+                values[n++] = index;
+            return list.withoutAll(values, n);
+        }
+
+        private static boolean startsWith(int[] sequence, int[] keys, int from, int to){
+            if(sequence.length < to)
+                return false;
+            for(int pos = from; pos < to; pos++){
+                if(sequence[pos] != keys[pos])
+                    return false;
+            }
+            return true;
+        }
+
+        /*
+         * The distances are computed along the paths of the trie, a subtree is taken as a whole
+         * once the query is within the bound and skipped once no prefix of it is
+         */
+        @Override
+        PostingList matchFuzzy(int[] keys, int length, int maxEdits){
+            int[][] rows = new int[Math.max(mTrie.mDepth, 1) + 1][length + 1];
+            for(int i = 0; i <= length; i++)
+                rows[0][i] = i;
+            int[][] indices = {new int[16]};
+            int n = fuzzy(0, 0, rows, keys, length, maxEdits, indices, 0);
+            Arrays.sort(indices[0], 0, n);
+
+            int[][] tailRows = new int[2][length + 1];
+            for(int t = 0; t < mTailSize; t++){
+                if(mRemoved.contains(mTail[t]))
+                    continue;
+                for(int i = 0; i <= length; i++)
+                    tailRows[0][i] = i;
+                int[] tailKeys = mTailKeys[t];
+                for(int pos = 0; pos < tailKeys.length; pos++){
+                    int min = FuzzyMatcher.step(tailRows[pos & 1], tailRows[~pos & 1], keys, length, tailKeys[pos]);
+                    if(tailRows[~pos & 1][length] <= maxEdits){
+                        indices[0] = append(indices[0], n++, mTail[t]);
+                        break;
+                    }
+                    if(min > maxEdits)
+                        break;
+                }
+            }
+            return n == 0 ? null : new PostingList().withAll(indices[0], n);
+        }
+
+        private int fuzzy(int node, int depth, int[][] rows, int[] keys, int length, int maxEdits,
+                          int[][] indices, int n){
+            for(int child = mTrie.mFirstChild[node]; child < mTrie.mLastChild[node]; child++){
+                int d = depth;
+                boolean accepted = false, pruned = false;
+                for(int l = mTrie.mLabelStart[child]; l < mTrie.mLabelEnd[child]; l++, d++){
+                    int min = FuzzyMatcher.step(rows[d], rows[d + 1], keys, length, mTrie.mLabels[l]);
+                    if(rows[d + 1][length] <= maxEdits){
+                        accepted = true;
+                        break;
+                    }
+                    if(min > maxEdits){
+                        pruned = true;
+                        break;
+                    }
+                }
+                if(accepted){
+                    for(int i = mTrie.mStart[child]; i < mTrie.mEnd[child]; i++){
+                        if(!mRemoved.contains(mTrie.mOrder[i]))
+                            indices[0] = append(indices[0], n++, mTrie.mOrder[i]);
+                    }
+                }else if(!pruned){
+                    n = fuzzy(child, d, rows, keys, length, maxEdits, indices, n);
+                }
+            }
+            return n;
+        }
+
+        private static int[] append(int[] indices, int count, int index){
+            if(count == indices.length)
+                indices = Arrays.copyOf(indices, count * 2);
+            indices[count] = index;
+            return indices;
+        }
+
+        @Override
+        long[] estimateBytes(){
+            long bytes = mTrie.mOrder.length * 4L + mTrie.mLabels.length +
+                    (mTrie.mStart.length + mTrie.mEnd.length + mTrie.mFirstChild.length +
+                            mTrie.mLastChild.length + mTrie.mLabelStart.length + mTrie.mLabelEnd.length) * 4L;
+            for(PostingList list: mTrie.mLists)
+                if(list != null)
+                    bytes += list.sizeInBytes();
+            for(int t = 0; t < mTailSize; t++)
+                bytes += 4 + mTailKeys[t].length * 4L;
+            return new long[]{bytes + mRemoved.sizeInBytes()};
+        }
+
+        @Override
+        Editor edit(Keys source){
+            return new TrieEditor(this, source);
+        }
+    }
+
+    private static final class TrieEditor extends Editor {
+        private final int mKeys;
+        private final Keys mSource;
+        private Trie mTrie;
+        private int[] mTail;
+        private int[][] mTailKeys;
+        private int mTailSize;
+        private PostingList mRemoved;
+        private int mDepth;
+        private int mRemovals;
+        private int[] mBuffer = new int[16];
+
+        TrieEditor(TrieIndex base, Keys source){
+            mKeys = base.mKeys;
+            mSource = source;
+            mTrie = base.mTrie;
+            mTail = base.mTail;
+            mTailKeys = base.mTailKeys;
+            mTailSize = base.mTailSize;
+            mRemoved = base.mRemoved;
+            mDepth = base.mDepth;
+            mRemovals = base.mRemoved.cardinality();
+        }
+
+        @Override
+        void add(int index){
+            int length = mSource.length(index);
+            if(length > mBuffer.length)
+                mBuffer = new int[length];
+            length = mSource.get(index, mBuffer);
+
+            // Older snapshots never read past their tail size so the slot can be filled in place
+            if(mTailSize == mTail.length){
+                mTail = Arrays.copyOf(mTail, mTailSize * 2);
+                mTailKeys = Arrays.copyOf(mTailKeys, mTailSize * 2);
+            }
+            mTail[mTailSize] = index;
+            mTailKeys[mTailSize++] = Arrays.copyOf(mBuffer, length);
+            mDepth = Math.max(mDepth, length);
+        }
+
+        @Override
+        void addAll(int first, int end){
+            // Large batches go straight into a new trie
+            if(end - first > threshold()){
+                rebuild(first, end);
+                return;
+            }
+            for(int index = first; index < end; index++)
+                add(index);
+        }
+
+        @Override
+        void remove(int index){
+            mRemoved = mRemoved.with(index);
+            mRemovals++;
+        }
+
+        @Override
+        Index publish(){
+            if(mTailSize > threshold() || mRemovals > threshold())
+                rebuild(0, 0);
+            return new TrieIndex(mKeys, mTrie, mTail, mTailKeys, mTailSize, mRemoved, mDepth);
+        }
+
+        private int threshold(){
+            return Math.max(MIN_REBUILD, mTrie.mSize / REBUILD_SHARE);
+        }
+
+        /**
+         * Build a new trie with the live entries and a range of new ones
+         */
+        private void rebuild(int first, int end){
+            int[] entries = new int[mTrie.mSize + mTailSize + end - first];
+            int count = 0;
+            for(int i = 0; i < mTrie.mSize; i++)
+                if(!mRemoved.contains(mTrie.mOrder[i]))
+                    entries[count++] = mTrie.mOrder[i];
+            for(int t = 0; t < mTailSize; t++)
+                if(!mRemoved.contains(mTail[t]))
+                    entries[count++] = mTail[t];
+            for(int index = first; index < end; index++)
+                entries[count++] = index;
+
+            mTrie = Trie.build(entries, count, mSource, mKeys);
+            mTail = new int[16];
+            mTailKeys = new int[16][];
+            mTailSize = 0;
+            mRemoved = new PostingList();
+            mRemovals = 0;
+            mDepth = mTrie.mDepth;
+        }
+    }
+}
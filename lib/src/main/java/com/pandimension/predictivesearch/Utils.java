@@ -16,7 +16,10 @@
 
 package com.pandimension.predictivesearch;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Internal static class containing utility methods that help the Predictor
@@ -26,68 +29,27 @@ final class Utils {
     public static final int MAX_KEYS_QWERTY_KEYPAD = 36 + 3;
 
     public static String mapToKeypad(String source, boolean includeSymbols, List<Integer> positions){
-        StringBuilder sb = new StringBuilder();
-        int pos = 0;
-        for(char c: source.toLowerCase().toCharArray()){
-            char cc = 0;
-            switch(c){
-                //case ' ': cc = '1'; break;
-                case 'a': case 'á': case 'à': case 'â': case 'ä': case 'ã':
-                case 'b': case 'c': case 'ç': cc = '2'; break;
-                case 'd':
-                case 'e': case 'é': case 'è': case 'ê': case 'ë':
-                case 'f': cc = '3'; break;
-                case 'g': case 'h':
-                case 'i': case 'í': case 'î': cc = '4'; break;
-                case 'j': case 'k': case 'l': cc = '5'; break;
-                case 'm': case 'n': case 'ñ':
-                case 'o': case 'ó': case 'ò':case 'ô' :case 'ö': case 'õ': cc = '6'; break;
-                case 'p': case 'q': case 'r': case 's': cc = '7'; break;
-                case 't':
-                case 'u': case 'ú': case 'ù': case 'ü':
-                case 'v': cc = '8'; break;
-                case 'w': case 'x': case 'y': case 'z':cc = '9'; break;
-                case '+': case '*': case '#': if(includeSymbols) cc = c; break;
-                default: if(Character.isDigit(c)) cc = c;
-            }
-
-            if(cc != 0){
-                sb.append(cc);
-                if(positions != null)
-                    positions.add(pos);
-            }
-            pos++;
-        }
-
-        return sb.toString();
+        return encode(KeyEncoder.of(Predictor.InputType.NUMBER_KEYPAD), source, includeSymbols, positions);
     }
 
     public static String mapToAlphaNum(String source, boolean includeSymbols, List<Integer> positions){
-        StringBuilder sb = new StringBuilder();
-        int pos = 0;
-        for(char c: source.toLowerCase().toCharArray()){
-            char cc = 0;
-            switch(c){
-                case 'á': case 'à': case 'â': case 'ä': case 'ã': cc = 'a'; break;
-                case 'ç': cc = 'c'; break;
-                case 'é': case 'è': case 'ê': case 'ë': cc = 'e'; break;
-                case 'í': case 'î': cc = 'i'; break;
-                case 'ñ': cc = 'n'; break;
-                case 'ó': case 'ò':case 'ô' :case 'ö': case 'õ': cc = 'o'; break;
-                case 'ú': case 'ù': case 'ü': cc = 'u'; break;
-                case '.': case ',': case '@': if(includeSymbols) cc = c; break;
-                default: if(Character.isLetterOrDigit(c)) cc = c;
-            }
+        return encode(KeyEncoder.of(Predictor.InputType.QWERTY_KEYPAD), source, includeSymbols, positions);
+    }
 
-            if(cc != 0){
-                sb.append(cc);
-                if(positions != null)
-                    positions.add(pos);
-            }
-            pos++;
-        }
+    private static String encode(KeyEncoder encoder, String source, boolean includeSymbols,
+                                 List<Integer> positions){
+        char[] encoding = new char[source.length()];
+        short[] offsets = new short[source.length()];
+        int length = encoder.encode(source, includeSymbols, encoding, offsets);
+        if(positions != null)
+            for(int i = 0; i < length; i++)
+                positions.add(offsets[i] & 0xFFFF);
+        return new String(encoding, 0, length);
+    }
 
-        return sb.toString();
+    public static int mapInput(Predictor.InputType inputType, char key){
+        if(inputType == Predictor.InputType.NUMBER_KEYPAD) return mapKey(key);
+        else return mapAlphaNum(key);
     }
 
     public static int mapKey(char key){
@@ -157,6 +119,29 @@ final class Utils {
         }
     }
 
+    private final static Pattern ALPHA_SEPARATOR = Pattern.compile("[^a-zA-Z]+");
+    private final static Pattern ALPHANUM_SEPARATOR = Pattern.compile("[^a-zA-Z0-9]+");
+
+    /**
+     * Find the words of a text that {@link #variantsOfText(String, boolean)} would blank or
+     * abbreviate, without creating the variants
+     * @return Offsets of the words after the first one
+     */
+    public static int[] wordStarts(String text, boolean includeNumbers){
+        Matcher separator = (includeNumbers ? ALPHANUM_SEPARATOR : ALPHA_SEPARATOR).matcher(text);
+        int[] starts = new int[4];
+        int count = 0;
+        int start = 0;
+        // Same as splitting the suffix in two until either part is empty
+        while(separator.find(start) && separator.start() > start && separator.end() < text.length()){
+            if(count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+            start = separator.end();
+            starts[count++] = start;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
     final static int MAX_PREFIX_LEN = 4;
 
     public static List<String> variantsOfNumber(String number){
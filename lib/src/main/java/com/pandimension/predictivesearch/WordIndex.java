@@ -0,0 +1,445 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+
+/**
+ * Internal index of the {@link DataItem.FieldType#TEXT_SEPARATED} fields for the matches that
+ * don't start at the beginning of the field, i.e. suffixes starting at a word and initials of
+ * the words before it. Each field is stored once along with its word starts, in three families
+ * of posting lists:
+ * <ul>
+ *     <li>Starts: per key, the fields with a word starting with the key</li>
+ *     <li>Pairs: per pair of keys, the fields with a word starting with the first key that is
+ *     followed by the second one, either as the next key or as the start of a later word</li>
+ *     <li>Bigrams: per pair of keys, the fields where the second key follows the first one
+ *     anywhere, or where both start words in that order</li>
+ * </ul>
+ * The first two keys of any match form a pair and every two keys after that a bigram, hence
+ * intersecting their lists yields few candidates which are then verified by a {@link Matcher}.
+ * Snapshots are immutable like the ones of the {@link IndexEngine}.
+ */
+final class WordIndex {
+    final static int STARTS = 0;
+    final static int PAIRS = 1;
+    final static int BIGRAMS = 2;
+
+    final PostingList[] mStarts;
+    /* Pairs and bigrams are indexed by first key * keys + second key */
+    final PostingList[] mPairs;
+    final PostingList[] mBigrams;
+    private final boolean mEmpty;
+
+    /**
+     * Create an empty index
+     * @param keys Number of distinct keys
+     */
+    WordIndex(int keys){
+        this(new PostingList[keys], new PostingList[keys * keys], new PostingList[keys * keys]);
+    }
+
+    WordIndex(PostingList[] starts, PostingList[] pairs, PostingList[] bigrams){
+        mStarts = starts;
+        mPairs = pairs;
+        mBigrams = bigrams;
+        boolean empty = true;
+        for(PostingList list: starts)
+            if(list != null && !list.isEmpty())
+                empty = false;
+        mEmpty = empty;
+    }
+
+    /**
+     * Check if no field is indexed, in which case all matches come from the {@link IndexEngine}
+     * @return True if empty
+     */
+    boolean isEmpty(){
+        return mEmpty;
+    }
+
+    /**
+     * Find the fields that may match a query. The first key must start a word, the second one
+     * must follow it and so on
+     * @param keys The keys of the query
+     * @param length Number of keys
+     * @param from First index of the window, see {@link PostingList#slice(int, int)}
+     * @param to End of the window
+     * @return The candidates within the window or null if there are none
+     */
+    PostingList match(int[] keys, int length, int from, int to){
+        if(mEmpty || length == 0)
+            return null;
+        int keyCount = mStarts.length;
+        PostingList partition = length == 1 ? mStarts[keys[0]] : mPairs[keys[0] * keyCount + keys[1]];
+        if(partition != null)
+            partition = partition.slice(from, to);
+        // The candidates are verified anyway, a few of them aren't worth another intersection
+        for(int pos = 2; pos < length && partition != null && partition.cardinality() > IndexEngine.VERIFY_MAX;
+            pos++){
+            // Repeated bigrams don't narrow the candidates any further
+            if(keys[pos] == keys[pos - 1] && keys[pos - 1] == keys[pos - 2])
+                continue;
+            PostingList cell = mBigrams[keys[pos - 1] * keyCount + keys[pos]];
+            partition = cell == null ? null : partition.and(cell);
+        }
+        return partition == null || partition.isEmpty() ? null : partition;
+    }
+
+    /**
+     * Find the fields that may match a query with at most a number of edits from the start of
+     * one of their words, see {@link FuzzyMatcher}. Pigeonhole: one of maxEdits + 1 chunks of the
+     * query is intact, hence every two keys of it form a bigram of the field. Chunks of a single
+     * key can't be narrowed down, every field is a candidate then
+     * @param keys The keys of the query, more than maxEdits of them
+     * @param length Number of keys
+     * @param maxEdits Maximum number of substitutions, insertions and deletions
+     * @return The candidates or null if there are none
+     */
+    PostingList matchFuzzy(int[] keys, int length, int maxEdits){
+        if(mEmpty)
+            return null;
+        int keyCount = mStarts.length;
+        PostingList candidates = null;
+        for(int chunk = 0; chunk <= maxEdits; chunk++){
+            int from = chunk * length / (maxEdits + 1);
+            int to = (chunk + 1) * length / (maxEdits + 1);
+            if(to - from < 2)
+                return all();
+            PostingList partition = mBigrams[keys[from] * keyCount + keys[from + 1]];
+            for(int pos = from + 2; pos < to && partition != null && partition.cardinality() > IndexEngine.VERIFY_MAX;
+                pos++){
+                PostingList cell = mBigrams[keys[pos - 1] * keyCount + keys[pos]];
+                partition = cell == null ? null : partition.and(cell);
+            }
+            if(partition != null && !partition.isEmpty())
+                candidates = candidates == null ? partition : candidates.or(partition);
+        }
+        return candidates;
+    }
+
+    /**
+     * Get the lists of a family
+     * @param family {@link #STARTS}, {@link #PAIRS} or {@link #BIGRAMS}
+     * @return The lists
+     */
+    PostingList[] getLists(int family){
+        return family == STARTS ? mStarts : family == PAIRS ? mPairs : mBigrams;
+    }
+
+    /*
+     * Every field starts a word with its first key
+     */
+    private PostingList all(){
+        PostingList all = null;
+        for(PostingList list: mStarts)
+            if(list != null && !list.isEmpty())
+                all = all == null ? list : all.or(list);
+        return all;
+    }
+
+    Editor edit(Generation.Editor source){
+        return new Editor(this, source);
+    }
+
+    /**
+     * Prepares the next snapshot, copying the arrays of lists on the first change
+     */
+    static final class Editor {
+        private final Generation.Editor mSource;
+        private final int mKeyCount;
+        /* Per family: the lists, the stamp of the last call that touched each list to touch it
+           once, the lists touched by the prediction being edited and their count. The same
+           prediction can be added and removed by one editor, hence every call gets a new stamp */
+        private final PostingList[][] mLists = new PostingList[3][];
+        private final int[][] mStamps = new int[3][];
+        private int mStamp;
+        private final int[][] mTouched = new int[3][];
+        private final int[] mTouchedCount = new int[3];
+        private boolean mOwned;
+        private int[] mBuffer = new int[16];
+
+        private Editor(WordIndex base, Generation.Editor source){
+            mSource = source;
+            mKeyCount = base.mStarts.length;
+            for(int family = STARTS; family <= BIGRAMS; family++){
+                mLists[family] = base.getLists(family);
+                mStamps[family] = new int[mLists[family].length];
+                mTouched[family] = new int[16];
+            }
+        }
+
+        void add(int index){
+            if(!keysOf(index))
+                return;
+            own();
+            for(int family = STARTS; family <= BIGRAMS; family++){
+                PostingList[] lists = mLists[family];
+                for(int i = 0; i < mTouchedCount[family]; i++){
+                    int list = mTouched[family][i];
+                    lists[list] = lists[list] == null ? new PostingList().with(index) : lists[list].with(index);
+                }
+            }
+        }
+
+        void addAll(int first, int end){
+            update(null, first, end, false);
+        }
+
+        void removeAll(int[] indices, int count){
+            update(indices, 0, count, true);
+        }
+
+        void remove(int index){
+            if(!keysOf(index))
+                return;
+            own();
+            for(int family = STARTS; family <= BIGRAMS; family++){
+                PostingList[] lists = mLists[family];
+                for(int i = 0; i < mTouchedCount[family]; i++){
+                    int list = mTouched[family][i];
+                    if(lists[list] != null)
+                        lists[list] = lists[list].without(index);
+                }
+            }
+        }
+
+        WordIndex publish(){
+            return new WordIndex(mLists[STARTS], mLists[PAIRS], mLists[BIGRAMS]);
+        }
+
+        /*
+         * Every list is extended or shrunk once with an exactly sized batch of indices. The
+         * indices, in ascending order, are taken from the array or, when it is null, are the range itself
+         */
+        private void update(int[] indices, int from, int to, boolean remove){
+            int[][][] batches = new int[3][][];
+            int[][] counts = new int[3][];
+            for(int family = STARTS; family <= BIGRAMS; family++){
+                batches[family] = new int[mLists[family].length][];
+                counts[family] = new int[mLists[family].length];
+            }
+            for(int i = from; i < to; i++){
+                int index = indices == null ? i : indices[i];
+                if(!keysOf(index))
+                    continue;
+                for(int family = STARTS; family <= BIGRAMS; family++){
+                    for(int t = 0; t < mTouchedCount[family]; t++){
+                        int list = mTouched[family][t];
+                        batches[family][list] = append(batches[family][list], counts[family][list]++, index);
+                    }
+                }
+            }
+
+            for(int family = STARTS; family <= BIGRAMS; family++){
+                for(int list = 0; list < counts[family].length; list++){
+                    if(counts[family][list] == 0)
+                        continue;
+                    own();
+                    PostingList[] lists = mLists[family];
+                    if(remove){
+                        if(lists[list] != null)
+                            lists[list] = lists[list].withoutAll(batches[family][list], counts[family][list]);
+                    }else{
+                        lists[list] = (lists[list] == null ? new PostingList() : lists[list])
+                                .withAll(batches[family][list], counts[family][list]);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Collect the lists of a prediction, returns false if it isn't matched by words
+         */
+        private boolean keysOf(int index){
+            PredictionStore store = mSource.getStore();
+            int words = store.getWordCount(index);
+            if(words < 0)
+                return false;
+            int length = mSource.length(index);
+            if(mBuffer.length < length)
+                mBuffer = new int[Math.max(length, mBuffer.length * 2)];
+            length = mSource.get(index, mBuffer);
+            if(length == 0)
+                return false;
+
+            mStamp++;
+            for(int family = STARTS; family <= BIGRAMS; family++)
+                mTouchedCount[family] = 0;
+            for(int pos = 0; pos + 1 < length; pos++)
+                touch(BIGRAMS, mBuffer[pos] * mKeyCount + mBuffer[pos + 1]);
+            for(int word = -1; word < words; word++){
+                int start = word < 0 ? 0 : store.getWord(index, word);
+                int key = mBuffer[start];
+                touch(STARTS, key);
+                // Followed by the rest of the word or by the start of a later word
+                if(start + 1 < length)
+                    touch(PAIRS, key * mKeyCount + mBuffer[start + 1]);
+                for(int later = word + 1; later < words; later++){
+                    int pair = key * mKeyCount + mBuffer[store.getWord(index, later)];
+                    touch(PAIRS, pair);
+                    touch(BIGRAMS, pair);
+                }
+            }
+            return true;
+        }
+
+        private void touch(int family, int list){
+            if(mStamps[family][list] == mStamp)
+                return;
+            mStamps[family][list] = mStamp;
+            int count = mTouchedCount[family]++;
+            if(count == mTouched[family].length)
+                mTouched[family] = Arrays.copyOf(mTouched[family], count * 2);
+            mTouched[family][count] = list;
+        }
+
+        private void own(){
+            if(!mOwned){
+                for(int family = STARTS; family <= BIGRAMS; family++)
+                    mLists[family] = mLists[family].clone();
+                mOwned = true;
+            }
+        }
+
+        private static int[] append(int[] indices, int count, int index){
+            if(indices == null)
+                indices = new int[16];
+            else if(count == indices.length)
+                indices = Arrays.copyOf(indices, count * 2);
+            indices[count] = index;
+            return indices;
+        }
+    }
+
+    /**
+     * Verifies the candidates of a query and works out the positions that matched. A field
+     * matches if the query is a prefix of the field starting at any of its words, preceded by
+     * the initials of any of the words before that one. The alternatives are tried in the same
+     * order as {@link Utils#variantsOfText(String, boolean)} lists them: the rest of the field
+     * first, then skipping the current word and finally taking its initial. Dead ends are
+     * remembered hence a field is verified in time proportional to its words times the query.
+     *
+     * Not thread-safe, use one per query.
+     */
+    static final class Matcher {
+        private final Predictor.InputType mInputType;
+        private int[] mSequence = new int[16];
+        private int[] mOffsets = new int[16];
+        private PredictionStore mStore;
+        private int mIndex;
+        private int mWords;
+        private int[] mKeys;
+        private int mLength;
+        private int mSequenceLength;
+        /* Initials taken on the current path, as indices into the sequence */
+        private int[] mInitials = new int[16];
+        private int mInitialCount;
+        private int[] mFailed = new int[16];
+        private int mStamp;
+
+        Matcher(Predictor.InputType inputType){
+            mInputType = inputType;
+        }
+
+        /**
+         * Match a candidate
+         * @param store Store of the candidate
+         * @param index Index of the candidate
+         * @param keys Keys of the query
+         * @param length Number of keys
+         * @return The matched positions or null if the candidate doesn't match
+         */
+        short[] match(PredictionStore store, int index, int[] keys, int length){
+            int encodingLength = store.getLength(index);
+            if(mSequence.length < encodingLength){
+                mSequence = new int[encodingLength];
+                mOffsets = new int[encodingLength];
+            }
+            mSequenceLength = 0;
+            for(int c = 0; c < encodingLength; c++){
+                int key = Utils.mapInput(mInputType, store.getChar(index, c));
+                if(key != -1){
+                    mOffsets[mSequenceLength] = c;
+                    mSequence[mSequenceLength++] = key;
+                }
+            }
+
+            mStore = store;
+            mIndex = index;
+            mWords = store.getWordCount(index);
+            mKeys = keys;
+            mLength = length;
+            int states = (mWords + 1) * (length + 1);
+            if(mFailed.length < states)
+                mFailed = new int[Math.max(states, mFailed.length * 2)];
+            if(mInitials.length < length)
+                mInitials = new int[Math.max(length, mInitials.length * 2)];
+            if(++mStamp == 0){
+                Arrays.fill(mFailed, 0);
+                mStamp = 1;
+            }
+
+            int tail = match(0, 0);
+            if(tail < 0)
+                return null;
+            // The initials are followed by the leading keys of the tail
+            short[] alignment = new short[length];
+            for(int pos = 0; pos < length; pos++){
+                int key = pos < mInitialCount ? mInitials[pos] : tail + pos - mInitialCount;
+                alignment[pos] = (short) store.getPosition(index, mOffsets[key]);
+            }
+            return alignment;
+        }
+
+        /* Private Methods */
+
+        /*
+         * Match the keys from the given one on, taking only words from the given one on.
+         * Returns the start of the tail that matched or -1
+         */
+        private int match(int word, int pos){
+            int state = word * (mLength + 1) + pos;
+            if(mFailed[state] == mStamp)
+                return -1;
+
+            int start = word == 0 ? 0 : mStore.getWord(mIndex, word - 1);
+            if(mLength - pos <= mSequenceLength - start){
+                int i = 0;
+                while(pos + i < mLength && mSequence[start + i] == mKeys[pos + i]) i++;
+                if(pos + i == mLength){
+                    mInitialCount = pos;
+                    return start;
+                }
+            }
+
+            if(word < mWords){
+                int tail = match(word + 1, pos);
+                if(tail >= 0)
+                    return tail;
+                if(pos < mLength && mSequence[start] == mKeys[pos]){
+                    mInitials[pos] = start;
+                    tail = match(word + 1, pos + 1);
+                    if(tail >= 0)
+                        return tail;
+                }
+            }
+            mFailed[state] = mStamp;
+            return -1;
+        }
+    }
+}
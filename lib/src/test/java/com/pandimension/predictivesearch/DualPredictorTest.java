@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the dual predictor against a Predictor per input type
+ */
+public class DualPredictorTest {
+    private final static String[] FIRST = {"john", "jane", "mary", "cipriano", "ana", "kollol", "joe"};
+    private final static String[] LAST = {"doe", "roe", "de la santísima", "smith", "das", "jones"};
+
+    @Test
+    public void testSameAsPredictors() throws Exception {
+        List<DataItem> items = items(200);
+        DualPredictor dual = createDual();
+        dual.addItems(items);
+
+        String[][] queries = {{"5", "56", "5263", "363", "98"}, {"j", "jo", "ana", "d", "kd", "98"}};
+        Predictor.InputType[] inputTypes = {Predictor.InputType.NUMBER_KEYPAD, Predictor.InputType.QWERTY_KEYPAD};
+        for(int i = 0; i < inputTypes.length; i++){
+            Predictor predictor = new Predictor(inputTypes[i]);
+            predictor.setLabels(labels());
+            predictor.addItems(items);
+            for(String query: queries[i]){
+                assertEquals("Should match like a Predictor " + inputTypes[i] + " " + query,
+                        ids(predictor.predict(query)), ids(dual.predict(query, inputTypes[i])));
+                assertEquals("Should keep the best like a Predictor " + inputTypes[i] + " " + query,
+                        ids(predictor.predict(query, 5)), ids(dual.predict(query, 5, inputTypes[i])));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdates() throws Exception {
+        DualPredictor dual = createDual();
+        for(DataItem item: items(50))
+            dual.addItem(item);
+        int keypad = dual.predict("5646", Predictor.InputType.NUMBER_KEYPAD).size();
+        int qwerty = dual.predict("john", Predictor.InputType.QWERTY_KEYPAD).size();
+
+        dual.removeItem("0");
+        dual.replaceItem("7", new TestDataItem("zzz", "000", "7"));
+        assertEquals("Should update the keypad", keypad - 2,
+                dual.predict("5646", Predictor.InputType.NUMBER_KEYPAD).size());
+        assertEquals("Should update QWERTY", qwerty - 2,
+                dual.predict("john", Predictor.InputType.QWERTY_KEYPAD).size());
+
+        dual.applyChanges(new ChangeSet().add(new TestDataItem("zzz", "000", "new")).remove("7"));
+        assertEquals("Should apply changes to the keypad", 1,
+                dual.predict("999", Predictor.InputType.NUMBER_KEYPAD).size());
+        assertEquals("Should apply changes to QWERTY", 1,
+                dual.newSession(Predictor.InputType.QWERTY_KEYPAD).predict("zz").size());
+    }
+
+    @Test
+    public void testDataSource() throws Exception {
+        final List<DataItem> items = items(Predictor.STREAM_CHUNK * 3 + 5);
+        final int[] reads = new int[1];
+        DualPredictor dual = createDual();
+        int count = dual.addItems(new DataSource() {
+            @Override
+            public DataItem next() {
+                return reads[0] < items.size() ? items.get(reads[0]++) : null;
+            }
+        });
+        assertEquals("Should index every item", items.size(), count);
+        assertEquals("Should read the source once", items.size(), reads[0]);
+
+        DualPredictor bulk = createDual();
+        bulk.addItems(items);
+        for(Predictor.InputType inputType: Predictor.InputType.values()){
+            assertEquals("Should add every item to " + inputType, items.size(),
+                    dual.getStats(inputType).getItemCount());
+            String query = inputType == Predictor.InputType.NUMBER_KEYPAD ? "5263" : "jane";
+            assertEquals("Should match like a bulk load " + inputType, sorted(ids(bulk.predict(query, inputType))),
+                    sorted(ids(dual.predict(query, inputType))));
+        }
+    }
+
+    @Test
+    public void testQueryApis() throws Exception {
+        List<DataItem> items = items(200);
+        DualPredictor dual = createDual();
+        dual.addItems(items);
+        MetricsRecorder metrics = new MetricsRecorder();
+        dual.setMetrics(metrics);
+        dual.setResultCache(16, 1000);
+
+        String[] queries = {"5646", "john"};
+        String[] typos = {"5746", "jphn"};
+        Predictor.InputType[] inputTypes = {Predictor.InputType.NUMBER_KEYPAD, Predictor.InputType.QWERTY_KEYPAD};
+        for(int i = 0; i < inputTypes.length; i++){
+            Predictor predictor = new Predictor(inputTypes[i]);
+            predictor.setLabels(labels());
+            predictor.addItems(items);
+            assertEquals("Should forward fuzzy predictions " + inputTypes[i],
+                    ids(predictor.predictFuzzy(typos[i], 1, 10)),
+                    ids(dual.predictFuzzy(typos[i], 1, 10, inputTypes[i])));
+            assertFalse("Should match typos " + inputTypes[i],
+                    dual.predictFuzzy(typos[i], 1, 10, inputTypes[i]).isEmpty());
+
+            final List<String> streamed = new ArrayList<>();
+            dual.predict(queries[i], new PredictionConsumer() {
+                @Override
+                public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                    streamed.add(prediction.getItem().getId());
+                    return true;
+                }
+            }, inputTypes[i]);
+            assertEquals("Should stream the matches " + inputTypes[i], sorted(ids(predictor.predict(queries[i]))),
+                    sorted(streamed));
+            assertEquals("Should create sessions " + inputTypes[i], predictor.predict(queries[i]).size(),
+                    dual.newSession(inputTypes[i]).predict(queries[i]).size());
+
+            long hits = dual.getStats(inputTypes[i]).getCacheHits();
+            dual.predict(queries[i], 5, inputTypes[i]);
+            dual.predict(queries[i], 5, inputTypes[i]);
+            assertEquals("Should cache results " + inputTypes[i], hits + 1,
+                    dual.getStats(inputTypes[i]).getCacheHits());
+        }
+        assertTrue("Should report predictions", metrics.getPredictLatency().getCount() > 0);
+    }
+
+    /* Private Methods */
+
+    private static List<String> sorted(List<String> ids){
+        List<String> copy = new ArrayList<>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private List<DataItem> items(int count){
+        List<DataItem> items = new ArrayList<>();
+        for(int i = 0; i < count; i++)
+            items.add(new TestDataItem(FIRST[i % FIRST.length] + " " + LAST[i / FIRST.length % LAST.length],
+                    "98" + (1000000 + i * 7919 % 1000000), "" + i));
+        return items;
+    }
+
+    private List<String> ids(Collection<Prediction> predictions){
+        List<String> ids = new ArrayList<>();
+        for(Prediction p: predictions)
+            ids.add(p.getItem().getId());
+        return ids;
+    }
+
+    private LinkedHashMap<String, DataItem.FieldType> labels(){
+        LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<>();
+        labels.put("name", DataItem.FieldType.TEXT_SEPARATED);
+        labels.put("number", DataItem.FieldType.NUMBER);
+        return labels;
+    }
+
+    private DualPredictor createDual(){
+        DualPredictor dual = new DualPredictor();
+        dual.setLabels(labels());
+        return dual;
+    }
+}
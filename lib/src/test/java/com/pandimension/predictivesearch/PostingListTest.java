@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class PostingListTest {
+
+    @Test
+    public void testAddRemove() throws Exception {
+        PostingList list = new PostingList();
+        list.add(5);
+        list.add(1);
+        list.add(70000);
+        list.add(5);
+
+        assertEquals("Should ignore duplicates", 3, list.cardinality());
+        assertTrue("Should contain value", list.contains(70000));
+        PostingList removed = list.without(1);
+        assertFalse("Should not contain removed value", removed.contains(1));
+        assertTrue("Should not modify the old version", list.contains(1));
+        removed = removed.without(5).without(70000);
+        assertTrue("Should be empty", removed.isEmpty());
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        PostingList v1 = new PostingList().with(1).with(2);
+        PostingList v2 = v1.with(3);
+        PostingList v3 = v2.with(0);
+
+        assertEquals("Should keep the old version", 2, v1.cardinality());
+        assertEquals("Should append to the new version", 3, v2.cardinality());
+        assertEquals("Should insert into the newest version", 0, v3.next(0));
+        assertEquals("Should not insert into older versions", 1, v2.next(0));
+
+        PostingList bitmap = new PostingList();
+        for(int i = 0; i <= PostingList.ARRAY_MAX; i++)
+            bitmap = bitmap.with(i * 2);
+        PostingList trimmed = bitmap.without(0);
+        assertTrue("Should not modify the old bitmap", bitmap.contains(0));
+        assertEquals("Should remove from the new bitmap", 2, trimmed.next(0));
+    }
+
+    @Test
+    public void testIteration() throws Exception {
+        PostingList list = new PostingList();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for(int i = 0; i < 200000; i += 7){
+            list.add(i);
+            expected.add(i);
+        }
+
+        TreeSet<Integer> actual = new TreeSet<>();
+        for(int i = list.next(0); i >= 0; i = list.next(i + 1))
+            actual.add(i);
+        assertEquals("Should iterate all values in order", expected, actual);
+        assertEquals("Should find next value", 14, list.next(8));
+        assertEquals("Should end iteration", -1, list.next(200000));
+    }
+
+    @Test
+    public void testIntersection() throws Exception {
+        PostingList dense = new PostingList();
+        PostingList sparse = new PostingList();
+        PostingList evens = new PostingList();
+        for(int i = 0; i < 150000; i++){
+            dense.add(i);
+            if(i % 2 == 0) evens.add(i);
+            if(i % 1000 == 0) sparse.add(i);
+        }
+
+        assertEquals("Should intersect bitmaps", 75000, dense.and(evens).cardinality());
+        assertEquals("Should intersect array with bitmap", 150, evens.and(sparse).cardinality());
+        assertEquals("Should intersect arrays", 150, sparse.and(sparse).cardinality());
+        assertEquals("Should not modify operands", 150000, dense.cardinality());
+    }
+
+    @Test
+    public void testSkewedIntersection() throws Exception {
+        PostingList large = new PostingList();
+        for(int i = 0; i < 12000; i += 3)
+            large.add(i);
+        PostingList small = new PostingList();
+        for(int i: new int[]{0, 7, 9, 300, 301, 3000, 11997, 12001})
+            small.add(i);
+
+        TreeSet<Integer> expected = new TreeSet<>();
+        for(int i: new int[]{0, 9, 300, 3000, 11997})
+            expected.add(i);
+        assertEquals("Should search the large array", expected, valuesOf(small.and(large)));
+        assertEquals("Should search the large array either way", expected, valuesOf(large.and(small)));
+    }
+
+    @Test
+    public void testBatchRemoval() throws Exception {
+        PostingList list = new PostingList();
+        for(int i = 0; i < 70000; i++)
+            if(i < 65536 || i % 2 == 0) list.add(i);
+        int[] removed = new int[65536 / 2 + 3];
+        int count = 0;
+        for(int i = 0; i < 65536; i += 2)
+            removed[count++] = i;
+        removed[count++] = 65537;
+        removed[count++] = 65538;
+        removed[count++] = 80000;
+
+        PostingList result = list.withoutAll(removed, count);
+        assertEquals("Should remove from bitmaps and arrays", list.cardinality() - 65536 / 2 - 1, result.cardinality());
+        assertFalse("Should remove the values", result.contains(0) || result.contains(65538));
+        assertTrue("Should keep the others", result.contains(1) && result.contains(65540));
+        assertTrue("Should not modify the list", list.contains(0));
+        assertSame("Should skip values it doesn't contain", list, list.withoutAll(new int[]{65537, 80000}, 2));
+
+        PostingList sparse = new PostingList().with(3).with(70000);
+        PostingList emptied = sparse.withoutAll(new int[]{3}, 1);
+        assertEquals("Should drop emptied chunks", 70000, emptied.next(0));
+        assertTrue("Should become empty", emptied.withoutAll(new int[]{70000}, 1).isEmpty());
+    }
+
+    @Test
+    public void testUnion() throws Exception {
+        PostingList odds = new PostingList();
+        PostingList evens = new PostingList();
+        PostingList sparse = new PostingList();
+        for(int i = 0; i < 150000; i++){
+            if(i % 2 == 0) evens.add(i);
+            else odds.add(i);
+            if(i % 1000 == 1) sparse.add(i + 200000);
+        }
+
+        PostingList all = odds.or(evens);
+        assertEquals("Should unite bitmaps", 150000, all.cardinality());
+        assertEquals(149999, all.next(149999));
+        assertEquals("Should unite array with bitmap", 75150, evens.or(sparse).cardinality());
+        assertEquals("Should unite arrays", 150, sparse.or(sparse).cardinality());
+        assertEquals("Should not modify operands", 75000, odds.cardinality());
+
+        PostingList few = new PostingList().with(3).with(70000);
+        PostingList others = new PostingList().with(1).with(3).with(5);
+        PostingList union = few.or(others);
+        assertEquals(4, union.cardinality());
+        assertEquals(5, union.next(4));
+        assertEquals(70000, union.next(6));
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        PostingList list = new PostingList();
+        for(int i = 0; i < 300000; i++)
+            if(i % 3 == 0 || (i > 200000 && i % 1000 == 1)) list.add(i);
+        int chunk = PostingList.CHUNK_SIZE;
+
+        assertSame("Should share the whole list", list, list.slice(0, Integer.MAX_VALUE));
+        PostingList middle = list.slice(chunk, 3 * chunk);
+        assertEquals("Should keep whole chunks", valuesOf(list).subSet(chunk, 3 * chunk), valuesOf(middle));
+        assertEquals("Should round to whole chunks", valuesOf(middle), valuesOf(list.slice(chunk + 5, 3 * chunk - 5)));
+        assertEquals("Should count the chunks of the range", valuesOf(middle).size(), middle.cardinality());
+        assertEquals("Should intersect slices", valuesOf(middle).size(), middle.and(list).cardinality());
+        assertTrue("Should be empty beyond the values", list.slice(10 * chunk, 12 * chunk).isEmpty());
+        assertEquals("Should keep the last chunk", valuesOf(list).tailSet(4 * chunk),
+                valuesOf(list.slice(4 * chunk, 6 * chunk)));
+    }
+
+    @Test
+    public void testBitmapConversion() throws Exception {
+        PostingList list = new PostingList();
+        for(int i = 0; i < PostingList.ARRAY_MAX + 10; i++)
+            list.add(i);
+        for(int i = 0; i < 20; i++)
+            list = list.without(i);
+
+        assertEquals("Should keep cardinality across conversions",
+                PostingList.ARRAY_MAX - 10, list.cardinality());
+        assertEquals("Should iterate after conversion", 20, list.next(0));
+    }
+
+    @Test
+    public void testMapping() throws Exception {
+        PostingList list = new PostingList();
+        for(int i = 0; i < PostingList.ARRAY_MAX + 10; i++)
+            list.add(i * 2);
+        list.add(70001);
+        list.add(200000);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        list.write(out);
+        PostingList mapped = PostingList.map(ByteBuffer.wrap(bytes.toByteArray()), 4);
+
+        assertEquals("Should keep cardinality", list.cardinality(), mapped.cardinality());
+        assertTrue("Should contain bitmap values", mapped.contains(8000));
+        assertFalse("Should not contain missing values", mapped.contains(8001));
+        assertEquals("Should iterate array chunks", 200000, mapped.next(70002));
+        assertEquals("Should intersect with heap lists", list.cardinality() - 3,
+                mapped.and(list.without(0).without(2).without(70001)).cardinality());
+
+        PostingList updated = mapped.with(70003).without(2);
+        assertTrue("Should update a copy", updated.contains(70003) && !updated.contains(2));
+        assertFalse("Should not modify the mapped list", mapped.contains(70003));
+        assertTrue("Should keep the mapped values", mapped.contains(2));
+    }
+
+    @Test
+    public void testMappedOperations() throws Exception {
+        // Sparse and dense chunks, heap and mapped, in every combination
+        Random random = new Random(7);
+        List<PostingList> lists = new ArrayList<>();
+        List<TreeSet<Integer>> expected = new ArrayList<>();
+        for(int l = 0; l < 2; l++){
+            TreeSet<Integer> values = new TreeSet<>();
+            for(int chunk = 0; chunk < 4; chunk++){
+                int count = (chunk + l) % 2 == 0 ? 300 : PostingList.ARRAY_MAX * 3;
+                for(int i = 0; i < count; i++)
+                    values.add((chunk << 16) + random.nextInt(1 << 16));
+            }
+            PostingList list = new PostingList();
+            for(int value: values)
+                list.add(value);
+            lists.add(list);
+            lists.add(mapped(list));
+            expected.add(values);
+            expected.add(values);
+        }
+
+        for(int a = 0; a < lists.size(); a++){
+            for(int b = 0; b < lists.size(); b++){
+                TreeSet<Integer> and = new TreeSet<>(expected.get(a));
+                and.retainAll(expected.get(b));
+                assertEquals("Should intersect " + a + " and " + b, and, valuesOf(lists.get(a).and(lists.get(b))));
+                TreeSet<Integer> or = new TreeSet<>(expected.get(a));
+                or.addAll(expected.get(b));
+                assertEquals("Should unite " + a + " and " + b, or, valuesOf(lists.get(a).or(lists.get(b))));
+            }
+            int[] removed = new int[100];
+            int n = 0;
+            for(int value: expected.get(a))
+                if(n < removed.length && random.nextInt(50) == 0)
+                    removed[n++] = value;
+            TreeSet<Integer> without = new TreeSet<>(expected.get(a));
+            for(int i = 0; i < n; i++)
+                without.remove(removed[i]);
+            assertEquals("Should remove a batch from " + a, without, valuesOf(lists.get(a).withoutAll(removed, n)));
+        }
+    }
+
+    private static PostingList mapped(PostingList list) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        list.write(out);
+        return PostingList.map(ByteBuffer.wrap(bytes.toByteArray()), 0);
+    }
+
+    private static TreeSet<Integer> valuesOf(PostingList list){
+        TreeSet<Integer> values = new TreeSet<>();
+        for(int i = list.next(0); i >= 0; i = list.next(i + 1))
+            values.add(i);
+        return values;
+    }
+}
@@ -18,58 +18,45 @@ package com.pandimension.predictivesearch;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 
 /**
- * Test implementation of DataItem
+ * Test implementation of ScoredDataItem that counts the comparisons
  */
-class TestDataItem implements DataItem {
+class ScoredTestDataItem extends TestDataItem implements ScoredDataItem {
+    static int sComparisons;
+    final double score;
 
-    final static String LABEL_NAME = "name";
-    final static String LABEL_NUMBER = "number";
-
-    List<String> name, number;
-    String id;
-
-    TestDataItem(String name, String number, String id){
-        this.name = new LinkedList<>(Arrays.asList(new String[]{name}));
-        this.number = new LinkedList<>(Arrays.asList(new String[]{number}));
-        this.id = id;
-    }
-
-    public int compareTo(DataItem other) {
-        return id.compareTo(other.getId());
-        //int d = name.get(0).compareToIgnoreCase(((TestDataItem)other).name.get(0));
-        //return d;
+    ScoredTestDataItem(String name, String number, String id, double score){
+        super(name, number, id);
+        this.score = score;
     }
 
-
     @Override
-    public boolean equals(Object arg0) {
-        TestDataItem other = (TestDataItem)arg0;
-        return id.equals(other.id);
-        //return name.get(0).equalsIgnoreCase(other.name.get(0));
-    }
-
-    public String getId() {
-        return id;
-    }
-
-    public List<String> getField(String label) {
-        if(LABEL_NAME.equals(label)) return name;
-        else return number;
+    public int compareTo(DataItem other) {
+        sComparisons++;
+        return super.compareTo(other);
     }
 
-    @Override
-    public String toString() {
-        return name + "," + number;
+    public double getScore() {
+        return score;
     }
 }
 
@@ -252,6 +239,1132 @@ public class PredictorTest {
                 p.getItem().getField(TestDataItem.LABEL_NAME).get(0));
     }
 
+    @Test
+    public void testChangeSet() throws Exception {
+        String[] names = {"john doe", "jane roe", "mark das", "ana smith"};
+        List<Predictor> predictors = new ArrayList<>();
+        for(int i = 0; i < 2; i++){
+            Predictor predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                    .substringMatch(DataItem.FieldType.NUMBER)
+                    .build();
+            predictor.setLabels(labels());
+            predictor.setCompactionRatio(0);
+            for(int id = 0; id < 100; id++)
+                predictor.addItem(new TestDataItem(names[id % 4], "98" + (1000 + id * 7), "" + id));
+            predictors.add(predictor);
+        }
+        Predictor sequential = predictors.get(0), batched = predictors.get(1);
+
+        ChangeSet changes = new ChangeSet();
+        for(int id = 0; id < 20; id++){
+            changes.remove("" + id);
+            sequential.removeItem("" + id);
+        }
+        for(int id = 20; id < 40; id++){
+            TestDataItem item = new TestDataItem(names[(id + 1) % 4], "77" + (1000 + id), "" + id);
+            changes.replace("" + id, item);
+            sequential.replaceItem("" + id, item);
+        }
+        for(int id = 100; id < 120; id++){
+            TestDataItem item = new TestDataItem(names[id % 4], "66" + (1000 + id), "" + id);
+            changes.add(item);
+            sequential.addItem(item);
+        }
+        changes.add(new TestDataItem("temp item", "5555", "temp")).remove("temp");
+        changes.remove("50").add(new TestDataItem("new item", "4444", "50"));
+        changes.add(new TestDataItem("duplicate", "3333", "51"));
+        sequential.removeItem("50");
+        sequential.addItem(new TestDataItem("new item", "4444", "50"));
+        assertEquals("Should record every change", 65, changes.size());
+
+        final int[] reported = new int[2];
+        batched.setMetrics(new PredictorMetrics() {
+            @Override
+            public void onPredict(long nanos, int keys, int predictions) {}
+
+            @Override
+            public void onCandidates(int step, int candidates) {}
+
+            @Override
+            public void onAdd(long nanos, int items) {
+                reported[0] += items;
+            }
+
+            @Override
+            public void onRemove(long nanos, int items) {
+                reported[1] += items;
+            }
+        });
+        int generation = batched.getGeneration().mNumber;
+        batched.applyChanges(changes);
+        batched.setMetrics(null);
+        assertEquals("Should publish once", generation + 1, batched.getGeneration().mNumber);
+        assertEquals("Should report the items added", 43, reported[0]);
+        // The removals and replacements of indexed items, not the item added and removed in the batch
+        assertEquals("Should report the items removed", 41, reported[1]);
+        for(String query: new String[]{"5", "5646", "526", "98", "981", "77", "661", "8367", "5555", "4444", "3333",
+                "5264", "1010"}){
+            assertEquals("Should match like single updates " + query, new HashSet<>(idsOf(sequential.predict(query))),
+                    new HashSet<>(idsOf(batched.predict(query))));
+        }
+        assertTrue("Should not index items removed in the batch", batched.predict("8367").isEmpty());
+        assertEquals("Should replace within the batch", "50", idFromPrediction(batched, "4444"));
+        assertTrue("Should not add duplicates", batched.predict("3333").isEmpty());
+        assertEquals("Should leave the same tombstones", sequential.getGeneration().getTombstones(),
+                batched.getGeneration().getTombstones());
+    }
+
+    @Test
+    public void testDataSource() throws Exception {
+        final String[] names = {"john doe", "jane roe", "mark das", "ana smith"};
+        final int total = Predictor.STREAM_CHUNK * 5 + 17;
+        final Predictor predictor = createNumberPredictor();
+        final int[] lag = new int[1];
+        int count = predictor.addItems(new DataSource() {
+            int mNext;
+
+            @Override
+            public DataItem next() {
+                // Nothing is read ahead while the chunks pulled so far are being encoded
+                lag[0] = Math.max(lag[0], mNext - predictor.getStats().getItemCount());
+                if(mNext == total)
+                    return null;
+                int id = mNext++;
+                return new TestDataItem(names[id % 4], "98" + (10000 + id), "" + id);
+            }
+        });
+        assertEquals("Should pull every item", total, count);
+        assertEquals("Should add every item", total, predictor.getStats().getItemCount());
+        assertTrue("Should bound the items in flight", lag[0] <= Predictor.STREAM_CHUNK *
+                (Runtime.getRuntime().availableProcessors() * Predictor.STREAM_CHUNKS_PER_THREAD + 1));
+
+        Predictor bulk = createNumberPredictor();
+        List<TestDataItem> items = new ArrayList<>();
+        for(int id = 0; id < total; id++)
+            items.add(new TestDataItem(names[id % 4], "98" + (10000 + id), "" + id));
+        bulk.addItems(items);
+        for(String query: new String[]{"5646", "526", "9810", "98151", "6271"})
+            assertEquals("Should match like a bulk load " + query, new HashSet<>(idsOf(bulk.predict(query))),
+                    new HashSet<>(idsOf(predictor.predict(query))));
+
+        assertEquals("Should skip existing items", 1, predictor.addItems(new DataSource() {
+            boolean mDone;
+
+            @Override
+            public DataItem next() {
+                if(mDone)
+                    return null;
+                mDone = true;
+                return new TestDataItem("zzz", "999", "0");
+            }
+        }));
+        assertTrue("Should not add duplicates", predictor.predict("999").isEmpty());
+    }
+
+    @Test
+    public void testDataSourceInterrupted() throws Exception {
+        final int total = Predictor.STREAM_CHUNK * 40;
+        final int interruptAt = total / 2;
+        Predictor predictor = createNumberPredictor();
+        int count = predictor.addItems(new DataSource() {
+            int mNext;
+
+            @Override
+            public DataItem next() {
+                if(mNext == interruptAt)
+                    Thread.currentThread().interrupt();
+                if(mNext == total)
+                    return null;
+                int id = mNext++;
+                return new TestDataItem("john doe", "98" + (10000 + id), "" + id);
+            }
+        });
+        assertTrue("Should keep the interrupt flag", Thread.interrupted());
+        assertTrue("Should stop early", count < total);
+        assertEquals("Should index whole chunks", 0, count % Predictor.STREAM_CHUNK);
+        assertEquals("Should report the items indexed", count, predictor.getStats().getItemCount());
+        assertEquals("Should match the items indexed", count, predictor.predict("5646").size());
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        predictor.addItem(new TestDataItem("jane doe", "871111111", "1"));
+        QuerySession session = predictor.newSession();
+
+        assertEquals("Should match 2 items", 2, session.predict("5").size());
+        assertEquals("Should narrow down on typing", 1, session.predict("56").size());
+        assertEquals("Should match typed name", "0",
+                session.predict("564").iterator().next().getItem().getId());
+        assertEquals("Should restore on backspace", 2, session.predict("5").size());
+        assertEquals("Should match edited query", "1",
+                session.predict("526").iterator().next().getItem().getId());
+        assertEquals("Should match alignment of the last query", 3,
+                session.predict("526").iterator().next().getAlignment().size());
+        assertNull("Should return null on empty input", session.predict(""));
+    }
+
+    @Test
+    public void testSessionInvalidation() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        QuerySession session = predictor.newSession();
+
+        assertEquals("Should match the id", 1, session.predict("56").size());
+        predictor.addItem(new TestDataItem("jolly doe", "871111111", "1"));
+        assertEquals("Should see added item", 2, session.predict("56").size());
+        predictor.removeItem("0");
+        assertEquals("Should not see removed item", "1",
+                session.predict("56").iterator().next().getItem().getId());
+        assertEquals("Should not see removed item", 1, session.predict("56").size());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final Predictor predictor = createNumberPredictor();
+        final int count = 2000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < count; i++)
+                    predictor.addItem(new TestDataItem("john doe", "88" + i, "" + i));
+                for(int i = 0; i < count; i += 2)
+                    predictor.replaceItem("" + i, new TestDataItem("jane doe", "88" + i, "" + i));
+            }
+        });
+        writer.start();
+
+        int last = 0;
+        while(writer.isAlive()){
+            int size = predictor.predict("3").size();
+            assertTrue("Should never see items disappear", size >= last);
+            last = size;
+        }
+        writer.join();
+        assertEquals("Should see all items", count / 2, predictor.predict("5646").size());
+        assertEquals("Should see all replacements", count / 2, predictor.predict("5263").size());
+    }
+
+    @Test
+    public void testBulkAddition() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("jane doe", "871111111", "first"));
+        List<DataItem> items = new ArrayList<>();
+        for(int i = 0; i < 5000; i++)
+            items.add(new TestDataItem("john doe", "880000000", "" + i));
+        items.add(new TestDataItem("jim doe", "880000000", "first"));
+        items.add(new TestDataItem("jim doe", "880000000", "0"));
+        predictor.addItems(items);
+
+        assertEquals("Should add all items", 5000, predictor.predict("5646").size());
+        assertEquals("Should keep existing items", 5001, predictor.predict("363").size());
+        assertTrue("Should skip duplicates", predictor.predict("546").isEmpty());
+        assertEquals("Should match positions", 4,
+                predictor.predict("5646").iterator().next().getAlignment().size());
+
+        predictor.removeItem("0");
+        predictor.addItem(new TestDataItem("jim doe", "880000000", "0"));
+        assertEquals("Should update after bulk addition", 4999, predictor.predict("5646").size());
+        assertEquals("Should add after bulk addition", "0", idFromPrediction(predictor, "546"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.setCompactionRatio(0);
+        for(int i = 0; i < 100; i++)
+            predictor.addItem(new TestDataItem("john doe", "880000000", "" + i));
+        int size = predictor.getGeneration().mCount;
+        for(int i = 0; i < 100; i += 2)
+            predictor.removeItem("" + i);
+
+        predictor.compact();
+        assertEquals("Should reclaim the removed slots", size / 2, predictor.getGeneration().mCount);
+        assertEquals("Should have no tombstones", 0, predictor.getGeneration().getTombstones());
+        assertEquals("Should keep live items", 50, predictor.predict("5646").size());
+
+        predictor.replaceItem("1", new TestDataItem("jane doe", "871111111", "1"));
+        predictor.removeItem("3");
+        assertEquals("Should update after compaction", 48, predictor.predict("5646").size());
+        assertEquals("Should replace after compaction", "1", idFromPrediction(predictor, "5263"));
+    }
+
+    @Test
+    public void testCompactionChurn() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.setCompactionRatio(0.1f);
+        for(int i = 0; i < 200; i++)
+            predictor.addItem(new TestDataItem("john doe", "880000000", "" + i));
+        for(int round = 0; round < 20; round++){
+            for(int i = 0; i < 200; i++)
+                predictor.replaceItem("" + i, new TestDataItem(round % 2 == 0 ? "jane doe" : "john doe",
+                        "880000000", "" + i));
+            assertEquals("Should keep all items", 200, predictor.predict("363").size());
+        }
+
+        predictor.compact();
+        // A name is stored once and a number with its 5 variants
+        assertEquals("Should only keep live predictions", 200 * 6, predictor.getGeneration().mCount);
+        assertEquals("Should match the last names", 200, predictor.predict("5646").size());
+    }
+
+    @Test
+    public void testCompactionReplayWords() throws Exception {
+        final Predictor predictor = createNumberPredictor();
+        predictor.setCompactionRatio(0);
+        String[] names = {"john doe", "jane roe", "mark das", "ana smith"};
+        for(int i = 0; i < 300; i++)
+            predictor.addItem(new TestDataItem(names[i % 4], "880000000", "" + i));
+        predictor.addItem(new TestDataItem("gina sam liam", "1234", "gina"));
+        predictor.removeItem("0");
+
+        compactDuring(predictor, new Runnable() {
+            @Override
+            public void run() {
+                predictor.removeItem("gina");
+                predictor.addItem(new TestDataItem("gina sam liam", "1234", "late"));
+                predictor.removeItem("late");
+            }
+        });
+        for(String query: new String[]{"4462", "726", "5426", "47", "475", "4754"})
+            assertTrue("Should remove from the word lists " + query, predictor.predict(query).isEmpty());
+        assertEquals("Should keep the other items", 149, predictor.predict("5").size());
+    }
+
+    @Test
+    public void testCompactionReplaySubstrings() throws Exception {
+        final Predictor predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                .substringMatch(DataItem.FieldType.NUMBER)
+                .build();
+        predictor.setLabels(labels());
+        predictor.setCompactionRatio(0);
+        for(int i = 0; i < 300; i++)
+            predictor.addItem(new TestDataItem("john doe", "880000000", "" + i));
+        predictor.addItem(new TestDataItem("mark roe", "9876543", "old"));
+        predictor.removeItem("0");
+
+        compactDuring(predictor, new Runnable() {
+            @Override
+            public void run() {
+                predictor.removeItem("old");
+                predictor.addItem(new TestDataItem("mark roe", "1234567", "late"));
+                predictor.removeItem("late");
+            }
+        });
+        for(String query: new String[]{"654", "876", "345", "9876543", "1234567"})
+            assertTrue("Should remove from the substring lists " + query, predictor.predict(query).isEmpty());
+        assertEquals("Should keep the other items", 299, predictor.predict("800").size());
+    }
+
+    @Test
+    public void testCompactionRace() throws Exception {
+        final String[] names = {"john doe", "jane roe", "mark das", "ana smith", "gina sam liam"};
+        final Predictor[] predictors = new Predictor[2];
+        for(int i = 0; i < predictors.length; i++){
+            predictors[i] = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                    .substringMatch(DataItem.FieldType.NUMBER)
+                    .build();
+            predictors[i].setLabels(labels());
+            predictors[i].setCompactionRatio(0);
+        }
+        final Predictor racing = predictors[0], reference = predictors[1];
+        final Random random = new Random(5);
+        final Runnable updates = new Runnable() {
+            @Override
+            public void run() {
+                for(int n = 0; n < 100; n++){
+                    int id = random.nextInt(400);
+                    TestDataItem item = new TestDataItem(names[random.nextInt(names.length)],
+                            "98" + (10000 + random.nextInt(90000)), "" + id);
+                    switch(random.nextInt(3)){
+                        case 0:
+                            racing.addItem(item);
+                            reference.addItem(item);
+                            break;
+                        case 1:
+                            racing.removeItem("" + id);
+                            reference.removeItem("" + id);
+                            break;
+                        default:
+                            racing.replaceItem("" + id, item);
+                            reference.replaceItem("" + id, item);
+                    }
+                }
+            }
+        };
+
+        for(int round = 0; round < 10; round++){
+            // Updates replayed by a compaction, then updates racing a running one
+            updates.run();
+            compactDuring(racing, updates);
+            Thread compaction = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    racing.compact();
+                }
+            });
+            compaction.start();
+            updates.run();
+            compaction.join();
+        }
+
+        for(String query: new String[]{"5", "5646", "526", "47", "4754", "98", "981", "234", "5678", "726"}){
+            assertEquals("Should predict like without compaction " + query,
+                    sorted(idsOf(reference.predict(query))), sorted(idsOf(racing.predict(query))));
+            assertEquals("Should limit like without compaction " + query,
+                    reference.predict(query, 5).size(), racing.predict(query, 5).size());
+            assertEquals("Should predict in sessions like without compaction " + query,
+                    sorted(idsOf(reference.newSession().predict(query))),
+                    sorted(idsOf(racing.newSession().predict(query))));
+            assertEquals("Should stream like without compaction " + query,
+                    sorted(streamedIds(reference, query)), sorted(streamedIds(racing, query)));
+            assertEquals("Should predict fuzzy like without compaction " + query,
+                    sorted(idsOf(reference.predictFuzzy(query, 1, 0, 10000000L))),
+                    sorted(idsOf(racing.predictFuzzy(query, 1, 0, 10000000L))));
+        }
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        for(int i = 0; i < 50; i++)
+            predictor.addItem(new TestDataItem("john doe", "330000000", "" + (char)('a' + i)));
+        predictor.addItem(new TestDataItem("xxx yyy", "363000000", "_"));
+
+        Collection<Prediction> all = predictor.predict("3");
+        Collection<Prediction> top = predictor.predict("3", 5);
+        assertEquals("Should match all items", 51, all.size());
+        assertEquals("Should limit the predictions", 5, top.size());
+        assertEquals("Should keep the order", new ArrayList<>(all).subList(0, 5), new ArrayList<>(top));
+        assertEquals("Should prefer higher levels", "a", top.iterator().next().getItem().getId());
+        assertEquals("Should return all if less", 1, predictor.predict("9", 5).size());
+        assertEquals("Should limit sessions", 5, predictor.newSession().predict("3", 5).size());
+    }
+
+    @Test
+    public void testLimitWindows() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.setCompactionRatio(0);
+        String[] words = {"john", "jane", "mark", "mary", "doe", "roe", "kollol", "das"};
+        Random random = new Random(3);
+        List<TestDataItem> items = new ArrayList<>();
+        for(int i = 0; i < 30000; i++)
+            items.add(new TestDataItem(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)],
+                    "9" + (10000000 + random.nextInt(90000000)), "" + i));
+        predictor.addItems(items);
+        // Appended items are not ranked but belong near the top
+        for(int i = 0; i < 20; i++)
+            predictor.addItem(new TestDataItem("mary das", "5" + i, "0" + (char)('a' + i)));
+        Generation generation = predictor.getGeneration();
+        assertTrue("Should span several chunks", generation.mRanked > 2 * PostingList.CHUNK_SIZE);
+
+        for(String query: new String[]{"5", "627", "3", "327", "9", "91", "56"}){
+            List<String> all = idsOf(predictor.predict(query));
+            for(int limit: new int[]{1, 10, 1000}){
+                assertEquals("Should match window by window " + query + " " + limit,
+                        all.subList(0, Math.min(limit, all.size())), idsOf(predictor.predict(query, limit)));
+            }
+        }
+    }
+
+    @Test
+    public void testConsumer() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        predictor.addItem(new TestDataItem("jane doe", "871111111", "1"));
+        predictor.addItem(new TestDataItem("Cipriano de la Santísima", "+91 98765 4321", "2"));
+
+        final List<String> ids = new ArrayList<>();
+        final List<List<Integer>> alignments = new ArrayList<>();
+        PredictionConsumer consumer = new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                ids.add(prediction.getItem().getId());
+                alignments.add(prediction.getAlignment(extent));
+                return true;
+            }
+        };
+
+        predictor.predict("5363", consumer);
+        assertEquals("Should stream in index order", Arrays.asList("0", "1"), ids);
+        ids.clear();
+        alignments.clear();
+        predictor.predict("2357", consumer);
+        assertEquals("Should stream a separated field once", Collections.singletonList("2"), ids);
+        assertEquals("Should report the initials", Arrays.asList(0, 9, 12, 15), alignments.get(0));
+
+        ids.clear();
+        predictor.newSession().predict("5363", consumer);
+        assertEquals("Should stream from sessions", Arrays.asList("0", "1"), ids);
+
+        ids.clear();
+        predictor.predict("3", new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                ids.add(prediction.getItem().getId());
+                return false;
+            }
+        });
+        assertEquals("Should stop when asked", 1, ids.size());
+    }
+
+    @Test
+    public void testConcurrentAlignments() throws Exception {
+        final Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("Cipriano de la Santísima", "+91 98765 4321", "0"));
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int i = 0; i < 2000; i++)
+                    predictor.predict("2");
+            }
+        });
+        other.start();
+        for(int i = 0; i < 2000; i++){
+            Prediction p = singlePrediction(predictor, "2357");
+            assertEquals("Should not be affected by other queries", 4, p.getAlignment().size());
+        }
+        other.join();
+    }
+
+    @Test
+    public void testIndexFile() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        final List<TestDataItem> items = new ArrayList<>();
+        for(int i = 0; i < 100; i++)
+            items.add(new TestDataItem(i % 2 == 0 ? "john doe" : "jane doe", "880000000", "" + i));
+        items.add(new TestDataItem("Cipriano de la Santísima", "+91 98765 4321", "100"));
+        predictor.addItems(items);
+        predictor.removeItem("0");
+
+        File file = File.createTempFile("predictor", ".idx");
+        file.deleteOnExit();
+        predictor.writeIndex(file);
+        Predictor loaded = Predictor.openIndex(file, new DataItemResolver() {
+            @Override
+            public DataItem resolve(String id) {
+                return items.get(Integer.parseInt(id));
+            }
+        });
+
+        assertEquals("Should only keep live predictions",
+                predictor.getGeneration().mCount - predictor.getGeneration().getTombstones(),
+                loaded.getGeneration().mCount);
+        assertEquals("Should restore the input type", 100, loaded.predict("3").size());
+        assertEquals("Should restore the order", new ArrayList<>(predictor.predict("5")),
+                new ArrayList<>(loaded.predict("5")));
+        assertEquals("Should restore the alignments", Arrays.asList(0, 9, 12, 15),
+                singlePrediction(loaded, "2357").getAlignment());
+        assertEquals("Should restore the labels", "number", singlePrediction(loaded, "98765").getLabel());
+        assertEquals("Should work with sessions", 50, loaded.newSession().predict("5263").size());
+    }
+
+    @Test
+    public void testIndexFileUpdates() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        final List<TestDataItem> items = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            items.add(new TestDataItem("john doe", "880000000", "" + i));
+        predictor.addItems(items);
+
+        File file = File.createTempFile("predictor", ".idx");
+        file.deleteOnExit();
+        predictor.writeIndex(file);
+        Predictor loaded = Predictor.openIndex(file, new DataItemResolver() {
+            @Override
+            public DataItem resolve(String id) {
+                return items.get(Integer.parseInt(id));
+            }
+        });
+
+        loaded.addItem(new TestDataItem("john doe", "880000000", "0"));
+        assertEquals("Should not add duplicates", 10, loaded.predict("5646").size());
+        loaded.removeItem("1");
+        loaded.replaceItem("2", new TestDataItem("jane doe", "871111111", "2"));
+        loaded.addItem(new TestDataItem("john roe", "880000000", "10"));
+        assertEquals("Should update a loaded index", 9, loaded.predict("5646").size());
+        assertEquals("Should replace items", "2", idFromPrediction(loaded, "5263"));
+
+        loaded.compact();
+        assertEquals("Should compact a loaded index", 0, loaded.getGeneration().getTombstones());
+        assertEquals("Should keep items after compaction", 9, loaded.predict("564").size());
+    }
+
+    @Test
+    public void testRewriteOpenIndexFile() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        final List<TestDataItem> items = new ArrayList<>();
+        for(int i = 0; i < 2000; i++)
+            items.add(new TestDataItem(i % 2 == 0 ? "mary doe" : "mark doe", "88" + (100000 + i), "" + i));
+        predictor.addItems(items);
+
+        File dir = File.createTempFile("predictor", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File file = new File(dir, "contacts.idx");
+        predictor.writeIndex(file);
+        Predictor loaded = Predictor.openIndex(file, new DataItemResolver() {
+            @Override
+            public DataItem resolve(String id) {
+                return items.get(Integer.parseInt(id));
+            }
+        });
+        loaded.removeItem("1");
+        loaded.writeIndex(file);
+        assertEquals("Should keep reading the file it mapped", 1999, loaded.predict("627").size());
+        assertEquals("Should replace the file", Collections.singletonList("contacts.idx"),
+                Arrays.asList(dir.list()));
+
+        Predictor reloaded = Predictor.openIndex(file, new DataItemResolver() {
+            @Override
+            public DataItem resolve(String id) {
+                return items.get(Integer.parseInt(id));
+            }
+        });
+        assertEquals("Should write the new snapshot", 1999, reloaded.predict("627").size());
+        assertTrue(file.delete() && dir.delete());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadIndexFile() throws Exception {
+        File file = File.createTempFile("predictor", ".idx");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        Predictor.openIndex(file, null);
+    }
+
+    @Test
+    public void testTrieEngine() throws Exception {
+        for(Predictor.InputType inputType: Predictor.InputType.values()){
+            Predictor columns = createPredictor(inputType, IndexEngine.COLUMNS);
+            Predictor trie = createPredictor(inputType, IndexEngine.TRIE);
+            List<TestDataItem> items = new ArrayList<>();
+            for(int i = 0; i < 300; i++)
+                items.add(new TestDataItem(i % 3 == 0 ? "john doe" : i % 3 == 1 ? "jane doe" : "Cipriano de la Santísima",
+                        "88" + i + "0000", "" + i));
+            columns.addItems(items);
+            trie.addItems(items);
+            for(int i = 0; i < 300; i += 7){
+                columns.removeItem("" + i);
+                trie.removeItem("" + i);
+            }
+            for(int i = 300; i < 400; i++){
+                TestDataItem item = new TestDataItem("joan roe", "87" + i, "" + i);
+                columns.addItem(item);
+                trie.addItem(item);
+            }
+            columns.replaceItem("1", new TestDataItem("jean doe", "871111111", "1"));
+            trie.replaceItem("1", new TestDataItem("jean doe", "871111111", "1"));
+
+            String[] queries = inputType == Predictor.InputType.NUMBER_KEYPAD ?
+                    new String[]{"5", "5646", "5263", "363", "2357", "88", "8812", "87301", "5326", "9", "5626769"} :
+                    new String[]{"j", "john", "jane", "doe", "cdls", "88", "8812", "87301", "jean", "z", "joanroe"};
+            for(String query: queries){
+                assertEquals("Should match the columns for " + query,
+                        new ArrayList<>(columns.predict(query)), new ArrayList<>(trie.predict(query)));
+                assertEquals("Should limit like the columns for " + query,
+                        new ArrayList<>(columns.predict(query, 5)), new ArrayList<>(trie.predict(query, 5)));
+                assertEquals("Should work with sessions for " + query,
+                        columns.predict(query).size(), trie.newSession().predict(query).size());
+            }
+            // Typing narrows down the tail with the partition of the previous keys
+            for(String query: new String[]{queries[6], queries[7]}){
+                QuerySession session = trie.newSession();
+                for(int i = 1; i <= query.length(); i++)
+                    assertEquals("Should narrow down sessions for " + query.substring(0, i),
+                            sorted(idsOf(columns.predict(query.substring(0, i)))),
+                            sorted(idsOf(session.predict(query.substring(0, i)))));
+            }
+
+            final List<Integer> ordinals = new ArrayList<>();
+            trie.predict(queries[1], new PredictionConsumer() {
+                @Override
+                public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                    ordinals.add(ordinal);
+                    return true;
+                }
+            });
+            List<Integer> sorted = new ArrayList<>(ordinals);
+            Collections.sort(sorted);
+            assertEquals("Should stream in index order", sorted, ordinals);
+
+            trie.compact();
+            assertEquals("Should match after compaction", columns.predict(queries[0]).size(),
+                    trie.predict(queries[0]).size());
+        }
+    }
+
+    @Test
+    public void testWordMatching() throws Exception {
+        String[] names = {"Cipriano de la Santísima Trinidad Ruiz y Picasso", "John O'Neil-Smith",
+                "ana ana ana", "Mary-Jane van der Berg", "R2 D2 unit", "a.b@example.com", "Él-an"};
+        for(Predictor.InputType inputType: Predictor.InputType.values()){
+            boolean qwerty = inputType == Predictor.InputType.QWERTY_KEYPAD;
+            for(String name: names){
+                Predictor predictor = createPredictor(inputType, IndexEngine.COLUMNS);
+                predictor.addItem(new TestDataItem(name, "", "0"));
+
+                // Every prefix of every variant matches like the first variant having it
+                List<String> encodings = new ArrayList<>();
+                List<List<Integer>> alignments = new ArrayList<>();
+                for(String variant: Utils.variantsOfText(name, qwerty)){
+                    List<Integer> positions = new ArrayList<>();
+                    encodings.add(qwerty ? Utils.mapToAlphaNum(variant, true, positions) :
+                            Utils.mapToKeypad(variant, false, positions));
+                    alignments.add(positions);
+                }
+                int depth = encodings.get(0).length();
+                HashSet<String> queries = new HashSet<>();
+                for(String encoding: encodings){
+                    for(int length = 1; length <= encoding.length(); length++){
+                        String query = encoding.substring(0, length);
+                        if(!queries.add(query))
+                            continue;
+                        int first = 0;
+                        while(!encodings.get(first).startsWith(query)) first++;
+                        Collection<Prediction> predictions = predictor.predict(query);
+                        assertEquals("Should match " + query + " in " + name, 1, predictions.size());
+                        assertEquals("Should align " + query + " in " + name,
+                                alignments.get(first).subList(0, length),
+                                predictions.iterator().next().getAlignment());
+
+                        if(length == depth)
+                            continue;
+                        for(char key: (qwerty ? "abcdefghijklmnopqrstuvwxyz" : "23456789").toCharArray()){
+                            boolean expected = false;
+                            for(String other: encodings)
+                                expected |= other.startsWith(query + key);
+                            assertEquals("Should match " + query + key + " in " + name, expected,
+                                    !predictor.predict(query + key).isEmpty());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPredictionStore() throws Exception {
+        Predictor predictor = createQwertyPredictor();
+        predictor.addItem(new TestDataItem("John Doe", "880000000", "0"));
+        Generation latin = predictor.getGeneration();
+
+        // Widens the packed encodings to chars, only the latin ones have keys
+        predictor.addItem(new TestDataItem("Roe Жанна", "871111111", "1"));
+        assertEquals("Should match after widening", "0", idFromPrediction(predictor, "doe"));
+        assertEquals("Should match next to wide chars", "1", idFromPrediction(predictor, "roe"));
+        assertEquals("Should align next to wide chars", Arrays.asList(0, 1, 2),
+                predictor.predict("roe").iterator().next().getAlignment());
+        assertEquals("Should keep the encoding", "roeжанна",
+                predictor.predict("roe").iterator().next().getEncoding());
+
+        assertEquals("Should keep the old snapshot", "johndoe", latin.getPrediction(0).getEncoding());
+        assertEquals("Should not see later predictions", 0,
+                predictor.collect(latin, latin.mIndex.match(new int[]{17}, 0, 1, null),
+                        new int[]{17}, 1, Predictor.NO_LIMIT, null, null).size());
+    }
+
+    @Test
+    public void testAsyncSession() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        predictor.addItem(new TestDataItem("jane doe", "871111111", "1"));
+
+        // Runs the tasks when asked to
+        final List<Runnable> tasks = new ArrayList<>();
+        AsyncSession session = predictor.newAsyncSession(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                tasks.add(runnable);
+            }
+        });
+        final List<String> queries = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        PredictionListener listener = new PredictionListener() {
+            @Override
+            public void onPredictions(String query, Collection<Prediction> predictions) {
+                queries.add(query);
+                sizes.add(predictions.size());
+            }
+        };
+
+        session.predict("5", 0, listener);
+        session.predict("56", 0, listener);
+        session.predict("5646", 0, listener);
+        assertEquals("Should coalesce the queries", 1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals("Should deliver the latest query only", Collections.singletonList("5646"), queries);
+        assertEquals("Should deliver the result", Collections.singletonList(1), sizes);
+
+        session.predict("363", 0, listener);
+        session.cancel();
+        tasks.remove(0).run();
+        assertEquals("Should not deliver cancelled queries", 1, queries.size());
+
+        QuerySession querySession = predictor.newSession();
+        assertNull("Should stop when cancelled", querySession.predict("363", 0, new Predictor.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        }));
+        assertEquals("Should work after cancellation", 2, querySession.predict("363").size());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Collection<Prediction>> results = new ArrayList<>();
+        predictor.newAsyncSession().predict("5263", 10, new PredictionListener() {
+            @Override
+            public void onPredictions(String query, Collection<Prediction> predictions) {
+                results.add(predictions);
+                latch.countDown();
+            }
+        });
+        assertTrue("Should run in the background", latch.await(10, TimeUnit.SECONDS));
+        assertEquals("Should predict in the background", "1", results.get(0).iterator().next().getItem().getId());
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        Predictor predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                .expectedItems(10)
+                .variantsPerItem(1)
+                .build();
+        predictor.setLabels(labels());
+        StringBuilder builder = new StringBuilder("john");
+        for(int i = 0; i < 40; i++)
+            builder.append(" doe");
+        String longName = builder.toString();
+        for(int i = 0; i < 20; i++)
+            predictor.addItem(new TestDataItem("jane " + i, "87111111" + i, "" + i));
+        predictor.addItem(new TestDataItem(longName, "880000000", "long"));
+        assertEquals("Should grow beyond the hints", 20, predictor.predict("5263").size());
+        assertTrue("Should not index long fields by default", predictor.predict("5646").isEmpty());
+        predictor.addItem(new TestDataItem(repeat('7', 99), "0", "99"));
+        predictor.addItem(new TestDataItem(repeat('8', 100), "0", "100"));
+        assertEquals("Should index fields shorter than 100 keys by default", "99", idFromPrediction(predictor, "777"));
+        assertTrue("Should not index fields of 100 keys by default", predictor.predict("888").isEmpty());
+
+        predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                .maxFieldLength(200)
+                .build();
+        predictor.setLabels(labels());
+        predictor.addItem(new TestDataItem(longName, "880000000", "long"));
+        assertEquals("Should index long fields", "long", idFromPrediction(predictor, "5646"));
+        char[] encoding = new char[longName.length()];
+        short[] positions = new short[longName.length()];
+        int length = KeyEncoder.of(Predictor.InputType.NUMBER_KEYPAD).encode(longName, false, encoding, positions);
+        List<Integer> alignment = singlePrediction(predictor, new String(encoding, 0, length)).getAlignment();
+        assertEquals("Should match the end of long fields", longName.length() - 1,
+                (int) alignment.get(alignment.size() - 1));
+
+        try {
+            new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD).maxFieldLength(0x10001);
+            fail("Should not accept positions beyond 16 bits");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testSubstringMatch() throws Exception {
+        final List<TestDataItem> items = Arrays.asList(new TestDataItem("john doe", "880000000", "0"),
+                new TestDataItem("jane doe", "+91 98765 4321", "1"),
+                new TestDataItem("mark roe", "871111111", "2"));
+        assertTrue("Should not match inside numbers by default",
+                createNumberPredictor().predict("7654").isEmpty());
+
+        for(IndexEngine engine: new IndexEngine[]{IndexEngine.COLUMNS, IndexEngine.TRIE}){
+            for(boolean bulk: new boolean[]{false, true}){
+                Predictor predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                        .engine(engine)
+                        .substringMatch(DataItem.FieldType.NUMBER)
+                        .build();
+                predictor.setLabels(labels());
+                if(bulk){
+                    predictor.addItems(items);
+                }else{
+                    for(TestDataItem item: items)
+                        predictor.addItem(item);
+                }
+
+                assertEquals("Should store every number once", 6, predictor.getGeneration().mCount);
+                Prediction p = singlePrediction(predictor, "7654");
+                assertEquals("Should match inside numbers", "1", p.getItem().getId());
+                assertEquals("Should align the match", Arrays.asList(6, 7, 8, 10), p.getAlignment());
+                assertEquals("Should match the last digits", "1", idFromPrediction(predictor, "4321"));
+                assertEquals("Should report an item once", 1, predictor.predict("1111").size());
+                assertEquals("Should still match from the start", 0,
+                        (int) singlePrediction(predictor, "8800").getAlignment().get(0));
+                assertEquals("Should match short queries from the start", "2", idFromPrediction(predictor, "87"));
+                assertTrue("Should not match short queries inside", predictor.predict("65").isEmpty());
+                assertTrue("Should not match names inside", predictor.predict("646").isEmpty());
+
+                predictor.removeItem("1");
+                assertTrue("Should not match removed items", predictor.predict("7654").isEmpty());
+            }
+        }
+
+        Predictor predictor = new Predictor.Builder(Predictor.InputType.QWERTY_KEYPAD)
+                .substringMatch(DataItem.FieldType.TEXT_SEPARATED)
+                .build();
+        predictor.setLabels(labels());
+        predictor.addItems(items);
+        assertEquals("Should match inside text", Arrays.asList(1, 2, 3),
+                singlePrediction(predictor, "ohn").getAlignment());
+        assertEquals("Should match across words", Arrays.asList(2, 3, 5),
+                singlePrediction(predictor, "hnd").getAlignment());
+        assertEquals("Should keep matching initials", "2", idFromPrediction(predictor, "mr"));
+
+        File file = File.createTempFile("predictor", ".idx");
+        file.deleteOnExit();
+        predictor.writeIndex(file);
+        Predictor loaded = Predictor.openIndex(file, new DataItemResolver() {
+            @Override
+            public DataItem resolve(String id) {
+                return items.get(Integer.parseInt(id));
+            }
+        });
+        assertEquals("Should restore the substrings", "0", idFromPrediction(loaded, "ohn"));
+        loaded.addItem(new TestDataItem("bob smith", "8800", "3"));
+        assertEquals("Should keep matching substrings after loading", "3", idFromPrediction(loaded, "mit"));
+    }
+
+    @Test
+    public void testRanking() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.setCompactionRatio(0);
+        List<TestDataItem> items = new ArrayList<>();
+        for(int i = 9; i >= 0; i--)
+            items.add(new TestDataItem("john doe", "88000000" + i, "" + i));
+        items.add(new TestDataItem("mark roe", "5646", "00"));
+        predictor.addItems(items);
+        Generation generation = predictor.getGeneration();
+        assertEquals("Should load in rank order", generation.mCount, generation.mRanked);
+        assertEquals("Should order by level and item",
+                Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "00"),
+                idsOf(predictor.predict("5646")));
+        assertEquals("Should stop at the limit", Arrays.asList("0", "1", "2"), idsOf(predictor.predict("5646", 3)));
+
+        predictor.addItem(new TestDataItem("john roe", "1", "05"));
+        predictor.removeItem("1");
+        assertEquals("Should not rank appended items", generation.mCount, predictor.getGeneration().mRanked);
+        assertEquals("Should merge appended items",
+                Arrays.asList("0", "05", "2", "3", "4", "5", "6", "7", "8", "9", "00"),
+                idsOf(predictor.predict("5646")));
+        assertEquals("Should merge appended items within the limit", Arrays.asList("0", "05"),
+                idsOf(predictor.predict("5646", 2)));
+        assertEquals("Should merge appended items in sessions", Arrays.asList("0", "05", "2"),
+                idsOf(predictor.newSession().predict("5646", 3)));
+
+        List<String> expected = idsOf(predictor.predict("5646"));
+        predictor.compact();
+        generation = predictor.getGeneration();
+        assertEquals("Should rank on compaction", generation.mCount, generation.mRanked);
+        assertEquals("Should keep the order after compaction", expected, idsOf(predictor.predict("5646")));
+
+        predictor = createNumberPredictor();
+        predictor.addItems(Arrays.asList(new ScoredTestDataItem("john doe", "1", "0", 1),
+                new ScoredTestDataItem("john doe", "2", "1", 3), new ScoredTestDataItem("john doe", "3", "2", 2),
+                new ScoredTestDataItem("john doe", "4", "3", 2)));
+        ScoredTestDataItem.sComparisons = 0;
+        assertEquals("Should order by score", Arrays.asList("1", "2", "3", "0"), idsOf(predictor.predict("5646")));
+        assertEquals("Should order by score within the limit", Arrays.asList("1", "2"),
+                idsOf(predictor.predict("5646", 2)));
+        assertEquals("Should not compare ranked items", 0, ScoredTestDataItem.sComparisons);
+    }
+
+    @Test
+    public void testQueryPlanning() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        List<TestDataItem> items = new ArrayList<>();
+        for(int i = 0; i < 1000; i++)
+            items.add(new TestDataItem("john doe", "9876" + (100000 + i * 37), "" + i));
+        predictor.addItems(items);
+
+        // Sessions intersect one key at a time
+        for(String query: new String[]{"98", "98761", "9876101", "987613", "9876136963", "98761369630"}){
+            assertEquals("Should plan " + query, idsOf(predictor.newSession().predict(query)),
+                    idsOf(predictor.predict(query)));
+        }
+        assertEquals("Should verify the keys of few candidates", Arrays.asList("999"),
+                idsOf(predictor.predict("9876136963")));
+        assertEquals("Should reject candidates on any key", Collections.<String>emptyList(),
+                idsOf(predictor.predict("9876146963")));
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        predictor.addItem(new TestDataItem("jane doe", "871111111", "1"));
+        predictor.setResultCache(2, 3);
+
+        Collection<Prediction> predictions = predictor.predict("5", 10);
+        assertSame("Should return the cached result", predictions, predictor.predict("5", 10));
+        assertNotSame("Should key by the limit", predictions, predictor.predict("5"));
+        try {
+            predictions.clear();
+            fail("Should not allow changes to shared results");
+        } catch (UnsupportedOperationException e) {
+        }
+
+        predictor.addItem(new TestDataItem("joe roe", "880000001", "2"));
+        assertEquals("Should not return results of older data", 3, predictor.predict("5", 10).size());
+        predictor.removeItem("2");
+        predictions = predictor.predict("5", 10);
+        assertEquals(2, predictions.size());
+        predictor.compact();
+        assertSame("Should keep the results through compaction", predictions, predictor.predict("5", 10));
+
+        predictor.predict("52");
+        predictor.predict("56");
+        predictor.predict("8");
+        PredictorStats stats = predictor.getStats();
+        assertEquals(2, stats.getCacheHits());
+        assertEquals(7, stats.getCacheMisses());
+        assertEquals("Should evict the least recently used", 3, stats.getCacheEvictions());
+        assertEquals(2.0 / 9, stats.getCacheHitRate(), 0.001);
+        assertSame("Should keep the latest queries", predictor.predict("56"), predictor.predict("56"));
+
+        predictor.setResultCache(2, 1);
+        assertNotSame("Should not cache results heavier than the cache", predictor.predict("8"),
+                predictor.predict("8"));
+
+        predictor.setResultCache(0, 0);
+        assertNotSame("Should turn the cache off", predictor.predict("52"), predictor.predict("52"));
+    }
+
+    @Test
+    public void testFuzzy() throws Exception {
+        for(IndexEngine engine: new IndexEngine[]{IndexEngine.COLUMNS, IndexEngine.TRIE}){
+            for(boolean bulk: new boolean[]{false, true}){
+                Predictor predictor = createPredictor(Predictor.InputType.NUMBER_KEYPAD, engine);
+                List<TestDataItem> items = Arrays.asList(new TestDataItem("john doe", "880000000", "0"),
+                        new TestDataItem("jane doe", "871111111", "1"),
+                        new TestDataItem("mark roe", "872222222", "2"));
+                if(bulk){
+                    predictor.addItems(items);
+                }else{
+                    for(TestDataItem item: items)
+                        predictor.addItem(item);
+                }
+
+                assertTrue(predictor.predict("5647").isEmpty());
+                assertEquals("Should match a mistyped key", Collections.singletonList("0"),
+                        idsOf(predictor.predictFuzzy("5647", 1, 0)));
+                assertEquals("Should match a missing key", Collections.singletonList("0"),
+                        idsOf(predictor.predictFuzzy("56636", 1, 0)));
+                assertEquals("Should match an extra key", Collections.singletonList("0"),
+                        idsOf(predictor.predictFuzzy("564463", 1, 0)));
+                assertTrue("Should respect the bound", predictor.predictFuzzy("5747", 1, 0).isEmpty());
+                assertEquals("Should allow more edits", Collections.singletonList("0"),
+                        idsOf(predictor.predictFuzzy("5747", 2, 0)));
+                assertEquals("Should put exact matches first", Arrays.asList("1", "0"),
+                        idsOf(predictor.predictFuzzy("526", 1, 0)));
+                assertEquals("Should limit", Collections.singletonList("1"),
+                        idsOf(predictor.predictFuzzy("526", 1, 1)));
+                assertEquals("Should match numbers", "0",
+                        predictor.predictFuzzy("880000010", 1, 0).iterator().next().getItem().getId());
+
+                Prediction p = predictor.predictFuzzy("5647", 1, 0).iterator().next();
+                assertEquals("Should highlight the matched keys", positionsOf("xxxx"), p.getAlignment());
+                predictor.removeItem("0");
+                assertTrue("Should not match removed items", predictor.predictFuzzy("5647", 1, 0).isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testFuzzyWords() throws Exception {
+        for(IndexEngine engine: new IndexEngine[]{IndexEngine.COLUMNS, IndexEngine.TRIE}){
+            Predictor predictor = createPredictor(Predictor.InputType.QWERTY_KEYPAD, engine);
+            predictor.addItems(Arrays.asList(new TestDataItem("Mohandas Gandhi", "880000000", "0"),
+                    new TestDataItem("Jane Doe", "871111111", "1")));
+
+            assertTrue(predictor.predict("gsnd").isEmpty());
+            assertEquals("Should match a later word with a typo", Collections.singletonList("0"),
+                    idsOf(predictor.predictFuzzy("gsnd", 1, 0)));
+            assertEquals("Should match a later word with a missing key", Collections.singletonList("0"),
+                    idsOf(predictor.predictFuzzy("gnd", 1, 0)));
+            assertEquals("Should still match the first word", Collections.singletonList("0"),
+                    idsOf(predictor.predictFuzzy("mohsn", 1, 0)));
+            assertTrue("Should respect the bound", predictor.predictFuzzy("gsbd", 1, 0).isEmpty());
+
+            Prediction p = predictor.predictFuzzy("gsnd", 1, 0).iterator().next();
+            assertEquals("Should highlight the keys of the word", Arrays.asList(9, 10, 11, 12), p.getAlignment());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Predictor predictor = createNumberPredictor();
+        MetricsRecorder metrics = new MetricsRecorder();
+        predictor.setMetrics(metrics);
+        predictor.addItem(new TestDataItem("john doe", "880000000", "0"));
+        predictor.addItems(Arrays.asList(new TestDataItem("jane doe", "871111111", "1"),
+                new TestDataItem("mark roe", "872222222", "2")));
+        predictor.removeItem("2");
+        predictor.removeItem("2");
+        assertEquals("Should time additions", 2, metrics.getAddLatency().getCount());
+        assertEquals("Should time removals that happened", 1, metrics.getRemoveLatency().getCount());
+
+        assertEquals(1, predictor.predict("5646").size());
+        assertEquals("Should time predictions", 1, metrics.getPredictLatency().getCount());
+        assertEquals("Should start from the smallest list", 1, metrics.getCandidates(1).getMax());
+        assertEquals("Should count the candidates of the whole query", 1, metrics.getCandidates(4).getMax());
+        assertEquals("Should count the predictions", 1, metrics.getResults().getMax());
+
+        long steps = metrics.getCandidates(2).getCount();
+        predictor.newSession().predict("52", new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                return true;
+            }
+        });
+        assertEquals("Should time sessions", 2, metrics.getPredictLatency().getCount());
+        assertEquals("Should count candidates of sessions", steps + 1, metrics.getCandidates(2).getCount());
+
+        PredictorStats stats = predictor.getStats();
+        assertEquals(2, stats.getItemCount());
+        assertTrue(stats.getTombstoneCount() > 0 && stats.getTombstoneCount() < stats.getVariantCount());
+        assertEquals(stats.getDepth(), stats.getColumnBytes().length);
+        assertTrue("Should estimate the size of the index", stats.getIndexBytes() > 0);
+
+        predictor.setMetrics(null);
+        predictor.predict("5646");
+        assertEquals("Should stop measuring", 2, metrics.getPredictLatency().getCount());
+
+        MetricsRecorder.Histogram histogram = new MetricsRecorder.Histogram();
+        for(int value = 1; value <= 100; value++)
+            histogram.record(value);
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testKeyEncoder() throws Exception {
+        char[] encoding = new char[8];
+        short[] positions = new short[8];
+        KeyEncoder keypad = KeyEncoder.of(Predictor.InputType.NUMBER_KEYPAD);
+        int length = keypad.encode("Zoë +91", true, encoding, positions);
+        assertEquals("Should encode accents and symbols", "963+91", new String(encoding, 0, length));
+        assertEquals("Should skip unmapped chars", 4, positions[3]);
+        length = keypad.encode("Zoë +91", false, encoding, positions);
+        assertEquals("Should drop symbols", "96391", new String(encoding, 0, length));
+        assertEquals("Should report overflow", 10, keypad.encode("0123456789", false, encoding, positions));
+
+        KeyEncoder qwerty = KeyEncoder.of(Predictor.InputType.QWERTY_KEYPAD);
+        length = qwerty.encode("ÉMILE@Zoë.fr", true, encoding, positions);
+        assertEquals("Should count past the buffer", 12, length);
+        assertEquals("Should lowercase", "emile@zo", new String(encoding));
+        assertEquals("Should match the list based encoding", Arrays.asList(0, 1, 3, 4),
+                positionsOf("Él-an"));
+    }
+
     /* QWERTY keypad predictor */
     @Test
     public void testCreationQwerty() throws Exception {
@@ -420,6 +1533,32 @@ public class PredictorTest {
 
 
     /* Helper Functions */
+    /*
+     * Run updates while a compaction has rebuilt the index and waits for the lock to replay them
+     */
+    private void compactDuring(final Predictor predictor, Runnable updates) throws InterruptedException {
+        Thread compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                predictor.compact();
+            }
+        });
+        synchronized (predictor) {
+            compaction.start();
+            while(compaction.isAlive() && compaction.getState() != Thread.State.BLOCKED)
+                Thread.sleep(1);
+            assertTrue("Should wait for the lock", compaction.isAlive());
+            updates.run();
+        }
+        compaction.join();
+    }
+
+    private static String repeat(char c, int count){
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
     private String idFromPrediction(Predictor predictor, String query){
         Collection<Prediction> preds = predictor.predict(query);
         assertEquals("Should be one prediction only", 1, preds.size());
@@ -436,6 +1575,50 @@ public class PredictorTest {
         return null;
     }
 
+    private List<String> idsOf(Collection<Prediction> predictions){
+        List<String> ids = new ArrayList<>();
+        for(Prediction p: predictions)
+            ids.add(p.getItem().getId());
+        return ids;
+    }
+
+    private static List<String> sorted(List<String> ids){
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> streamedIds(Predictor predictor, String query){
+        final List<String> ids = new ArrayList<>();
+        predictor.predict(query, new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                ids.add(prediction.getItem().getId());
+                return true;
+            }
+        });
+        return ids;
+    }
+
+    private List<Integer> positionsOf(String source){
+        List<Integer> positions = new ArrayList<>();
+        Utils.mapToAlphaNum(source, true, positions);
+        return positions;
+    }
+
+    private Predictor createPredictor(Predictor.InputType inputType, IndexEngine engine){
+        Predictor predictor = new Predictor(inputType, engine);
+        predictor.setLabels(labels());
+
+        return predictor;
+    }
+
+    private static LinkedHashMap<String, DataItem.FieldType> labels(){
+        LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<>();
+        labels.put("name", DataItem.FieldType.TEXT_SEPARATED);
+        labels.put("number", DataItem.FieldType.NUMBER);
+        return labels;
+    }
+
     private Predictor createNumberPredictor(){
         Predictor predictor = new Predictor(Predictor.InputType.NUMBER_KEYPAD);
         LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<>();
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that predictions stay interactive on a large directory. Building the index takes a while
+ * and a few hundred MB of heap, hence the test only runs when asked to:
+ * <pre>
+ * java -Xmx2g -DscalingTest=true -cp ... org.junit.runner.JUnitCore com.pandimension.predictivesearch.ScalingTest
+ * </pre>
+ * The number of items can be changed with -DscalingTest.items, 1M by default. Queries of three to
+ * six keys for the top 10 predictions must take well under a millisecond at the median.
+ */
+public class ScalingTest {
+    private final static String[] SYLLABLES = {"an", "be", "ca", "da", "el", "fi", "go", "ha", "in", "jo",
+            "ka", "li", "mo", "na", "or", "pa", "qui", "ro", "sa", "ta", "ul", "vi", "wa", "xe", "ya", "zo",
+            "ber", "chi", "dre", "fla", "gri", "kol", "lor", "mar", "nik", "pri", "san", "tho", "vel", "wil"};
+    private final static int QUERIES = 5000;
+
+    @Test
+    public void testMillionItems() throws Exception {
+        assumeTrue(Boolean.getBoolean("scalingTest"));
+        int count = Integer.getInteger("scalingTest.items", 1000000);
+
+        Random random = new Random(42);
+        List<DataItem> items = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            items.add(new TestDataItem(name(random) + " " + name(random), number(random), "" + i));
+
+        Predictor predictor = new Predictor.Builder(Predictor.InputType.NUMBER_KEYPAD)
+                .expectedItems(count)
+                .variantsPerItem(3)
+                .build();
+        LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<>();
+        labels.put(TestDataItem.LABEL_NAME, DataItem.FieldType.TEXT_SEPARATED);
+        labels.put(TestDataItem.LABEL_NUMBER, DataItem.FieldType.NUMBER);
+        predictor.setLabels(labels);
+
+        long start = System.nanoTime();
+        predictor.addItems(items);
+        long build = System.nanoTime() - start;
+        PredictorStats stats = predictor.getStats();
+        assertEquals(count, stats.getItemCount());
+
+        String[] queries = new String[QUERIES];
+        for(int q = 0; q < QUERIES; q++)
+            queries[q] = query(random, items.get(random.nextInt(count)));
+
+        // Warm up, then measure every query separately
+        for(String query: queries)
+            predictor.predict(query, 10);
+        long[] latencies = new long[QUERIES];
+        for(int q = 0; q < QUERIES; q++){
+            start = System.nanoTime();
+            assertFalse("Should find the item of the query", predictor.predict(queries[q], 10).isEmpty());
+            latencies[q] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        long median = latencies[QUERIES / 2];
+        long p99 = latencies[QUERIES * 99 / 100];
+
+        assertTrue("Median prediction should take under a millisecond, took " + median / 1000 + "us (p99 " +
+                p99 / 1000 + "us, " + stats + " built in " + build / 1000000 + "ms)", median < 1000000);
+    }
+
+    private static String name(Random random){
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(2);
+        for(int s = 0; s < syllables; s++)
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        return name.toString();
+    }
+
+    private static String number(Random random){
+        StringBuilder number = new StringBuilder();
+        number.append(6 + random.nextInt(4));
+        for(int d = 1; d < 10; d++)
+            number.append(random.nextInt(10));
+        return number.toString();
+    }
+
+    /* A prefix of the name or of the last name as typed on the keypad */
+    private static String query(Random random, DataItem item){
+        String[] words = item.getField(TestDataItem.LABEL_NAME).get(0).split(" ");
+        String word = words[random.nextInt(words.length)];
+        char[] encoding = new char[word.length()];
+        short[] positions = new short[word.length()];
+        int length = KeyEncoder.of(Predictor.InputType.NUMBER_KEYPAD).encode(word, false, encoding, positions);
+        return new String(encoding, 0, Math.min(length, 3 + random.nextInt(4)));
+    }
+}
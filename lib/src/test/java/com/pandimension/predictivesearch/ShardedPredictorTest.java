@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sharded predictor against a single Predictor
+ */
+public class ShardedPredictorTest {
+    private final static String[] FIRST = {"john", "jane", "mary", "cipriano", "ana", "kollol", "joe"};
+    private final static String[] LAST = {"doe", "roe", "de la santísima", "smith", "das", "jones"};
+    private final static String[] QUERIES = {"5", "3", "56", "5263", "363", "2357", "9", "88", "7648"};
+
+    @Test
+    public void testSameAsPredictor() throws Exception {
+        List<DataItem> items = items(500);
+        Predictor predictor = createPredictor();
+        predictor.addItems(items);
+        ShardedPredictor sharded = createSharded(4);
+        sharded.addItems(items);
+
+        for(String query: QUERIES){
+            assertEquals("Should match like a Predictor " + query,
+                    new HashSet<>(ids(predictor.predict(query))), new HashSet<>(ids(sharded.predict(query))));
+            assertEquals("Should keep the best like a Predictor " + query,
+                    ids(predictor.predict(query, 10)), ids(sharded.predict(query, 10)));
+        }
+        assertNull("Should return null on empty input", sharded.predict(""));
+    }
+
+    @Test
+    public void testUpdates() throws Exception {
+        ShardedPredictor sharded = createSharded(3);
+        for(DataItem item: items(100))
+            sharded.addItem(item);
+        int before = sharded.predict("5646").size();
+
+        sharded.removeItem("0");
+        assertEquals("Should remove from its shard", before - 1, sharded.predict("5646").size());
+        sharded.replaceItem("7", new TestDataItem("zzz", "000", "7"));
+        assertEquals("Should replace in place", before - 2, sharded.predict("5646").size());
+        sharded.replaceItem("14", new TestDataItem("zzz", "000", "new"));
+        assertEquals("Should replace across shards", 2, sharded.predict("999").size());
+        assertEquals("Should remove the replaced item", before - 3, sharded.predict("5646").size());
+    }
+
+    @Test
+    public void testChangeSet() throws Exception {
+        ShardedPredictor sharded = createSharded(3);
+        sharded.addItems(items(100));
+        int before = sharded.predict("5646").size();
+
+        sharded.applyChanges(new ChangeSet()
+                .remove("0")
+                .replace("7", new TestDataItem("zzz", "000", "7"))
+                .replace("14", new TestDataItem("zzz", "000", "new"))
+                .add(new TestDataItem("zzz", "000", "added")));
+        assertEquals("Should remove and replace in the shards", before - 3, sharded.predict("5646").size());
+        assertEquals("Should add and replace across shards", 3, sharded.predict("999").size());
+    }
+
+    @Test
+    public void testConsumer() throws Exception {
+        ShardedPredictor sharded = createSharded(4);
+        sharded.addItems(items(200));
+
+        final HashSet<Integer> ordinals = new HashSet<>();
+        final List<String> ids = new ArrayList<>();
+        sharded.predict("5", new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                assertTrue("Should have unique ordinals", ordinals.add(ordinal));
+                ids.add(prediction.getItem().getId());
+                return true;
+            }
+        });
+        assertEquals("Should stream every item", new HashSet<>(ids(sharded.predict("5"))), new HashSet<>(ids));
+
+        ids.clear();
+        sharded.predict("5", new PredictionConsumer() {
+            @Override
+            public boolean onPrediction(Prediction prediction, int extent, int ordinal) {
+                ids.add(prediction.getItem().getId());
+                return false;
+            }
+        });
+        assertEquals("Should stop when asked", 1, ids.size());
+    }
+
+    /* Private Methods */
+
+    private List<DataItem> items(int count){
+        List<DataItem> items = new ArrayList<>();
+        for(int i = 0; i < count; i++)
+            items.add(new TestDataItem(FIRST[i % FIRST.length] + " " + LAST[i / FIRST.length % LAST.length],
+                    "98" + (1000000 + i * 7919 % 1000000), "" + i));
+        return items;
+    }
+
+    private List<String> ids(Collection<Prediction> predictions){
+        List<String> ids = new ArrayList<>();
+        for(Prediction p: predictions)
+            ids.add(p.getItem().getId());
+        return ids;
+    }
+
+    private LinkedHashMap<String, DataItem.FieldType> labels(){
+        LinkedHashMap<String, DataItem.FieldType> labels = new LinkedHashMap<>();
+        labels.put("name", DataItem.FieldType.TEXT_SEPARATED);
+        labels.put("number", DataItem.FieldType.NUMBER);
+        return labels;
+    }
+
+    private Predictor createPredictor(){
+        Predictor predictor = new Predictor(Predictor.InputType.NUMBER_KEYPAD);
+        predictor.setLabels(labels());
+        return predictor;
+    }
+
+    private ShardedPredictor createSharded(int shards){
+        ShardedPredictor sharded = new ShardedPredictor(Predictor.InputType.NUMBER_KEYPAD, shards,
+                IndexEngine.COLUMNS, new ForkJoinPool(2));
+        sharded.setLabels(labels());
+        return sharded;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Kollol Das
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pandimension.predictivesearch;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Test implementation of DataItem
+ */
+class TestDataItem implements DataItem {
+
+    final static String LABEL_NAME = "name";
+    final static String LABEL_NUMBER = "number";
+
+    List<String> name, number;
+    String id;
+
+    TestDataItem(String name, String number, String id){
+        this.name = new LinkedList<>(Arrays.asList(new String[]{name}));
+        this.number = new LinkedList<>(Arrays.asList(new String[]{number}));
+        this.id = id;
+    }
+
+    public int compareTo(DataItem other) {
+        return id.compareTo(other.getId());
+        //int d = name.get(0).compareToIgnoreCase(((TestDataItem)other).name.get(0));
+        //return d;
+    }
+
+
+    @Override
+    public boolean equals(Object arg0) {
+        TestDataItem other = (TestDataItem)arg0;
+        return id.equals(other.id);
+        //return name.get(0).equalsIgnoreCase(other.name.get(0));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getField(String label) {
+        if(LABEL_NAME.equals(label)) return name;
+        else return number;
+    }
+
+    @Override
+    public String toString() {
+        return name + "," + number;
+    }
+}